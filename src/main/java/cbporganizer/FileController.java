@@ -1,18 +1,59 @@
 package cbporganizer;
 
 import org.springframework.web.bind.annotation.CrossOrigin;
+import cbporganizer.service.ChunkedUploadService;
+import cbporganizer.service.ClinicalCsvMerger;
+import cbporganizer.service.ClinicalExportService;
+import cbporganizer.service.ClinicalFilter;
+import cbporganizer.service.ClinicalIndexService;
+import cbporganizer.service.ClinicalQueryResult;
+import cbporganizer.service.CnaMatrixService;
+import cbporganizer.service.CnaSlice;
+import cbporganizer.service.CnaSliceRequest;
+import cbporganizer.service.MutationIndexService;
+import cbporganizer.service.MutationQueryResult;
+import cbporganizer.service.ClinicalValidationResult;
+import cbporganizer.service.ExtractionResult;
+import cbporganizer.service.CatalogEntry;
+import cbporganizer.service.FileDigest;
+import cbporganizer.service.FileListing;
 import cbporganizer.service.FilesStorageService;
+import cbporganizer.service.ProcessMetrics;
+import cbporganizer.service.ProcessRunner;
+import cbporganizer.service.UploadStatus;
+import cbporganizer.service.ValidationJob;
+import cbporganizer.service.ValidationJobService;
+import cbporganizer.service.ValidationMessagePage;
+import cbporganizer.service.ValidationMessageService;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
+import java.io.BufferedWriter;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.RejectedExecutionException;
 import java.nio.charset.StandardCharsets;
 
 
@@ -24,20 +65,149 @@ public class FileController {
     @Autowired
     FilesStorageService storageService;
 
+    @Autowired
+    ChunkedUploadService chunkedUploadService;
+
+    @Autowired
+    ValidationJobService validationJobService;
+
+    @Autowired
+    ProcessRunner processRunner;
+
+    @Autowired
+    ClinicalExportService clinicalExportService;
+
+    @Autowired
+    ClinicalIndexService clinicalIndexService;
+
+    @Autowired
+    MutationIndexService mutationIndexService;
+
+    @Autowired
+    CnaMatrixService cnaMatrixService;
+
+    @Autowired
+    ValidationMessageService validationMessageService;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    private static final int MAX_LISTING_LIMIT = 1000;
+    /* the response header buffer of the connector is 8 KB by default, so two lists of ids must stay well below */
+    private static final int MAX_ID_HEADER_LENGTH = 2048;
+
     @PostMapping("/upload")
     public ResponseEntity<String> uploadFile(@RequestParam("file") MultipartFile file, HttpSession session) {
         String userId = getUserIdFromSession(session);
 
-        storageService.save(file, userId);
-        return ResponseEntity.status(HttpStatus.OK).body("Uploaded the file successfully: " + file.getOriginalFilename());
+        ExtractionResult result;
+        try {
+            result = storageService.save(file, userId);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body("Unsupported archive format: " + file.getOriginalFilename());
+        }
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("X-Archive-Format", result.getFormat());
+        headers.set("X-Extraction-Millis", Long.toString(result.getElapsedMillis()));
+        return ResponseEntity.status(HttpStatus.OK).headers(headers)
+                .body("Uploaded the file successfully: " + file.getOriginalFilename());
+    }
+
+    /*
+     * Accepts the raw tar.gz or zip archive as the request body and extracts it while it arrives.
+     */
+    @PostMapping("/upload/stream")
+    public ResponseEntity<ExtractionResult> uploadStream(@RequestParam("name") String fileName,
+                                                         @RequestParam(value = "keepArchive", defaultValue = "false") boolean keepArchive,
+                                                         HttpServletRequest request, HttpSession session) throws IOException {
+        String userId = getUserIdFromSession(session);
+
+        try {
+            ExtractionResult result = storageService.saveStream(request.getInputStream(), fileName, userId, keepArchive);
+            return new ResponseEntity<>(result, HttpStatus.OK);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+    }
+
+    @PostMapping("/upload/chunked")
+    public ResponseEntity<UploadStatus> initiateChunkedUpload(@RequestParam("name") String fileName,
+                                                              @RequestParam("size") long totalSize,
+                                                              HttpSession session) {
+        String userId = getUserIdFromSession(session);
+
+        try {
+            return new ResponseEntity<>(chunkedUploadService.initiate(userId, fileName, totalSize), HttpStatus.CREATED);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+    }
+
+    /*
+     * Writes the raw request body at the given offset of the upload; chunks may be retried or sent in parallel.
+     */
+    @PutMapping("/upload/chunked/{uploadId}")
+    public ResponseEntity<UploadStatus> uploadChunk(@PathVariable String uploadId, @RequestParam("offset") long offset,
+                                                    HttpServletRequest request, HttpSession session) throws IOException {
+        String userId = getUserIdFromSession(session);
+
+        try {
+            UploadStatus status = chunkedUploadService.writeChunk(userId, uploadId, offset, request.getInputStream());
+            if (status == null) {
+                return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+            }
+            return new ResponseEntity<>(status, HttpStatus.OK);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+    }
+
+    @GetMapping("/upload/chunked/{uploadId}")
+    public ResponseEntity<UploadStatus> getChunkedUploadStatus(@PathVariable String uploadId, HttpSession session) {
+        String userId = getUserIdFromSession(session);
+
+        UploadStatus status = chunkedUploadService.getStatus(userId, uploadId);
+        if (status == null) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return new ResponseEntity<>(status, HttpStatus.OK);
+    }
+
+    @PostMapping("/upload/chunked/{uploadId}/complete")
+    public ResponseEntity<ExtractionResult> completeChunkedUpload(@PathVariable String uploadId, HttpSession session) {
+        String userId = getUserIdFromSession(session);
+
+        try {
+            ExtractionResult result = chunkedUploadService.complete(userId, uploadId);
+            if (result == null) {
+                return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+            }
+            return new ResponseEntity<>(result, HttpStatus.OK);
+        } catch (IllegalStateException e) {
+            return new ResponseEntity<>(HttpStatus.CONFLICT);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+    }
+
+    @DeleteMapping("/upload/chunked/{uploadId}")
+    public ResponseEntity<String> abortChunkedUpload(@PathVariable String uploadId, HttpSession session) {
+        String userId = getUserIdFromSession(session);
+
+        if (!chunkedUploadService.abort(userId, uploadId)) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return ResponseEntity.status(HttpStatus.OK).body("Aborted the upload");
     }
 
     @GetMapping("/")
     public ResponseEntity<List<String>> getFiles(HttpSession session) {
         String userId = getUserIdFromSession(session);
 
+        String eTag = getListingETag(userId);
         List<String> fileList = storageService.getFiles(userId);
-        return new ResponseEntity<>(fileList, HttpStatus.OK);
+        return ResponseEntity.ok().eTag(eTag).body(fileList);
     }
 
     @GetMapping("/Check1")
@@ -52,19 +222,129 @@ public class FileController {
     public ResponseEntity<List<String>> getFolders(HttpSession session) {
         String userId = getUserIdFromSession(session);
 
+        String eTag = getListingETag(userId);
         List<String> folderList = storageService.getFolders(userId);
         if (folderList == null) {
             return new ResponseEntity<>(HttpStatus.NOT_FOUND);
         }
-        return new ResponseEntity<>(folderList, HttpStatus.OK);
+        return ResponseEntity.ok().eTag(eTag).body(folderList);
     }
 
     @GetMapping("/files/{folderName}")
     public ResponseEntity<List<String>> getFilesInFolder(@PathVariable String folderName, HttpSession session) {
         String userId = getUserIdFromSession(session);
 
+        String eTag = getListingETag(userId);
         List<String> fileList = storageService.getFilesInFolder(userId, folderName);
-        return new ResponseEntity<>(fileList, HttpStatus.OK);
+        return ResponseEntity.ok().eTag(eTag).body(fileList);
+    }
+
+    /*
+     * Pages through all files of the user with their size, modification time and data type. Pass the nextCursor
+     * of a page as cursor to get the next one. With deduplicated storage the modification time is when the file's
+     * content was first stored, which can be before it was uploaded to this study (see BlobStore).
+     */
+    @GetMapping("/list")
+    public ResponseEntity<StreamingResponseBody> listFiles(@RequestParam(value = "cursor", required = false) String cursor,
+                                                           @RequestParam(value = "limit", defaultValue = "100") int limit,
+                                                           WebRequest webRequest, HttpSession session) {
+        return listFiles(null, cursor, limit, webRequest, session);
+    }
+
+    @GetMapping("/list/{folderName}")
+    public ResponseEntity<StreamingResponseBody> listFilesInFolder(@PathVariable String folderName,
+                                                                   @RequestParam(value = "cursor", required = false) String cursor,
+                                                                   @RequestParam(value = "limit", defaultValue = "100") int limit,
+                                                                   WebRequest webRequest, HttpSession session) {
+        return listFiles(folderName, cursor, limit, webRequest, session);
+    }
+
+    private ResponseEntity<StreamingResponseBody> listFiles(String folderName, String cursor, int limit,
+                                                            WebRequest webRequest, HttpSession session) {
+        String userId = getUserIdFromSession(session);
+
+        String after;
+        try {
+            after = cursor == null ? null : new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        if (limit < 1 || limit > MAX_LISTING_LIMIT) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        String eTag = getListingETag(userId);
+        if (webRequest.checkNotModified(eTag)) {
+            return null;
+        }
+        FileListing listing = storageService.listFiles(userId, folderName, after, limit);
+        if (listing == null) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        StreamingResponseBody body = out -> {
+            try (JsonGenerator json = objectMapper.getFactory().createGenerator(out)) {
+                json.writeStartObject();
+                json.writeArrayFieldStart("files");
+                for (CatalogEntry entry : listing.getEntries()) {
+                    json.writeStartObject();
+                    json.writeStringField("name", entry.getName());
+                    json.writeStringField("path", entry.getPath());
+                    json.writeNumberField("size", entry.getSize());
+                    json.writeNumberField("lastModified", entry.getLastModified());
+                    json.writeStringField("type", entry.getType());
+                    json.writeStringField("dataType", listing.getDataType(entry));
+                    json.writeEndObject();
+                }
+                json.writeEndArray();
+                String nextCursor = listing.getNextCursor();
+                json.writeStringField("nextCursor", nextCursor == null ? null : Base64.getUrlEncoder()
+                        .withoutPadding().encodeToString(nextCursor.getBytes(StandardCharsets.UTF_8)));
+                json.writeEndObject();
+            }
+        };
+        // checkNotModified has already set the ETag header
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+    }
+
+    /*
+     * Content hashes of every file in the study, so a client can re-upload only the files that changed.
+     */
+    @GetMapping("/manifest/{folderName}")
+    public ResponseEntity<List<FileDigest>> getManifest(@PathVariable String folderName, HttpSession session) {
+        String userId = getUserIdFromSession(session);
+
+        List<FileDigest> manifest = storageService.getManifest(userId, folderName);
+        if (manifest == null) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return new ResponseEntity<>(manifest, HttpStatus.OK);
+    }
+
+    /*
+     * Replaces one file of the study with the raw request body; path is relative to the study folder.
+     */
+    @PutMapping("/files/{folderName}")
+    public ResponseEntity<FileDigest> uploadStudyFile(@PathVariable String folderName, @RequestParam("path") String path,
+                                                      @RequestParam(value = "sha256", required = false) String sha256,
+                                                      HttpServletRequest request, HttpSession session) throws IOException {
+        String userId = getUserIdFromSession(session);
+
+        try {
+            FileDigest digest = storageService.saveStudyFile(userId, folderName, path, request.getInputStream(), sha256);
+            return new ResponseEntity<>(digest, HttpStatus.OK);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+    }
+
+    @DeleteMapping("/files/{folderName}")
+    public ResponseEntity<String> deleteStudyFile(@PathVariable String folderName, @RequestParam("path") String path,
+                                                  HttpSession session) {
+        String userId = getUserIdFromSession(session);
+
+        if (!storageService.deleteStudyFile(userId, folderName, path)) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return ResponseEntity.status(HttpStatus.OK).body("Deleted " + path);
     }
 
 
@@ -84,6 +364,192 @@ public class FileController {
         }
     }
 
+    /*
+     * Check only the clinical sample and patient files of the folder and return the problems found; much faster
+     * than a full validation, which still covers everything else.
+     */
+    @GetMapping("/validate/{folderName}/clinical")
+    public ResponseEntity<ClinicalValidationResult> validateClinicalFiles(@PathVariable String folderName,
+                                                                          HttpSession session) {
+        String userId = getUserIdFromSession(session);
+
+        ClinicalValidationResult result = storageService.validateClinicalFiles(userId, folderName);
+        if (result == null) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return new ResponseEntity<>(result, HttpStatus.OK);
+    }
+
+    /*
+     * The samples, and their patients, whose clinical attributes match all filters, e.g.
+     * [{"attribute": "CANCER_TYPE", "value": "BRCA"}, {"attribute": "TMB_NONSYNONYMOUS", "op": "gt", "value": "10"}].
+     * An invalid filter, like one on an unknown attribute, answers 422, as /mutations and /cna do.
+     */
+    @PostMapping("/clinical/{folderName}/query")
+    public ResponseEntity<ClinicalQueryResult> queryClinicalAttributes(@PathVariable String folderName,
+                                                                       @RequestBody List<ClinicalFilter> filters,
+                                                                       HttpSession session) {
+        String userId = getUserIdFromSession(session);
+        ClinicalQueryResult result;
+        try {
+            result = clinicalIndexService.query(userId, folderName, filters);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(HttpStatus.UNPROCESSABLE_ENTITY);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+        if (result == null) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return new ResponseEntity<>(result, HttpStatus.OK);
+    }
+
+    /*
+     * The samples with a mutation in a gene, e.g. ?gene=KRAS, or with a protein change in it, e.g.
+     * ?gene=KRAS&proteinChange=G12D; a position alone, like G12, matches every change at it.
+     */
+    @GetMapping("/mutations/{folderName}")
+    public ResponseEntity<MutationQueryResult> queryMutations(@PathVariable String folderName,
+                                                              @RequestParam("gene") String gene,
+                                                              @RequestParam(value = "proteinChange", required = false)
+                                                                      String proteinChange,
+                                                              HttpSession session) {
+        String userId = getUserIdFromSession(session);
+        MutationQueryResult result;
+        try {
+            result = mutationIndexService.query(userId, folderName, gene, proteinChange);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(HttpStatus.UNPROCESSABLE_ENTITY);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+        if (result == null) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return new ResponseEntity<>(result, HttpStatus.OK);
+    }
+
+    /*
+     * The messages of the last validation of the study, one record each with level, file, line, column, message
+     * and value, filtered by level and file, e.g. ?level=ERROR&file=data_mutations.txt; file= with no name selects
+     * the messages about the study itself. The counts are per file and level over all messages. Pass the
+     * nextCursor of a page as cursor to get the next one; messages of a validation that is still running show up
+     * as they are written.
+     */
+    @GetMapping("/validate/{folderName}/messages")
+    public ResponseEntity<StreamingResponseBody> getValidationMessages(
+            @PathVariable String folderName,
+            @RequestParam(value = "level", required = false) Set<String> levels,
+            @RequestParam(value = "file", required = false) Set<String> files,
+            @RequestParam(value = "cursor", required = false) String cursor,
+            @RequestParam(value = "limit", defaultValue = "100") int limit,
+            HttpSession session) {
+        String userId = getUserIdFromSession(session);
+        int from;
+        try {
+            from = cursor == null ? 0
+                    : Integer.parseInt(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        if (limit < 1 || limit > MAX_LISTING_LIMIT) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        if (files != null && files.isEmpty()) {
+            // file= arrives as an empty list
+            files = Collections.singleton("");
+        }
+        ValidationMessagePage page;
+        try {
+            page = validationMessageService.getMessages(userId, folderName, levels, files, from, limit);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+        if (page == null) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        StreamingResponseBody body = out -> {
+            try (JsonGenerator json = objectMapper.getFactory().createGenerator(out)) {
+                json.writeStartObject();
+                json.writeArrayFieldStart("messages");
+                page.writeMessages(json);
+                json.writeEndArray();
+                json.writeNumberField("total", page.getTotal());
+                json.writeObjectField("counts", page.getCounts());
+                Integer next = page.getNext();
+                json.writeStringField("nextCursor", next == null ? null : Base64.getUrlEncoder().withoutPadding()
+                        .encodeToString(next.toString().getBytes(StandardCharsets.UTF_8)));
+                json.writeEndObject();
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+    }
+
+    /*
+     * Queue a validation of the folder in the background; the job can be polled, followed as a stream of
+     * Server-Sent Events, or cancelled. Answers 503 while the validation queue is full.
+     */
+    @PostMapping("/validate/{folderName}/jobs")
+    public ResponseEntity<ValidationJob> submitValidation(@PathVariable String folderName, HttpSession session) {
+        String userId = getUserIdFromSession(session);
+
+        try {
+            ValidationJob job = validationJobService.submit(userId, folderName);
+            if (job == null) {
+                return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+            }
+            return new ResponseEntity<>(job, HttpStatus.ACCEPTED);
+        } catch (RejectedExecutionException e) {
+            return new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE);
+        }
+    }
+
+    @GetMapping("/validate/jobs/{jobId}")
+    public ResponseEntity<ValidationJob> getValidationJob(@PathVariable String jobId, HttpSession session) {
+        String userId = getUserIdFromSession(session);
+
+        ValidationJob job = validationJobService.getJob(userId, jobId);
+        if (job == null) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return new ResponseEntity<>(job, HttpStatus.OK);
+    }
+
+    @GetMapping(value = "/validate/jobs/{jobId}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> getValidationEvents(@PathVariable String jobId, HttpSession session) {
+        String userId = getUserIdFromSession(session);
+
+        SseEmitter emitter = validationJobService.subscribe(userId, jobId);
+        if (emitter == null) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return new ResponseEntity<>(emitter, HttpStatus.OK);
+    }
+
+    @DeleteMapping("/validate/jobs/{jobId}")
+    public ResponseEntity<ValidationJob> cancelValidationJob(@PathVariable String jobId, HttpSession session) {
+        String userId = getUserIdFromSession(session);
+
+        ValidationJob job = validationJobService.cancel(userId, jobId);
+        if (job == null) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return new ResponseEntity<>(job, HttpStatus.OK);
+    }
+
+    /*
+     * Latency, CPU time and memory of the recent importer script runs, and how many run and wait right now.
+     */
+    @GetMapping("/processes/metrics")
+    public ResponseEntity<ProcessMetrics> getProcessMetrics() {
+        return new ResponseEntity<>(processRunner.getMetrics(), HttpStatus.OK);
+    }
+
     @GetMapping("/create/{folderName}")
     public ResponseEntity<String> getCreateCsv(@PathVariable String folderName, HttpSession session) {
         String userId = getUserIdFromSession(session);
@@ -104,55 +570,263 @@ public class FileController {
         System.out.printf("Entered delete function in FileController"+ userId );
         storageService.deleteFiles(userId+"/"+folderName);
         storageService.deleteFiles(userId+"/"+folderName+".tar.gz");
+        storageService.deleteFiles(userId+"/"+folderName+".zip");
         return ResponseEntity.status(HttpStatus.OK).body("Deleted all files");
     }
 
 
+    /*
+     * The clinical.csv made by /create/{folderName}; see FileResponses for the caching and Range headers.
+     */
     @GetMapping("/download/{folderName}")
-    public ResponseEntity<byte[]> downloadCsv(@PathVariable String folderName, HttpSession session) {
+    public void downloadCsv(@PathVariable String folderName, HttpServletRequest request, HttpServletResponse response,
+                            HttpSession session) throws IOException {
         String userId = getUserIdFromSession(session);
-        System.out.println("Reached the downloadCsv function"+ folderName);
-        byte[] bytes = storageService.downloadCsv(userId, folderName);
-        String content = new String(bytes);
-        System.out.println("Bytes Stream"+ content);
-        if (bytes != null) {
-            return ResponseEntity.ok().body(bytes);
-        } else {
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        Path csv;
+        try {
+            csv = storageService.getClinicalCsvFile(userId, folderName);
+        } catch (FileNotFoundException e) {
+            response.sendError(HttpStatus.NOT_FOUND.value());
+            return;
         }
+        FileResponses.serve(csv, new MediaType("text", "csv", StandardCharsets.UTF_8),
+                ContentDisposition.attachment().filename("clinical.csv").build(), request, response);
     }
 
-
-    @GetMapping("/validation-report-blob/{folderName}")
-    public ResponseEntity<byte[]> getReportAsBlob(@PathVariable String folderName, HttpSession session) {
+    /*
+     * Merges the clinical files into clinical.csv straight into the response, without creating and downloading it
+     * in two requests. Rows are written while they are joined and the response is chunked, gzip-compressed when
+     * the client accepts it.
+     */
+    @GetMapping("/export/{folderName}")
+    public ResponseEntity<StreamingResponseBody> exportCsv(@PathVariable String folderName,
+                                                           @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING,
+                                                                   required = false) String acceptEncoding,
+                                                           HttpSession session) {
         String userId = getUserIdFromSession(session);
-        byte[] bytes = null;
+        ClinicalCsvMerger.Merge merge;
         try {
-            bytes = storageService.getReport(userId, folderName);
-        } catch (FileNotFoundException e) {
+            merge = storageService.prepareClinicalExport(userId, folderName);
+        } catch (NoSuchFileException e) {
             return new ResponseEntity<>(HttpStatus.NOT_FOUND);
-        }
-        if (bytes != null) {
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.TEXT_HTML);
-            headers.setContentDispositionFormData("inline", "validated_study.html");
-            headers.setContentLength(bytes.length);
-            return new ResponseEntity<>(bytes, headers, HttpStatus.OK);
-        } else {
+        } catch (IllegalArgumentException e) {
+            byte[] message = e.getMessage().getBytes(StandardCharsets.UTF_8);
+            return ResponseEntity.unprocessableEntity().contentType(MediaType.TEXT_PLAIN)
+                    .body(out -> out.write(message));
+        } catch (IOException e) {
+            e.printStackTrace();
             return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
         }
+        if (merge == null) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return csvResponse(new HttpHeaders(), acceptEncoding, out -> merge.writeTo(
+                new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024)));
     }
 
-    @GetMapping("/validation-report-html/{folderName}")
-    public ResponseEntity<String> getReportAsHtml(@PathVariable String folderName, HttpSession session) {
+    /*
+     * The clinical.csv rows of all studies of the user under one header, merged in parallel. Studies that cannot be
+     * exported are left out and listed in the X-Failed-Studies header.
+     */
+    @GetMapping("/export")
+    public ResponseEntity<StreamingResponseBody> exportAllCsv(@RequestHeader(value = HttpHeaders.ACCEPT_ENCODING,
+                                                                      required = false) String acceptEncoding,
+                                                              HttpSession session) {
         String userId = getUserIdFromSession(session);
+        ClinicalExportService.BatchExport export;
+        try {
+            export = clinicalExportService.exportAll(userId);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE);
+        }
+        HttpHeaders headers = new HttpHeaders();
+        if (!export.getFailures().isEmpty()) {
+            headers.set("X-Failed-Studies", String.join(",", export.getFailures().keySet()));
+        }
+        return csvResponse(headers, acceptEncoding, export::writeTo);
+    }
+
+    /*
+     * A slice of the discrete CNA matrix of a study, as tab separated text in the layout of data_cna.txt: the rows of
+     * the genes, e.g. ?genes=KRAS,TP53, and the columns of the samples, all of them when a list is left out. Ids
+     * that are not in the matrix are counted in the X-Unknown-Genes-Count and X-Unknown-Samples-Count headers and
+     * listed in X-Unknown-Genes and X-Unknown-Samples, as many as fit into 2048 characters each.
+     */
+    @GetMapping("/cna/{folderName}")
+    public ResponseEntity<StreamingResponseBody> getCnaSlice(@PathVariable String folderName,
+                                                             @RequestParam(value = "genes", required = false)
+                                                                     List<String> genes,
+                                                             @RequestParam(value = "samples", required = false)
+                                                                     List<String> samples,
+                                                             @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING,
+                                                                     required = false) String acceptEncoding,
+                                                             HttpSession session) {
+        return cnaResponse(getUserIdFromSession(session), folderName, genes, samples, acceptEncoding);
+    }
 
-        String htmlContent = storageService.getReportAsString(userId, folderName);
-        if (htmlContent == null) {
+    /*
+     * The same slice for gene and sample lists too long for a query string.
+     */
+    @PostMapping("/cna/{folderName}")
+    public ResponseEntity<StreamingResponseBody> postCnaSlice(@PathVariable String folderName,
+                                                              @RequestBody CnaSliceRequest request,
+                                                              @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING,
+                                                                      required = false) String acceptEncoding,
+                                                              HttpSession session) {
+        return cnaResponse(getUserIdFromSession(session), folderName, request.getGenes(), request.getSamples(),
+                acceptEncoding);
+    }
+
+    private ResponseEntity<StreamingResponseBody> cnaResponse(String userId, String folderName, List<String> genes,
+                                                              List<String> samples, String acceptEncoding) {
+        CnaSlice slice;
+        try {
+            slice = cnaMatrixService.slice(userId, folderName, genes, samples);
+        } catch (IllegalArgumentException e) {
+            byte[] message = e.getMessage().getBytes(StandardCharsets.UTF_8);
+            return ResponseEntity.unprocessableEntity().contentType(MediaType.TEXT_PLAIN)
+                    .body(out -> out.write(message));
+        } catch (IOException e) {
+            e.printStackTrace();
             return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
-        } else {
-            return new ResponseEntity<>(htmlContent, HttpStatus.OK);
         }
+        if (slice == null) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        HttpHeaders headers = new HttpHeaders();
+        setIdHeaders(headers, "X-Unknown-Genes", slice.getUnknownGenes());
+        setIdHeaders(headers, "X-Unknown-Samples", slice.getUnknownSamples());
+        headers.setContentType(new MediaType("text", "tab-separated-values", StandardCharsets.UTF_8));
+        return encodedResponse(headers, acceptEncoding, slice::writeTo);
+    }
+
+    /*
+     * Lists the ids in the header, the first ones only when they do not fit, and their number in <name>-Count; a
+     * POST may bring more unknown ids than a response header can hold.
+     */
+    private static void setIdHeaders(HttpHeaders headers, String name, List<String> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        StringBuilder listed = new StringBuilder();
+        for (String id : ids) {
+            if (listed.length() + 1 + id.length() > MAX_ID_HEADER_LENGTH) {
+                break;
+            }
+            if (listed.length() > 0) {
+                listed.append(',');
+            }
+            listed.append(id);
+        }
+        headers.set(name, listed.toString());
+        headers.set(name + "-Count", Integer.toString(ids.size()));
+    }
+
+    /*
+     * A clinical.csv download, gzip-compressed when the client accepts it.
+     */
+    private static ResponseEntity<StreamingResponseBody> csvResponse(HttpHeaders headers, String acceptEncoding,
+                                                                     StreamingResponseBody csv) {
+        headers.setContentType(new MediaType("text", "csv", StandardCharsets.UTF_8));
+        headers.setContentDisposition(ContentDisposition.attachment().filename("clinical.csv").build());
+        return encodedResponse(headers, acceptEncoding, csv);
+    }
+
+    /*
+     * A chunked download, gzip-compressed when the client accepts it.
+     */
+    private static ResponseEntity<StreamingResponseBody> encodedResponse(HttpHeaders headers, String acceptEncoding,
+                                                                         StreamingResponseBody content) {
+        boolean gzip = acceptsGzip(acceptEncoding);
+        StreamingResponseBody body = out -> {
+            if (gzip) {
+                GZIPOutputStream compressed = new GZIPOutputStream(out, 64 * 1024);
+                content.writeTo(compressed);
+                compressed.finish();
+            } else {
+                content.writeTo(out);
+            }
+        };
+        headers.setVary(Collections.singletonList(HttpHeaders.ACCEPT_ENCODING));
+        if (gzip) {
+            headers.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        return new ResponseEntity<>(body, headers, HttpStatus.OK);
+    }
+
+    /*
+     * Whether an Accept-Encoding header allows gzip with a quality above zero; * counts unless gzip is listed itself.
+     */
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        double gzip = -1;
+        double any = -1;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            String name = parts[0].trim();
+            if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip")) {
+                gzip = quality;
+            } else if (name.equals("*")) {
+                any = quality;
+            }
+        }
+        return gzip >= 0 ? gzip > 0 : any > 0;
+    }
+
+
+    /*
+     * The validation report of the study, served from disk with ETag, conditional GET and Range support. Clients
+     * that accept gzip get validated_study.html.gz, kept next to the report, as is.
+     */
+    @GetMapping("/validation-report-blob/{folderName}")
+    public void getReportAsBlob(@PathVariable String folderName,
+                                @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false)
+                                        String acceptEncoding,
+                                HttpServletRequest request, HttpServletResponse response, HttpSession session)
+            throws IOException {
+        serveReport(folderName, ContentDisposition.inline().filename("validated_study.html").build(), acceptEncoding,
+                request, response, session);
+    }
+
+    @GetMapping("/validation-report-html/{folderName}")
+    public void getReportAsHtml(@PathVariable String folderName,
+                                @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false)
+                                        String acceptEncoding,
+                                HttpServletRequest request, HttpServletResponse response, HttpSession session)
+            throws IOException {
+        serveReport(folderName, null, acceptEncoding, request, response, session);
+    }
+
+    private void serveReport(String folderName, ContentDisposition disposition, String acceptEncoding,
+                             HttpServletRequest request, HttpServletResponse response, HttpSession session)
+            throws IOException {
+        String userId = getUserIdFromSession(session);
+        boolean gzip = acceptsGzip(acceptEncoding);
+        Path report;
+        try {
+            report = gzip ? storageService.getCompressedReportFile(userId, folderName)
+                    : storageService.getReportFile(userId, folderName);
+        } catch (FileNotFoundException e) {
+            response.sendError(HttpStatus.NOT_FOUND.value());
+            return;
+        }
+        response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        FileResponses.serve(report, new MediaType("text", "html", StandardCharsets.UTF_8), disposition,
+                gzip ? "gzip" : null, request, response);
     }
 
     @DeleteMapping("/files")
@@ -163,6 +837,14 @@ public class FileController {
         return ResponseEntity.status(HttpStatus.OK).body("Deleted all files");
     }
 
+    /*
+     * Listings are tagged with the version of the user's catalog; Spring answers a matching If-None-Match with
+     * 304 Not Modified. The version is read before the listing, so a tag is never newer than its content.
+     */
+    private String getListingETag(String userId) {
+        return "\"" + storageService.getListingVersion(userId) + "\"";
+    }
+
     private String getUserIdFromSession(HttpSession session) {
 //        String userId = (String) session.getAttribute("userId");
 //        if (userId == null) {
@@ -22,6 +22,9 @@ public class WebConfig implements WebMvcConfigurer {
                 .allowedOrigins("http://localhost:3030", "https://lively-conkies-f524f4.netlify.app/")
                 .allowedMethods("GET", "POST", "PUT", "DELETE", "OPTIONS")
                 .allowedHeaders("*")
+                .exposedHeaders("X-Archive-Format", "X-Extraction-Millis", "ETag", "Last-Modified", "Content-Range",
+                        "Accept-Ranges", "X-Unknown-Genes", "X-Unknown-Genes-Count", "X-Unknown-Samples",
+                        "X-Unknown-Samples-Count")
                 .allowCredentials(true);
     }
    
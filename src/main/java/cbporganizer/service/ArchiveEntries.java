@@ -0,0 +1,25 @@
+package cbporganizer.service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/*
+ * Helpers shared by the archive extraction paths.
+ */
+final class ArchiveEntries {
+
+    private ArchiveEntries() {
+    }
+
+    /*
+     * Resolves an archive entry below the target directory, rejecting entries that would escape it.
+     */
+    static Path resolve(Path targetDir, String entryName) throws IOException {
+        Path base = targetDir.toAbsolutePath().normalize();
+        Path target = base.resolve(entryName).normalize();
+        if (!target.startsWith(base)) {
+            throw new IOException("Archive entry is outside of the target directory: " + entryName);
+        }
+        return target;
+    }
+}
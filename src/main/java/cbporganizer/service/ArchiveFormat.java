@@ -0,0 +1,55 @@
+package cbporganizer.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/*
+ * Archive formats accepted for study uploads, detected from the leading magic bytes rather than the file name.
+ */
+enum ArchiveFormat {
+
+    TAR_GZ("tar.gz"),
+    ZIP("zip");
+
+    static final int MAGIC_LENGTH = 4;
+
+    private final String name;
+
+    ArchiveFormat(String name) {
+        this.name = name;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    static ArchiveFormat detect(byte[] magic, int length) {
+        if (length >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+            return TAR_GZ;
+        }
+        // local file header, or the end of central directory record of an empty zip
+        if (length >= 4 && magic[0] == 'P' && magic[1] == 'K'
+                && ((magic[2] == 3 && magic[3] == 4) || (magic[2] == 5 && magic[3] == 6))) {
+            return ZIP;
+        }
+        return null;
+    }
+
+    static ArchiveFormat detect(Path file) throws IOException {
+        byte[] magic = new byte[MAGIC_LENGTH];
+        try (InputStream in = Files.newInputStream(file)) {
+            return detect(magic, readFully(in, magic));
+        }
+    }
+
+    static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        int len;
+        while (total < buffer.length && (len = in.read(buffer, total, buffer.length - total)) > 0) {
+            total += len;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,77 @@
+package cbporganizer.service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/*
+ * Counts the raw archive bytes read from the request and optionally copies them to a retained archive file.
+ */
+class ArchiveTeeInputStream extends FilterInputStream {
+
+    private final OutputStream copy;
+    private long count;
+
+    ArchiveTeeInputStream(InputStream in, OutputStream copy) {
+        super(in);
+        this.copy = copy;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            count++;
+            if (copy != null) {
+                copy.write(b);
+            }
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+            count += n;
+            if (copy != null) {
+                copy.write(b, off, n);
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // skipped bytes still have to reach the archive copy
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (read < 0) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /*
+     * Reads whatever is left of the request body (gzip trailer, tar padding) so the copy is complete.
+     */
+    void drain(byte[] buffer) throws IOException {
+        while (read(buffer, 0, buffer.length) >= 0) {
+            // discard
+        }
+    }
+
+    long getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,187 @@
+package cbporganizer.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.UUID;
+
+/*
+ * Content-addressed store for extracted study files under cbpFiles/.blobs/<first two hex digits>/<sha256>.
+ *
+ * A file is staged in .blobs/tmp while its hash is computed. If a blob with that hash already exists the staged
+ * copy is dropped (usually before the page cache ever writes it back), otherwise it becomes the blob. The study
+ * folders then get a hard link to the blob, so identical files across users, studies and study versions share one
+ * inode. The link count of a blob is its reference count: a blob whose count drops to 1 is only referenced by the
+ * store itself and is freed.
+ *
+ * Sharing the inode also shares its modification time, so a study file reports when its content was first stored,
+ * possibly by another study or user, rather than when it was uploaded to this study; uploading an unchanged file
+ * again keeps the old date. That is the lastModified of the listings and the manifest and the Last-Modified of served
+ * files. It still changes whenever the content does, which is all the catalog, the manifest and the study indexes
+ * rely on.
+ *
+ * Hard link support is probed at startup; if the file system has none, the store reports itself unavailable and
+ * callers fall back to plain copies.
+ */
+@Component
+public class BlobStore implements EntryStore {
+
+    private final Path blobRoot = FilesStorageServiceImpl.STORAGE_ROOT.resolve(".blobs");
+    private final Path tmpDir = blobRoot.resolve("tmp");
+
+    @Value("${cbporganizer.storage.dedup:true}")
+    private boolean enabled = true;
+
+    private final Object[] locks = new Object[256];
+    private volatile Boolean available;
+
+    public BlobStore() {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    public boolean isAvailable() {
+        if (available == null) {
+            synchronized (this) {
+                if (available == null) {
+                    available = enabled && probeHardLinks();
+                }
+            }
+        }
+        return available;
+    }
+
+    @Override
+    public Path stage(Path target) throws IOException {
+        Files.createDirectories(tmpDir);
+        return Files.createTempFile(tmpDir, "blob-", ".tmp");
+    }
+
+    @Override
+    public void commit(Path staged, Path target, String sha256) throws IOException {
+        Path blob = getBlobPath(sha256);
+        // link under a temporary name and rename over the target, so the target is replaced atomically
+        Path link = target.resolveSibling(".link-" + UUID.randomUUID() + ".tmp");
+        synchronized (lockFor(sha256)) {
+            if (Files.exists(blob)) {
+                Files.delete(staged);
+            } else {
+                Files.createDirectories(blob.getParent());
+                try {
+                    Files.move(staged, blob, StandardCopyOption.ATOMIC_MOVE);
+                } catch (FileAlreadyExistsException e) {
+                    Files.delete(staged);
+                }
+            }
+            // the blob cannot be released while it is only referenced by the store
+            Files.createLink(link, blob);
+        }
+        Files.move(link, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // renaming a link over another link to the same inode does nothing, e.g. when an unchanged file is uploaded again
+        Files.deleteIfExists(link);
+    }
+
+    @Override
+    public void discard(Path staged) {
+        try {
+            Files.deleteIfExists(staged);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * Frees the given blobs if no study file links to them anymore.
+     */
+    public void release(Collection<String> hashes) {
+        if (!isAvailable()) {
+            return;
+        }
+        for (String sha256 : hashes) {
+            try {
+                releaseIfUnreferenced(sha256);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /*
+     * Frees every unreferenced blob and leftover staging files, e.g. after files were removed outside the app.
+     * Only called at startup, before any upload could be staging a file.
+     */
+    public void sweep() {
+        if (!isAvailable() || !Files.isDirectory(blobRoot)) {
+            return;
+        }
+        try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(blobRoot)) {
+            for (Path prefix : prefixes) {
+                if (!Files.isDirectory(prefix)) {
+                    continue;
+                }
+                try (DirectoryStream<Path> blobs = Files.newDirectoryStream(prefix)) {
+                    for (Path blob : blobs) {
+                        if (prefix.equals(tmpDir)) {
+                            Files.deleteIfExists(blob);
+                        } else {
+                            releaseIfUnreferenced(blob.getFileName().toString());
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void releaseIfUnreferenced(String sha256) throws IOException {
+        Path blob = getBlobPath(sha256);
+        synchronized (lockFor(sha256)) {
+            if (Files.exists(blob) && ((Number) Files.getAttribute(blob, "unix:nlink")).intValue() <= 1) {
+                Files.deleteIfExists(blob);
+            }
+        }
+    }
+
+    private Object lockFor(String sha256) {
+        return locks[Integer.parseInt(sha256.substring(0, 2), 16)];
+    }
+
+    private Path getBlobPath(String sha256) {
+        return blobRoot.resolve(sha256.substring(0, 2)).resolve(sha256);
+    }
+
+    private boolean probeHardLinks() {
+        Path probe = null;
+        Path link = null;
+        try {
+            Files.createDirectories(tmpDir);
+            probe = Files.createTempFile(tmpDir, "probe-", ".tmp");
+            link = tmpDir.resolve(probe.getFileName() + ".link");
+            Files.createLink(link, probe);
+            return ((Number) Files.getAttribute(probe, "unix:nlink")).intValue() == 2;
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            System.out.println("Deduplicated storage is not available: " + e);
+            return false;
+        } finally {
+            try {
+                if (link != null) {
+                    Files.deleteIfExists(link);
+                }
+                if (probe != null) {
+                    Files.deleteIfExists(probe);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
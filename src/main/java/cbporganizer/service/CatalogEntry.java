@@ -0,0 +1,69 @@
+package cbporganizer.service;
+
+/*
+ * A file known to the study catalog, with the metadata the listings need.
+ */
+public class CatalogEntry {
+
+    private final String name;
+    private final String path;
+    private final long size;
+    private final long lastModified;
+    private final String type;
+
+    public CatalogEntry(String name, String path, long size, long lastModified, String type) {
+        this.name = name;
+        this.path = path;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.type = type;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /*
+     * Path relative to the user's directory, with '/' separators.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /*
+     * Coarse kind of file: meta, data, case_list, archive, report, csv or other.
+     */
+    public String getType() {
+        return type;
+    }
+
+    static String typeOf(String path, String name) {
+        if (name.endsWith(".tar.gz") || name.endsWith(".tgz") || name.endsWith(".zip")) {
+            return "archive";
+        }
+        if (path.contains("/case_lists/")) {
+            return "case_list";
+        }
+        if (name.startsWith("meta_")) {
+            return "meta";
+        }
+        if (name.startsWith("data_")) {
+            return "data";
+        }
+        if (name.startsWith("validated_study") || name.equals("errorOut.txt")) {
+            return "report";
+        }
+        if (name.endsWith(".csv")) {
+            return "csv";
+        }
+        return "other";
+    }
+}
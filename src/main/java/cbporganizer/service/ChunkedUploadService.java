@@ -0,0 +1,410 @@
+package cbporganizer.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Resumable uploads of large study archives in independently retried chunks.
+ *
+ * Each upload is a preallocated file under cbpFiles/.uploads/<user>/<uploadId>.part; chunks are written at their
+ * offset with positional FileChannel writes, so they may arrive in any order and in parallel. The received ranges
+ * are kept next to the part file, so an upload can also be resumed after a restart. On completion the archive is
+ * handed to the regular extraction path.
+ *
+ * The declared size is capped by cbporganizer.upload.max-bytes, and an upload that receives nothing for
+ * cbporganizer.upload.expire-hours is removed. Chunks of one upload are written in parallel under a shared lock;
+ * completing, aborting and expiring it take the lock exclusively, so no chunk is written into an archive that is
+ * being extracted or deleted.
+ */
+@Service
+public class ChunkedUploadService {
+
+    private static final int COPY_BUFFER_SIZE = 256 * 1024;
+    private static final long SWEEP_INTERVAL_MINUTES = 10;
+
+    @Autowired
+    private FilesStorageService storageService;
+
+    @Value("${cbporganizer.upload.max-bytes:2147483648}")
+    private long maxBytes;
+
+    @Value("${cbporganizer.upload.expire-hours:24}")
+    private long expireHours;
+
+    private final Path uploadRoot = FilesStorageServiceImpl.STORAGE_ROOT.resolve(".uploads");
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private ScheduledExecutorService sweeper;
+
+    @PostConstruct
+    public void start() {
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "upload-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(this::removeExpired, 0, SWEEP_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    public void stop() {
+        sweeper.shutdownNow();
+    }
+
+    public UploadStatus initiate(String userId, String fileName, long totalSize) {
+        if (totalSize < 0) {
+            throw new IllegalArgumentException("Upload size must not be negative");
+        }
+        if (totalSize > maxBytes) {
+            throw new IllegalArgumentException("Upload size " + totalSize + " exceeds the limit of " + maxBytes
+                    + " bytes");
+        }
+        String name = Paths.get(fileName).getFileName().toString();
+        String uploadId = UUID.randomUUID().toString();
+        Upload upload = new Upload(uploadId, name, totalSize, getUserUploadPath(userId));
+        try {
+            Files.createDirectories(upload.dir);
+            try (RandomAccessFile file = new RandomAccessFile(upload.partFile().toFile(), "rw")) {
+                file.setLength(totalSize);
+            }
+            upload.persist();
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Could not initialize the upload!");
+        }
+        uploads.put(key(userId, uploadId), upload);
+        return upload.status();
+    }
+
+    /*
+     * Writes one chunk at the given offset and returns the updated status, or null if the upload is unknown.
+     */
+    public UploadStatus writeChunk(String userId, String uploadId, long offset, InputStream in) {
+        Upload upload = getUpload(userId, uploadId);
+        if (upload == null) {
+            return null;
+        }
+        if (offset < 0 || offset > upload.totalSize) {
+            throw new IllegalArgumentException("Offset " + offset + " is outside of the upload");
+        }
+        upload.lock.readLock().lock();
+        try {
+            // completed, aborted or expired while this chunk waited for the lock
+            if (upload.closed) {
+                return null;
+            }
+            return write(upload, offset, in);
+        } finally {
+            upload.lock.readLock().unlock();
+        }
+    }
+
+    private UploadStatus write(Upload upload, long offset, InputStream in) {
+        long position = offset;
+        try (FileChannel channel = FileChannel.open(upload.partFile(), StandardOpenOption.WRITE)) {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buffer)) > 0) {
+                if (position + len > upload.totalSize) {
+                    throw new IllegalArgumentException("Chunk extends past the declared upload size");
+                }
+                ByteBuffer bb = ByteBuffer.wrap(buffer, 0, len);
+                while (bb.hasRemaining()) {
+                    position += channel.write(bb, position);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            // whatever reached the disk counts, so a dropped connection only costs the rest of the chunk
+            if (position > offset) {
+                upload.addRange(offset, position);
+            }
+        }
+        return upload.status();
+    }
+
+    public UploadStatus getStatus(String userId, String uploadId) {
+        Upload upload = getUpload(userId, uploadId);
+        return upload == null ? null : upload.status();
+    }
+
+    /*
+     * Extracts the fully received archive through the storage service, or returns null if the upload is unknown.
+     * When the extraction fails before the archive left the upload, the upload stays and may be completed again;
+     * otherwise its state is removed with it.
+     */
+    public ExtractionResult complete(String userId, String uploadId) {
+        Upload upload = getUpload(userId, uploadId);
+        if (upload == null) {
+            return null;
+        }
+        upload.lock.writeLock().lock();
+        try {
+            if (upload.closed) {
+                return null;
+            }
+            if (!upload.status().isComplete()) {
+                throw new IllegalStateException("Upload " + uploadId + " is missing "
+                        + (upload.totalSize - upload.receivedBytes()) + " bytes");
+            }
+            try {
+                return storageService.saveArchive(upload.partFile(), upload.fileName, userId);
+            } finally {
+                if (!Files.exists(upload.partFile())) {
+                    close(userId, upload);
+                }
+            }
+        } finally {
+            upload.lock.writeLock().unlock();
+        }
+    }
+
+    public boolean abort(String userId, String uploadId) {
+        Upload upload = getUpload(userId, uploadId);
+        if (upload == null) {
+            return false;
+        }
+        upload.lock.writeLock().lock();
+        try {
+            if (upload.closed) {
+                return false;
+            }
+            close(userId, upload);
+            return true;
+        } finally {
+            upload.lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Forgets the upload and deletes its files; called with its write lock held.
+     */
+    private void close(String userId, Upload upload) {
+        upload.closed = true;
+        uploads.remove(key(userId, upload.uploadId), upload);
+        upload.delete();
+    }
+
+    /*
+     * Removes the uploads of every user that received nothing for the expiry time, judged by their state file,
+     * which is rewritten with every chunk, and any of their files left on their own.
+     */
+    private void removeExpired() {
+        long expiredBefore = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(expireHours);
+        if (!Files.isDirectory(uploadRoot)) {
+            return;
+        }
+        try (DirectoryStream<Path> users = Files.newDirectoryStream(uploadRoot, Files::isDirectory)) {
+            for (Path userDir : users) {
+                String userId = userDir.getFileName().toString();
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(userDir)) {
+                    for (Path file : files) {
+                        if (isOlder(file, expiredBefore)) {
+                            removeExpired(userId, file, expiredBefore);
+                        }
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void removeExpired(String userId, Path file, long expiredBefore) throws IOException {
+        String name = file.getFileName().toString();
+        String uploadId = name.substring(0, Math.max(name.indexOf('.'), 0));
+        Upload upload = getUpload(userId, uploadId);
+        if (upload == null) {
+            // a part or state file without the other, or a state file left half written
+            if (name.endsWith(".part") || name.endsWith(".properties") || name.endsWith(".tmp")) {
+                System.out.println("Removing the abandoned upload file " + file);
+                Files.deleteIfExists(file);
+            }
+            return;
+        }
+        if (!name.endsWith(".properties")) {
+            return;
+        }
+        upload.lock.writeLock().lock();
+        try {
+            // a chunk may have arrived while the lock was awaited
+            if (!upload.closed && isOlder(upload.stateFile(), expiredBefore)) {
+                System.out.println("Removing the expired upload " + userId + "/" + uploadId);
+                close(userId, upload);
+            }
+        } finally {
+            upload.lock.writeLock().unlock();
+        }
+    }
+
+    private static boolean isOlder(Path file, long millis) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis() < millis;
+        } catch (IOException e) {
+            // removed meanwhile
+            return false;
+        }
+    }
+
+    private Upload getUpload(String userId, String uploadId) {
+        try {
+            UUID.fromString(uploadId);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return uploads.computeIfAbsent(key(userId, uploadId),
+                k -> Upload.load(uploadId, getUserUploadPath(userId)));
+    }
+
+    private Path getUserUploadPath(String userId) {
+        return uploadRoot.resolve(userId);
+    }
+
+    private static String key(String userId, String uploadId) {
+        return userId + "/" + uploadId;
+    }
+
+    /*
+     * One upload in progress with its merged received ranges.
+     */
+    private static final class Upload {
+        final String uploadId;
+        final String fileName;
+        final long totalSize;
+        final Path dir;
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+        volatile boolean closed;
+        private final TreeMap<Long, Long> ranges = new TreeMap<>();
+
+        Upload(String uploadId, String fileName, long totalSize, Path dir) {
+            this.uploadId = uploadId;
+            this.fileName = fileName;
+            this.totalSize = totalSize;
+            this.dir = dir;
+        }
+
+        Path partFile() {
+            return dir.resolve(uploadId + ".part");
+        }
+
+        Path stateFile() {
+            return dir.resolve(uploadId + ".properties");
+        }
+
+        synchronized void addRange(long start, long end) {
+            Map.Entry<Long, Long> before = ranges.floorEntry(start);
+            if (before != null && before.getValue() >= start) {
+                start = before.getKey();
+                end = Math.max(end, before.getValue());
+            }
+            Map.Entry<Long, Long> next;
+            while ((next = ranges.ceilingEntry(start)) != null && next.getKey() <= end) {
+                end = Math.max(end, next.getValue());
+                ranges.remove(next.getKey());
+            }
+            ranges.put(start, end);
+            try {
+                persist();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        synchronized long receivedBytes() {
+            long total = 0;
+            for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+                total += range.getValue() - range.getKey();
+            }
+            return total;
+        }
+
+        synchronized UploadStatus status() {
+            List<long[]> received = new ArrayList<>();
+            for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+                received.add(new long[]{range.getKey(), range.getValue()});
+            }
+            return new UploadStatus(uploadId, fileName, totalSize, receivedBytes(), received);
+        }
+
+        synchronized void persist() throws IOException {
+            Properties state = new Properties();
+            state.setProperty("fileName", fileName);
+            state.setProperty("totalSize", Long.toString(totalSize));
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(range.getKey()).append('-').append(range.getValue());
+            }
+            state.setProperty("ranges", sb.toString());
+            Path tmp = dir.resolve(uploadId + ".properties.tmp");
+            try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                state.store(writer, null);
+            }
+            Files.move(tmp, stateFile(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        void delete() {
+            try {
+                Files.deleteIfExists(partFile());
+                Files.deleteIfExists(stateFile());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        static Upload load(String uploadId, Path dir) {
+            Path stateFile = dir.resolve(uploadId + ".properties");
+            if (!Files.exists(stateFile) || !Files.exists(dir.resolve(uploadId + ".part"))) {
+                return null;
+            }
+            Properties state = new Properties();
+            try (Reader reader = Files.newBufferedReader(stateFile, StandardCharsets.UTF_8)) {
+                state.load(reader);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+            Upload upload = new Upload(uploadId, state.getProperty("fileName"),
+                    Long.parseLong(state.getProperty("totalSize")), dir);
+            for (String range : state.getProperty("ranges", "").split(",")) {
+                if (!range.isEmpty()) {
+                    String[] bounds = range.split("-");
+                    upload.ranges.put(Long.parseLong(bounds[0]), Long.parseLong(bounds[1]));
+                }
+            }
+            return upload;
+        }
+    }
+}
@@ -0,0 +1,557 @@
+package cbporganizer.service;
+
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/*
+ * Writes clinical.csv for trial matching from the clinical sample and patient files, producing what
+ * prepare_clinical_data.py produces with pandas: the samples left-joined with their patients on PATIENT_ID, projected
+ * onto OUTPUT_COLUMNS, missing values written as NA and the study's identifier added as STUDY_ID.
+ *
+ * The patient file is loaded into a map from PATIENT_ID to the few patient columns the output needs; the sample file
+ * is streamed, so memory grows with the number of patients, not with the size of the files. Values are formatted
+ * the way pandas types them: a column whose values are all integers is written as integers, or as floats once it has
+ * a missing value; all-float columns as Python floats and all-boolean columns as True and False. As those types
+ * depend on the whole column, the sample file is read once to type its columns before it is joined.
+ */
+@Component
+public class ClinicalCsvMerger {
+
+    static final List<String> OUTPUT_COLUMNS = Arrays.asList(
+            "SAMPLE_ID",
+            "ONCOTREE_PRIMARY_DIAGNOSIS_NAME",
+            "CANCER_TYPE",
+            "GENDER",
+            "ETHNICITY",
+            "VITAL_STATUS",
+            "PATIENT_ID",
+            "TUMOR_MUTATIONAL_BURDEN_PER_MEGABASE",
+            "STUDY_ID");
+
+    // the merged columns the output columns are taken from, in OUTPUT_COLUMNS order; STUDY_ID is not a column
+    private static final List<String> SOURCE_COLUMNS = Arrays.asList(
+            "SAMPLE_ID", "CANCER_TYPE_DETAILED", "ONCOTREE_CODE", "SEX", "SEX", "OS_STATUS", "PATIENT_ID",
+            "TMB_NONSYNONYMOUS");
+
+    // the attribute definitions above the column header
+    private static final int SKIPPED_LINES = 4;
+
+    // what pandas.read_csv reads as a missing value by default
+    private static final Set<String> NA_VALUES = new HashSet<>(Arrays.asList(
+            "", "#N/A", "#N/A N/A", "#NA", "-1.#IND", "-1.#QNAN", "-NaN", "-nan", "1.#IND", "1.#QNAN", "<NA>", "N/A",
+            "NA", "NULL", "NaN", "None", "n/a", "nan", "null"));
+
+    private static final Pattern INTEGER = Pattern.compile("[+-]?[0-9]+");
+    private static final Pattern FLOAT = Pattern.compile(
+            "[+-]?([0-9]+\\.?[0-9]*|\\.[0-9]+)([eE][+-]?[0-9]+)?|[+-]?(?i:inf|infinity)");
+
+    private enum Type {
+        INTEGER, FLOAT, BOOLEAN, STRING
+    }
+
+    /*
+     * Checks the columns, loads the patients and types the columns, so that only writing the rows is left.
+     * Throws IllegalArgumentException when a column the output needs is missing or a row cannot be read.
+     */
+    public Merge prepare(Path sampleFile, Path patientFile, Path studyFile) throws IOException {
+        String studyId = readStudyId(studyFile);
+        String[] sampleHeader = readHeader(sampleFile);
+        String[] patientHeader = readHeader(patientFile);
+        List<String> sampleColumns = Arrays.asList(sampleHeader);
+        List<String> patientColumns = Arrays.asList(patientHeader);
+
+        // a column in both files gets a suffix in the merge, so neither can be selected by its name
+        int sampleKey = indexOf(sampleColumns, "PATIENT_ID", "the sample file");
+        int patientKey = indexOf(patientColumns, "PATIENT_ID", "the patient file");
+        if (!sampleColumns.contains("CANCER_TYPE") && !patientColumns.contains("CANCER_TYPE")
+                || sampleColumns.contains("CANCER_TYPE") && patientColumns.contains("CANCER_TYPE")) {
+            throw new IllegalArgumentException("Column CANCER_TYPE must be in exactly one of the clinical files");
+        }
+        int size = SOURCE_COLUMNS.size();
+        int[] sampleIndex = new int[size];
+        int[] patientIndex = new int[size];
+        List<Integer> patientSources = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            String column = SOURCE_COLUMNS.get(i);
+            sampleIndex[i] = sampleColumns.indexOf(column);
+            patientIndex[i] = -1;
+            if (column.equals("PATIENT_ID")) {
+                sampleIndex[i] = sampleKey;
+            } else if (column.equals("CANCER_TYPE_DETAILED")) {
+                indexOf(sampleColumns, column, "the sample file");
+            } else if (sampleIndex[i] >= 0 && patientColumns.contains(column)) {
+                throw new IllegalArgumentException("Column " + column + " is in both clinical files");
+            } else if (sampleIndex[i] < 0) {
+                patientIndex[i] = indexOf(patientColumns, column, "the clinical files");
+                if (!patientSources.contains(patientIndex[i])) {
+                    patientSources.add(patientIndex[i]);
+                }
+            }
+        }
+
+        // the patients, with only the columns the output takes from them
+        List<Integer> patientTyped = new ArrayList<>(patientSources);
+        patientTyped.add(patientKey);
+        ColumnTypes patientTypes = new ColumnTypes(patientHeader.length, patientTyped);
+        Map<String, String[]> patients = new HashMap<>();
+        Map<String, List<String[]>> repeatedPatients = new HashMap<>();
+        List<String[]> patientRows = new ArrayList<>();
+        try (TsvReader reader = new TsvReader(patientFile, patientHeader.length)) {
+            String[] row;
+            while ((row = reader.next()) != null) {
+                patientTypes.add(row);
+                String[] kept = new String[patientHeader.length];
+                kept[patientKey] = row[patientKey];
+                for (int index : patientSources) {
+                    kept[index] = row[index];
+                }
+                patientRows.add(kept);
+            }
+        }
+        List<Integer> sampleTyped = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            if (patientIndex[i] < 0) {
+                sampleTyped.add(sampleIndex[i]);
+            }
+        }
+        ColumnTypes sampleTypes = new ColumnTypes(sampleHeader.length, sampleTyped);
+        try (TsvReader reader = new TsvReader(sampleFile, sampleHeader.length)) {
+            String[] row;
+            while ((row = reader.next()) != null) {
+                sampleTypes.add(row);
+            }
+        }
+        Type sampleKeyType = sampleTypes.get(sampleKey);
+        Type patientKeyType = patientTypes.get(patientKey);
+        if (isNumeric(sampleKeyType) != isNumeric(patientKeyType)) {
+            throw new IllegalArgumentException("PATIENT_ID is numeric in one clinical file but not in the other");
+        }
+        for (String[] row : patientRows) {
+            String key = joinKey(row[patientKey], patientKeyType);
+            String[] first = patients.putIfAbsent(key, row);
+            if (first != null) {
+                repeatedPatients.computeIfAbsent(key, k -> new ArrayList<>(Collections.singletonList(first))).add(row);
+            }
+        }
+        patientRows = null;
+
+        // a sample without a patient gives the patient columns a missing value, which makes integers floats
+        boolean unmatched = false;
+        boolean patientIntegers = false;
+        for (int index : patientSources) {
+            patientIntegers |= patientTypes.get(index) == Type.INTEGER;
+        }
+        if (patientIntegers) {
+            try (TsvReader reader = new TsvReader(sampleFile, sampleHeader.length)) {
+                String[] row;
+                while (!unmatched && (row = reader.next()) != null) {
+                    unmatched = !patients.containsKey(joinKey(row[sampleKey], sampleKeyType));
+                }
+            }
+        }
+        Type[] types = new Type[size];
+        for (int i = 0; i < size; i++) {
+            if (SOURCE_COLUMNS.get(i).equals("CANCER_TYPE_DETAILED")) {
+                types[i] = sampleTypes.get(sampleIndex[i]);
+                if (types[i] != Type.STRING) {
+                    throw new IllegalArgumentException("Column CANCER_TYPE_DETAILED must hold text");
+                }
+            } else if (patientIndex[i] >= 0) {
+                types[i] = patientTypes.get(patientIndex[i]);
+                if (types[i] == Type.INTEGER && unmatched) {
+                    types[i] = Type.FLOAT;
+                }
+            } else {
+                types[i] = sampleTypes.get(sampleIndex[i]);
+            }
+        }
+
+        return new Merge(sampleFile, sampleHeader.length, sampleKey, sampleKeyType, sampleIndex, patientIndex, types,
+                patients, repeatedPatients, studyId);
+    }
+
+    /*
+     * Writes the merged rows to output, replacing it only once all are written, and returns how many there are.
+     */
+    public int merge(Path sampleFile, Path patientFile, Path studyFile, Path output) throws IOException {
+        Merge merge = prepare(sampleFile, patientFile, studyFile);
+        // a name of its own, so concurrent merges of one study do not write into each other's output
+        Path tmp = output.resolveSibling("." + output.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        int rows;
+        try (Writer writer = new BufferedWriter(Files.newBufferedWriter(tmp, StandardCharsets.UTF_8), 64 * 1024)) {
+            rows = merge.writeTo(writer);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return rows;
+    }
+
+    /*
+     * The value after cancer_study_identifier in the meta study file, or an empty value when there is none.
+     */
+    private static String readStudyId(Path studyFile) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(studyFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("cancer_study_identifier")) {
+                    String stripped = line.trim();
+                    int separator = stripped.indexOf(": ");
+                    if (separator < 0) {
+                        throw new IllegalArgumentException("Invalid cancer_study_identifier line in " + studyFile);
+                    }
+                    return stripped.substring(separator + 2);
+                }
+            }
+        }
+        return "";
+    }
+
+    private static String[] readHeader(Path file) throws IOException {
+        try (TsvReader reader = new TsvReader(file, -1)) {
+            String[] header = reader.next();
+            if (header == null) {
+                throw new IllegalArgumentException("No columns to parse from " + file.getFileName());
+            }
+            return header;
+        }
+    }
+
+    private static int indexOf(List<String> columns, String column, String where) {
+        int index = columns.indexOf(column);
+        if (index < 0) {
+            throw new IllegalArgumentException("Column " + column + " not found in " + where);
+        }
+        return index;
+    }
+
+    private static boolean isNumeric(Type type) {
+        return type == Type.INTEGER || type == Type.FLOAT;
+    }
+
+    /*
+     * Numeric keys are joined by their value, so 7 in one file matches 7.0 in the other; missing keys match each
+     * other as they do in pandas.
+     */
+    private static String joinKey(String value, Type type) {
+        if (value == null || NA_VALUES.contains(value)) {
+            return "\0NA";
+        }
+        return isNumeric(type) ? pythonFloat(Double.parseDouble(value.trim())) : value;
+    }
+
+    private static String format(String value, Type type) {
+        if (value == null || NA_VALUES.contains(value)) {
+            return "NA";
+        }
+        switch (type) {
+            case INTEGER:
+                return Long.toString(Long.parseLong(value.trim()));
+            case FLOAT:
+                return pythonFloat(parseFloat(value.trim()));
+            case BOOLEAN:
+                return value.trim().equalsIgnoreCase("true") ? "True" : "False";
+            default:
+                return value;
+        }
+    }
+
+    private static double parseFloat(String value) {
+        String lower = value.toLowerCase();
+        if (lower.endsWith("inf") || lower.endsWith("infinity")) {
+            return lower.startsWith("-") ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+        }
+        return Double.parseDouble(value);
+    }
+
+    /*
+     * Python's repr of a float: the shortest digits, fixed notation with at least one decimal for exponents from
+     * -4 to 15 and scientific notation with a two-digit exponent otherwise.
+     */
+    static String pythonFloat(double value) {
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "inf" : "-inf";
+        }
+        if (Double.isNaN(value)) {
+            return "nan";
+        }
+        if (value == 0) {
+            return (1 / value < 0) ? "-0.0" : "0.0";
+        }
+        BigDecimal decimal = new BigDecimal(Double.toString(value)).stripTrailingZeros();
+        String digits = decimal.unscaledValue().abs().toString();
+        int exponent = digits.length() - 1 - decimal.scale();
+        StringBuilder text = new StringBuilder(value < 0 ? "-" : "");
+        if (exponent >= -4 && exponent < 16) {
+            if (exponent < 0) {
+                text.append("0.");
+                for (int i = -1; i > exponent; i--) {
+                    text.append('0');
+                }
+                text.append(digits);
+            } else if (digits.length() <= exponent + 1) {
+                text.append(digits);
+                for (int i = digits.length(); i <= exponent; i++) {
+                    text.append('0');
+                }
+                text.append(".0");
+            } else {
+                text.append(digits, 0, exponent + 1).append('.').append(digits, exponent + 1, digits.length());
+            }
+        } else {
+            text.append(digits.charAt(0));
+            if (digits.length() > 1) {
+                text.append('.').append(digits, 1, digits.length());
+            }
+            text.append('e').append(exponent < 0 ? '-' : '+');
+            if (Math.abs(exponent) < 10) {
+                text.append('0');
+            }
+            text.append(Math.abs(exponent));
+        }
+        return text.toString();
+    }
+
+    public static void writeHeader(Writer writer) throws IOException {
+        writeRow(writer, OUTPUT_COLUMNS.toArray(new String[0]));
+    }
+
+    /*
+     * Writes a CSV row, quoting the values that contain a comma, a quote or a line break.
+     */
+    private static void writeRow(Writer writer, String[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            String value = values[i];
+            if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0
+                    || value.indexOf('\r') >= 0) {
+                writer.write('"');
+                writer.write(value.replace("\"", "\"\""));
+                writer.write('"');
+            } else {
+                writer.write(value);
+            }
+        }
+        writer.write('\n');
+    }
+
+    /*
+     * A merge ready to be written: the patients and the column types, with the sample file still to be read. Writing
+     * reads the sample file again, so it can be repeated and holds only one row at a time.
+     */
+    public static class Merge {
+
+        private final Path sampleFile;
+        private final int width;
+        private final int sampleKey;
+        private final Type sampleKeyType;
+        private final int[] sampleIndex;
+        private final int[] patientIndex;
+        private final Type[] types;
+        private final Map<String, String[]> patients;
+        private final Map<String, List<String[]>> repeatedPatients;
+        private final String studyId;
+
+        private Merge(Path sampleFile, int width, int sampleKey, Type sampleKeyType, int[] sampleIndex,
+                      int[] patientIndex, Type[] types, Map<String, String[]> patients,
+                      Map<String, List<String[]>> repeatedPatients, String studyId) {
+            this.sampleFile = sampleFile;
+            this.width = width;
+            this.sampleKey = sampleKey;
+            this.sampleKeyType = sampleKeyType;
+            this.sampleIndex = sampleIndex;
+            this.patientIndex = patientIndex;
+            this.types = types;
+            this.patients = patients;
+            this.repeatedPatients = repeatedPatients;
+            this.studyId = studyId;
+        }
+
+        /*
+         * Writes the header and the merged rows as they are joined and returns how many rows there are. The writer
+         * is not closed.
+         */
+        public int writeTo(Writer writer) throws IOException {
+            writeHeader(writer);
+            return writeRowsTo(writer);
+        }
+
+        /*
+         * Writes only the merged rows, e.g. to append them to another study's.
+         */
+        public int writeRowsTo(Writer writer) throws IOException {
+            int size = SOURCE_COLUMNS.size();
+            int rows = 0;
+            try (TsvReader reader = new TsvReader(sampleFile, width);
+                 TsvReader detailedReader = new TsvReader(sampleFile, width)) {
+                String[] out = new String[OUTPUT_COLUMNS.size()];
+                out[size] = studyId;
+                String[] row;
+                while ((row = reader.next()) != null) {
+                    String key = joinKey(row[sampleKey], sampleKeyType);
+                    List<String[]> matches = repeatedPatients.get(key);
+                    String[] patient = patients.get(key);
+                    int count = matches != null ? matches.size() : 1;
+                    for (int m = 0; m < count; m++) {
+                        if (matches != null) {
+                            patient = matches.get(m);
+                        }
+                        // the script copies CANCER_TYPE_DETAILED by row number, so the rows added for a repeated
+                        // patient shift it onto the following rows
+                        String[] detailedRow = detailedReader.next();
+                        for (int i = 0; i < size; i++) {
+                            if (SOURCE_COLUMNS.get(i).equals("CANCER_TYPE_DETAILED")) {
+                                String value = detailedRow == null ? null : detailedRow[sampleIndex[i]];
+                                out[i] = value == null || NA_VALUES.contains(value) ? "NA" : value.trim();
+                            } else if (patientIndex[i] >= 0) {
+                                out[i] = format(patient == null ? null : patient[patientIndex[i]], types[i]);
+                            } else {
+                                out[i] = format(row[sampleIndex[i]], types[i]);
+                            }
+                        }
+                        writeRow(writer, out);
+                        rows++;
+                    }
+                }
+            }
+            writer.flush();
+            return rows;
+        }
+    }
+
+    /*
+     * What pandas would make of the given columns: integers, floats, booleans or strings.
+     */
+    private static class ColumnTypes {
+
+        private final int[] columns;
+        private final boolean[] integers;
+        private final boolean[] floats;
+        private final boolean[] booleans;
+        private final boolean[] missing;
+        private final boolean[] present;
+
+        ColumnTypes(int width, List<Integer> columns) {
+            this.columns = columns.stream().distinct().mapToInt(Integer::intValue).toArray();
+            integers = new boolean[width];
+            floats = new boolean[width];
+            booleans = new boolean[width];
+            missing = new boolean[width];
+            present = new boolean[width];
+            Arrays.fill(integers, true);
+            Arrays.fill(floats, true);
+            Arrays.fill(booleans, true);
+        }
+
+        void add(String[] row) {
+            for (int i : columns) {
+                String value = row[i];
+                if (value == null || NA_VALUES.contains(value)) {
+                    missing[i] = true;
+                    continue;
+                }
+                present[i] = true;
+                String trimmed = value.trim();
+                if (integers[i] && (!INTEGER.matcher(trimmed).matches() || trimmed.length() > 18)) {
+                    integers[i] = false;
+                }
+                if (floats[i] && !FLOAT.matcher(trimmed).matches()) {
+                    floats[i] = false;
+                }
+                if (booleans[i] && !(trimmed.equals("True") || trimmed.equals("TRUE") || trimmed.equals("true")
+                        || trimmed.equals("False") || trimmed.equals("FALSE") || trimmed.equals("false"))) {
+                    booleans[i] = false;
+                }
+            }
+        }
+
+        Type get(int column) {
+            if (!present[column]) {
+                // a column of missing values only is a float column
+                return Type.FLOAT;
+            }
+            if (booleans[column]) {
+                return Type.BOOLEAN;
+            }
+            if (integers[column]) {
+                return missing[column] ? Type.FLOAT : Type.INTEGER;
+            }
+            return floats[column] ? Type.FLOAT : Type.STRING;
+        }
+    }
+
+    /*
+     * Reads the rows below the attribute definitions, split at tabs, skipping blank lines; a row is padded with
+     * missing values up to the header's width. Values in double quotes are unquoted as pandas does.
+     */
+    private static class TsvReader implements AutoCloseable {
+
+        private final BufferedReader reader;
+        private final Path file;
+        private final int width;
+        private int lineNumber;
+
+        TsvReader(Path file, int width) throws IOException {
+            this.file = file;
+            this.width = width;
+            this.reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+            for (int i = 0; i < SKIPPED_LINES && reader.readLine() != null; i++) {
+                lineNumber++;
+            }
+            if (width >= 0) {
+                // the header
+                next();
+            }
+        }
+
+        String[] next() throws IOException {
+            String line;
+            do {
+                line = reader.readLine();
+                lineNumber++;
+            } while (line != null && line.isEmpty());
+            if (line == null) {
+                return null;
+            }
+            String[] fields = line.split("\t", -1);
+            if (width >= 0 && fields.length > width) {
+                throw new IllegalArgumentException("Expected " + width + " fields in line " + lineNumber + " of "
+                        + file.getFileName() + ", saw " + fields.length);
+            }
+            for (int i = 0; i < fields.length; i++) {
+                String field = fields[i];
+                if (field.length() >= 2 && field.charAt(0) == '"' && field.charAt(field.length() - 1) == '"') {
+                    fields[i] = field.substring(1, field.length() - 1).replace("\"\"", "\"");
+                }
+            }
+            return width > fields.length ? Arrays.copyOf(fields, width) : fields;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package cbporganizer.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Exports the clinical.csv rows of all studies of a user as one CSV, for building a single trial-matching file.
+ *
+ * The studies are merged in parallel on a pool of export-threads. Preparing a merge checks the study's clinical
+ * files, so the studies that cannot be exported are known before the response starts; they are left out and
+ * reported. The rows of each study are then written to a temporary file in parallel and appended to the response in
+ * folder order as soon as the study is done, under one header.
+ */
+@Service
+public class ClinicalExportService {
+
+    @Autowired
+    private FilesStorageService storageService;
+
+    @Value("${cbporganizer.clinical.export-threads:4}")
+    private int threads;
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void start() {
+        executor = Executors.newFixedThreadPool(Math.max(threads, 1), r -> {
+            Thread t = new Thread(r, "clinical-export-" + UUID.randomUUID().toString().substring(0, 8));
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /*
+     * Prepares the merges of all studies of the user; the studies that failed are in the export's failures.
+     */
+    public BatchExport exportAll(String userId) throws InterruptedException {
+        List<String> folders = storageService.getFolders(userId);
+        if (folders == null) {
+            folders = Collections.emptyList();
+        }
+        Map<String, Future<ClinicalCsvMerger.Merge>> prepared = new LinkedHashMap<>();
+        for (String folder : folders) {
+            prepared.put(folder, executor.submit(() -> storageService.prepareClinicalExport(userId, folder)));
+        }
+        Map<String, ClinicalCsvMerger.Merge> merges = new LinkedHashMap<>();
+        Map<String, String> failures = new LinkedHashMap<>();
+        for (Map.Entry<String, Future<ClinicalCsvMerger.Merge>> entry : prepared.entrySet()) {
+            try {
+                ClinicalCsvMerger.Merge merge = entry.getValue().get();
+                if (merge == null) {
+                    failures.put(entry.getKey(), "Study not found");
+                } else {
+                    merges.put(entry.getKey(), merge);
+                }
+            } catch (ExecutionException e) {
+                failures.put(entry.getKey(), String.valueOf(e.getCause()));
+            }
+        }
+        for (Map.Entry<String, String> failure : failures.entrySet()) {
+            System.err.println("Leaving " + failure.getKey() + " out of the clinical export: " + failure.getValue());
+        }
+        return new BatchExport(merges, failures);
+    }
+
+    public class BatchExport {
+
+        private final Map<String, ClinicalCsvMerger.Merge> merges;
+        private final Map<String, String> failures;
+
+        private BatchExport(Map<String, ClinicalCsvMerger.Merge> merges, Map<String, String> failures) {
+            this.merges = merges;
+            this.failures = failures;
+        }
+
+        /*
+         * The studies left out, with the reason.
+         */
+        public Map<String, String> getFailures() {
+            return failures;
+        }
+
+        /*
+         * Writes the header and then the rows of every study. A study that fails while its rows are written is left
+         * out entirely and added to the failures.
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            Writer header = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            ClinicalCsvMerger.writeHeader(header);
+            header.flush();
+
+            Map<String, Future<Path>> parts = new LinkedHashMap<>();
+            for (Map.Entry<String, ClinicalCsvMerger.Merge> entry : merges.entrySet()) {
+                ClinicalCsvMerger.Merge merge = entry.getValue();
+                parts.put(entry.getKey(), executor.submit(() -> writePart(merge)));
+            }
+            List<Future<Path>> pending = new ArrayList<>(parts.values());
+            try {
+                for (Map.Entry<String, Future<Path>> entry : parts.entrySet()) {
+                    Path part;
+                    try {
+                        part = entry.getValue().get();
+                    } catch (ExecutionException e) {
+                        pending.remove(entry.getValue());
+                        failures.put(entry.getKey(), String.valueOf(e.getCause()));
+                        System.err.println("Leaving " + entry.getKey() + " out of the clinical export: "
+                                + e.getCause());
+                        continue;
+                    }
+                    pending.remove(entry.getValue());
+                    try {
+                        Files.copy(part, out);
+                    } finally {
+                        Files.deleteIfExists(part);
+                    }
+                }
+                out.flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Clinical export interrupted", e);
+            } finally {
+                // the client went away; drop the studies that are still being written
+                for (Future<Path> future : pending) {
+                    future.cancel(true);
+                    try {
+                        Files.deleteIfExists(future.get());
+                    } catch (Exception ignored) {
+                        // cancelled or failed, so there is no file
+                    }
+                }
+            }
+        }
+    }
+
+    private static Path writePart(ClinicalCsvMerger.Merge merge) throws IOException {
+        Path part = Files.createTempFile(FilesStorageServiceImpl.STORAGE_ROOT, ".export-", ".csv");
+        try (Writer writer = new BufferedWriter(Files.newBufferedWriter(part, StandardCharsets.UTF_8), 64 * 1024)) {
+            merge.writeRowsTo(writer);
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Clinical export cancelled");
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(part);
+            throw e;
+        }
+        return part;
+    }
+}
@@ -0,0 +1,872 @@
+package cbporganizer.service;
+
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.BigInteger;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/*
+ * Checks the sample and patient clinical data files of a study the way SampleClinicalValidator and
+ * PatientClinicalValidator of validateData.py do, without starting Python: the attribute definitions above the
+ * column header, the column header, the values against their datatypes, duplicate IDs and the linkage between
+ * patients and samples. It answers in milliseconds, so it suits checking clinical files while they are edited; the
+ * Python validator remains the full-study check.
+ *
+ * Files are streamed through a reused line buffer and split into reused cell offsets, so a data row creates no
+ * objects; only the IDs that have to be remembered and the messages become strings. Relaxed mode is not supported.
+ */
+@Component
+public class ClinicalFileValidator {
+
+    static final int MAX_MESSAGES = 1000;
+    static final int MAX_SAMPLE_STABLE_ID_LENGTH = 63;
+
+    private static final String[] NULL_VALUES = {
+            "[not applicable]", "[not available]", "[pending]", "[discrepancy]", "[completed]", "[null]", "", "na"};
+    private static final List<String> METADATA_LINES = Arrays.asList(
+            "display_name", "description", "datatype", "priority");
+    private static final List<String> DATATYPES = Arrays.asList("STRING", "NUMBER", "BOOLEAN");
+    private static final List<String> BANNED_ATTRIBUTES = Arrays.asList("MUTATION_COUNT", "FRACTION_GENOME_ALTERED");
+    private static final String[] OS_STATUS_VALUES = {"LIVING", "DECEASED", "0:LIVING", "1:DECEASED"};
+    private static final String[] DFS_STATUS_VALUES = {
+            "0:DiseaseFree", "1:Recurred/Progressed", "1:Recurred", "1:Progressed",
+            "DiseaseFree", "Recurred/Progressed", "Recurred", "Progressed"};
+    private static final Pattern INTEGER = Pattern.compile("[+-]?[0-9]+(_[0-9]+)*");
+    private static final String[] EXCEL_MONTHS = {
+            "jan", "feb", "mar", "apr", "may", "jun", "jul", "aug", "sep", "oct", "nov", "dec"};
+
+    /*
+     * Attributes whose level ("0" sample, "1" patient) and datatype are fixed by cBioPortal; null when either is
+     * free.
+     */
+    private static final Map<String, String[]> PREDEFINED_ATTRIBUTES = new HashMap<>();
+
+    static {
+        predefine("AGE", "1", "NUMBER");
+        predefine("CANCER_TYPE", null, "STRING");
+        predefine("CANCER_TYPE_DETAILED", null, "STRING");
+        predefine("DFS_STATUS", "1", "STRING");
+        predefine("DFS_MONTHS", "1", "NUMBER");
+        predefine("GENDER", "1", "STRING");
+        predefine("HISTOLOGY", null, "STRING");
+        predefine("KNOWN_MOLECULAR_CLASSIFIER", null, "STRING");
+        predefine("METASTATIC_SITE", "0", "STRING");
+        predefine("OS_STATUS", "1", "STRING");
+        predefine("OS_MONTHS", "1", "NUMBER");
+        predefine("OTHER_SAMPLE_ID", "0", "STRING");
+        predefine("PATIENT_DISPLAY_NAME", "1", "STRING");
+        predefine("PRIMARY_SITE", "0", "STRING");
+        predefine("SAMPLE_CLASS", "0", "STRING");
+        predefine("SAMPLE_DISPLAY_NAME", "0", "STRING");
+        predefine("SAMPLE_TYPE", "0", "STRING");
+        predefine("SEX", "1", "STRING");
+        predefine("TUMOR_SITE", "1", "STRING");
+        predefine("TUMOR_TISSUE_SITE", "0", "STRING");
+        predefine("TUMOR_TYPE", "0", "STRING");
+    }
+
+    private static void predefine(String attribute, String level, String datatype) {
+        PREDEFINED_ATTRIBUTES.put(attribute, new String[]{level, datatype});
+    }
+
+    /*
+     * Validates the clinical files, given relative to baseDir; the sample files are checked first, as the patient
+     * files are checked against the patients they reference.
+     */
+    public ClinicalValidationResult validate(Path baseDir, List<String> sampleFiles, List<String> patientFiles) {
+        long start = System.nanoTime();
+        Report report = new Report();
+        List<String> files = new ArrayList<>();
+        if (sampleFiles.isEmpty()) {
+            report.add(ClinicalValidationMessage.Level.ERROR, null, null, null,
+                    "No sample clinical data file found in the study", null);
+        }
+        boolean samplesParsed = !sampleFiles.isEmpty();
+        for (String file : sampleFiles) {
+            files.add(file);
+            samplesParsed &= new FileCheck(report, file, false).run(baseDir.resolve(file));
+        }
+        for (String file : patientFiles) {
+            files.add(file);
+            FileCheck check = new FileCheck(report, file, true);
+            check.linkToSamples = samplesParsed;
+            check.run(baseDir.resolve(file));
+        }
+        int status;
+        if (sampleFiles.isEmpty()) {
+            status = 2;
+        } else if (report.errorCount > 0) {
+            status = 1;
+        } else if (report.warningCount > 0) {
+            status = 3;
+        } else {
+            status = 0;
+        }
+        return new ClinicalValidationResult(status, files, report.sampleCount, report.patients.size(),
+                report.errorCount, report.warningCount, report.messages, report.truncated,
+                (System.nanoTime() - start) / 1000000);
+    }
+
+    /*
+     * What the files of one validation share: the messages, and what the sample files define.
+     */
+    private static class Report {
+        final List<ClinicalValidationMessage> messages = new ArrayList<>();
+        int errorCount;
+        int warningCount;
+        boolean truncated;
+        int sampleCount;
+        final Set<String> patientsWithSamples = new LinkedHashSet<>();
+        final Set<String> definedSampleAttributes = new HashSet<>();
+        final Set<String> patients = new HashSet<>();
+
+        void add(ClinicalValidationMessage.Level level, String file, Integer line, Integer column, String message,
+                 String cause) {
+            if (level == ClinicalValidationMessage.Level.ERROR) {
+                errorCount++;
+            } else {
+                warningCount++;
+            }
+            if (messages.size() < MAX_MESSAGES) {
+                messages.add(new ClinicalValidationMessage(level, file, line, column, message, cause));
+            } else {
+                truncated = true;
+            }
+        }
+    }
+
+    // what a column is checked for besides its datatype
+    private static final int OTHER = 0;
+    private static final int PATIENT_ID = 1;
+    private static final int SAMPLE_ID = 2;
+    private static final int OS_STATUS = 3;
+    private static final int OS_MONTHS = 4;
+    private static final int DFS_STATUS = 5;
+    private static final int SURVIVAL_STATUS = 6;
+
+    private static final int STRING = 0;
+    private static final int NUMBER = 1;
+    private static final int BOOLEAN = 2;
+
+    /*
+     * The checks of one file.
+     */
+    private static class FileCheck {
+
+        private final Report report;
+        private final String file;
+        private final boolean patientFile;
+        boolean linkToSamples;
+
+        private LineReader reader;
+        private int lineNumber;
+        private String[] cols;
+        private int[] datatypes;
+        private int[] roles;
+        private boolean[] checkDates;
+        private final Map<String, Integer> idLines = new HashMap<>();
+
+        FileCheck(Report report, String file, boolean patientFile) {
+            this.report = report;
+            this.file = file;
+            this.patientFile = patientFile;
+        }
+
+        /*
+         * Returns whether the file could be parsed.
+         */
+        boolean run(Path path) {
+            try (Reader in = new InputStreamReader(Files.newInputStream(path), StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT))) {
+                reader = new LineReader(in);
+                if (!parse()) {
+                    return false;
+                }
+            } catch (NoSuchFileException e) {
+                error(null, null, "File could not be opened", null);
+                return false;
+            } catch (CharacterCodingException e) {
+                error(lineNumber + 1, null, "File contains invalid UTF-8 bytes. Please check values in file", null);
+                return false;
+            } catch (IOException e) {
+                e.printStackTrace();
+                error(null, null, "File could not be read", null);
+                return false;
+            }
+            onComplete();
+            return true;
+        }
+
+        private boolean parse() throws IOException {
+            List<String> topLines = new ArrayList<>();
+            String header = null;
+            while (reader.next()) {
+                lineNumber++;
+                if (reader.length > 0 && reader.line[0] == '#') {
+                    topLines.add(reader.toString(1, reader.length));
+                } else {
+                    header = reader.toString(0, reader.length);
+                    break;
+                }
+            }
+            if (header == null) {
+                error(lineNumber, null, "No column header or data found in file", null);
+                return false;
+            }
+            List<String[]> attrDefs = processTopLines(topLines);
+            if (attrDefs == null) {
+                error(null, null, "Invalid header comments, file cannot be parsed", null);
+                return false;
+            }
+            if (checkHeader(header.split("\t", -1), attrDefs) > 0) {
+                error(null, null, "Invalid column header, file cannot be parsed", null);
+                return false;
+            }
+            while (reader.next()) {
+                lineNumber++;
+                int count = reader.split();
+                if (reader.isBlank(count)) {
+                    error(lineNumber, null, "Blank line", null);
+                } else if (reader.length > 0 && reader.line[0] == '#') {
+                    error(lineNumber, null, "Data line starting with '#' skipped", null);
+                } else {
+                    checkLine(count);
+                }
+            }
+            return true;
+        }
+
+        /*
+         * Parses the display_name, description, datatype and priority rows; returns one definition per column, or
+         * null when they are missing or invalid.
+         */
+        private List<String[]> processTopLines(List<String> topLines) {
+            if (topLines.isEmpty()) {
+                warning(lineNumber, null, "No data type definition headers found in clinical data file", null);
+                return null;
+            }
+            if (topLines.size() != METADATA_LINES.size()) {
+                error(null, null, String.format("%d comment lines at start of clinical data file, expected %d",
+                        topLines.size(), METADATA_LINES.size()), null);
+                return null;
+            }
+            List<String[]> rows = new ArrayList<>();
+            boolean invalid = false;
+            for (int lineIndex = 0; lineIndex < topLines.size(); lineIndex++) {
+                String[] row = topLines.get(lineIndex).split("\t", -1);
+                if (!rows.isEmpty() && row.length != rows.get(0).length) {
+                    error(lineIndex + 1, null, String.format("Varying numbers of columns in clinical header (%d, %d)",
+                            rows.get(0).length, row.length), null);
+                    return null;
+                }
+                rows.add(row);
+                String property = METADATA_LINES.get(lineIndex);
+                for (int colIndex = 0; colIndex < row.length; colIndex++) {
+                    String value = row[colIndex];
+                    if (isNullValue(value)) {
+                        error(lineIndex + 1, colIndex + 1, String.format(
+                                "Empty %s field in clinical attribute definition", property), value);
+                        invalid = true;
+                    }
+                    if (property.equals("datatype") && !DATATYPES.contains(value)) {
+                        error(lineIndex + 1, colIndex + 1, "Invalid data type definition, must be one of ["
+                                + String.join(", ", DATATYPES) + "]", value);
+                        invalid = true;
+                    } else if (property.equals("priority") && !isPriority(value)) {
+                        error(lineIndex + 1, colIndex + 1, "Priority definition should be an integer, and should "
+                                + "be greater than or equal to zero", value);
+                        invalid = true;
+                    }
+                }
+            }
+            return invalid ? null : rows;
+        }
+
+        /*
+         * Checks the column header against the attribute definitions; returns the number of errors that keep the
+         * file from being parsed.
+         */
+        private int checkHeader(String[] header, List<String[]> attrDefs) {
+            int errors = 0;
+            cols = header;
+            int numCols = cols.length;
+            Set<String> seen = new HashSet<>();
+            for (int i = 0; i < numCols; i++) {
+                if (!seen.add(cols[i])) {
+                    error(lineNumber, i + 1, "Repeated column header", cols[i]);
+                    errors++;
+                }
+            }
+            List<String> required = patientFile
+                    ? Collections.singletonList("PATIENT_ID") : Arrays.asList("SAMPLE_ID", "PATIENT_ID");
+            List<String> colList = Arrays.asList(cols);
+            for (String name : required) {
+                if (!colList.contains(name)) {
+                    error(lineNumber, null, "Missing column: " + name,
+                            String.join(", ", colList.subList(0, Math.min(required.size(), numCols))) + ", (...)");
+                    errors++;
+                }
+            }
+            String[] definedTypes = attrDefs.get(METADATA_LINES.indexOf("datatype"));
+            if (numCols != definedTypes.length) {
+                error(lineNumber, null, String.format("Varying numbers of columns in clinical header (%d, %d)",
+                        definedTypes.length, numCols), null);
+                errors++;
+            }
+
+            String level = patientFile ? "1" : "0";
+            Set<String> defined = new LinkedHashSet<>();
+            datatypes = new int[numCols];
+            roles = new int[numCols];
+            checkDates = new boolean[numCols];
+            for (int i = 0; i < numCols; i++) {
+                String name = cols[i];
+                String datatype = i < definedTypes.length ? definedTypes[i] : "STRING";
+                checkDates[i] = !name.toLowerCase().contains("date");
+                if (!isUpperCase(name)) {
+                    error(lineNumber, i + 1, "Attribute name not in upper case.", name);
+                }
+                if (name.equals("PATIENT_ID") || name.equals("SAMPLE_ID")) {
+                    roles[i] = name.equals("PATIENT_ID") ? PATIENT_ID : SAMPLE_ID;
+                    continue;
+                }
+                datatypes[i] = datatype.equals("NUMBER") ? NUMBER : datatype.equals("BOOLEAN") ? BOOLEAN : STRING;
+                String[] predefined = PREDEFINED_ATTRIBUTES.get(name);
+                if (predefined != null) {
+                    if (predefined[0] != null && !predefined[0].equals(level)) {
+                        error(lineNumber, i + 1, "Attribute must to be a "
+                                + (predefined[0].equals("0") ? "sample" : "patient") + "-level attribute", name);
+                    }
+                    if (predefined[1] != null && !predefined[1].equals(datatype)) {
+                        error(METADATA_LINES.indexOf("datatype") + 1, i + 1, "datatype definition for attribute '"
+                                + name + "' must be " + predefined[1], datatype);
+                    }
+                }
+                if (BANNED_ATTRIBUTES.contains(name)) {
+                    error(lineNumber, i + 1, name + " is not allowed in data. MUTATION_COUNT and "
+                            + "FRACTION_GENOME_ALTERED are calculated in cBioPortal", name);
+                }
+                if (patientFile) {
+                    if (name.equals("OS_STATUS")) {
+                        roles[i] = OS_STATUS;
+                    } else if (name.equals("OS_MONTHS")) {
+                        roles[i] = OS_MONTHS;
+                    } else if (name.equals("DFS_STATUS")) {
+                        roles[i] = DFS_STATUS;
+                    } else if (name.endsWith("_STATUS")
+                            && colList.contains(name.substring(0, name.length() - 7) + "_MONTHS")) {
+                        roles[i] = SURVIVAL_STATUS;
+                    }
+                }
+                defined.add(name);
+            }
+
+            if (patientFile) {
+                if (colList.contains("SAMPLE_ID")) {
+                    error(lineNumber, colList.indexOf("SAMPLE_ID") + 1,
+                            "SAMPLE_ID column found in a patient attribute file", "SAMPLE_ID");
+                }
+                for (String attribute : defined) {
+                    if (report.definedSampleAttributes.contains(attribute)) {
+                        error(null, null, "Clinical attribute is defined both as sample-level and as patient-level",
+                                attribute);
+                    }
+                }
+                if (!colList.contains("OS_MONTHS") || !colList.contains("OS_STATUS")) {
+                    warning(null, null, "Columns OS_MONTHS and/or OS_STATUS not found. Overall survival analysis "
+                            + "feature will not be available for this study.", null);
+                }
+                if (!colList.contains("DFS_MONTHS") || !colList.contains("DFS_STATUS")) {
+                    warning(null, null, "Columns DFS_MONTHS and/or DFS_STATUS not found. Disease free analysis "
+                            + "feature will not be available for this study.", null);
+                }
+            } else {
+                report.definedSampleAttributes.addAll(defined);
+            }
+            return errors;
+        }
+
+        private void checkLine(int count) {
+            char[] line = reader.line;
+            int[] starts = reader.starts;
+            int[] ends = reader.ends;
+            int numCols = cols.length;
+
+            if (count >= numCols) {
+                boolean repeated = true;
+                for (int i = 0; i < numCols && repeated; i++) {
+                    repeated = matches(line, starts[i], ends[i], cols[i], false);
+                }
+                if (repeated) {
+                    error(lineNumber, null, "Repeated header", String.join(", ", cols));
+                }
+            }
+            if (count != numCols) {
+                error(lineNumber, null, String.format("Expected %d columns based on header, found %d",
+                        numCols, count), null);
+            }
+
+            // the checks of every clinical file
+            for (int i = 0; i < numCols; i++) {
+                int start = i < count ? trimStart(line, starts[i], ends[i]) : 0;
+                int end = i < count ? trimEnd(line, start, ends[i]) : 0;
+                boolean isNull = isNullValue(line, start, end);
+                if (isNull) {
+                    // nothing to check against the datatype
+                } else if (datatypes[i] == NUMBER) {
+                    if (!isFloat(line, start, end) && !isBound(line, start, end)) {
+                        error(lineNumber, i + 1, "Value of numeric attribute is not a real number",
+                                cell(line, start, end));
+                    }
+                } else if (datatypes[i] == BOOLEAN) {
+                    if (!matches(line, start, end, "TRUE", false) && !matches(line, start, end, "FALSE", false)) {
+                        error(lineNumber, i + 1, "Value of boolean attribute must be one of [TRUE, FALSE]",
+                                cell(line, start, end));
+                    }
+                }
+                if (roles[i] == PATIENT_ID && isNull) {
+                    error(lineNumber, i + 1, "Missing PATIENT_ID", cell(line, start, end));
+                }
+                if ((roles[i] == PATIENT_ID || roles[i] == SAMPLE_ID) && hasInvalidIdCharacter(line, start, end)) {
+                    error(lineNumber, i + 1, "PATIENT_ID and SAMPLE_ID can only contain letters, numbers, points, "
+                            + "underscores and/or hyphens", cell(line, start, end));
+                }
+                if (checkDates[i] && looksLikeExcelDate(line, start, end)) {
+                    error(lineNumber, i + 1, "Date found when no date was expected. Please check if values are "
+                            + "accidentally converted to dates by Excel. If this data is correct, add \"DATE\" to "
+                            + "column name", cell(line, start, end));
+                }
+            }
+
+            if (patientFile) {
+                checkPatientLine(count);
+            } else {
+                checkSampleLine(count);
+            }
+        }
+
+        private void checkSampleLine(int count) {
+            char[] line = reader.line;
+            for (int i = 0; i < cols.length; i++) {
+                int start = i < count ? trimStart(line, reader.starts[i], reader.ends[i]) : 0;
+                int end = i < count ? trimEnd(line, start, reader.ends[i]) : 0;
+                if (roles[i] == SAMPLE_ID) {
+                    if (isNullValue(line, start, end)) {
+                        error(lineNumber, i + 1, "Missing SAMPLE_ID", cell(line, start, end));
+                        continue;
+                    }
+                    if (end - start > MAX_SAMPLE_STABLE_ID_LENGTH) {
+                        error(lineNumber, i + 1, "SAMPLE_ID too long (" + MAX_SAMPLE_STABLE_ID_LENGTH
+                                + " character maximum)", cell(line, start, end));
+                        continue;
+                    }
+                    String sampleId = cell(line, start, end);
+                    Integer firstLine = idLines.putIfAbsent(sampleId, lineNumber);
+                    if (firstLine == null) {
+                        report.sampleCount++;
+                    } else if (sampleId.startsWith("TCGA-")) {
+                        warning(lineNumber, i + 1, "TCGA sample defined twice in clinical file, this line will be "
+                                + "ignored assuming truncated barcodes",
+                                sampleId + " (already defined on line " + firstLine + ")");
+                    } else {
+                        error(lineNumber, i + 1, "Sample defined twice in clinical file",
+                                sampleId + " (already defined on line " + firstLine + ")");
+                    }
+                } else if (roles[i] == PATIENT_ID) {
+                    report.patientsWithSamples.add(cell(line, start, end));
+                }
+            }
+        }
+
+        private void checkPatientLine(int count) {
+            char[] line = reader.line;
+            boolean deceased = false;
+            int monthsStart = -1;
+            int monthsEnd = -1;
+            for (int i = 0; i < cols.length; i++) {
+                int start = i < count ? trimStart(line, reader.starts[i], reader.ends[i]) : 0;
+                int end = i < count ? trimEnd(line, start, reader.ends[i]) : 0;
+                switch (roles[i]) {
+                    case PATIENT_ID:
+                        String patientId = cell(line, start, end);
+                        Integer firstLine = idLines.putIfAbsent(patientId, lineNumber);
+                        if (firstLine != null) {
+                            error(lineNumber, i + 1, "Patient defined multiple times in file",
+                                    patientId + " (already defined on line " + firstLine + ")");
+                        } else {
+                            report.patients.add(patientId);
+                            if (linkToSamples && !report.patientsWithSamples.contains(patientId)) {
+                                warning(lineNumber, i + 1, "Clinical data defined for a patient with no samples",
+                                        patientId);
+                            }
+                        }
+                        break;
+                    case OS_STATUS:
+                        if (matches(line, start, end, "1:DECEASED", false)) {
+                            deceased = true;
+                        } else if (!isNullValue(line, start, end) && !isOneOf(line, start, end, OS_STATUS_VALUES)) {
+                            error(lineNumber, i + 1, "Value in OS_STATUS column is not LIVING, 0:LIVING, DECEASED "
+                                    + "or 1:DECEASED", cell(line, start, end));
+                        }
+                        break;
+                    case DFS_STATUS:
+                        if (!isNullValue(line, start, end) && !isOneOf(line, start, end, DFS_STATUS_VALUES)) {
+                            error(lineNumber, i + 1, "Value in DFS_STATUS column is not 0:DiseaseFree, "
+                                    + "1:Recurred/Progressed, 1:Recurred, 1:Progressed, DiseaseFree, "
+                                    + "Recurred/Progressed, Recurred or Progressed", cell(line, start, end));
+                        }
+                        break;
+                    case OS_MONTHS:
+                        monthsStart = start;
+                        monthsEnd = end;
+                        break;
+                    case SURVIVAL_STATUS:
+                        // "status:label", where status is 0 or 1
+                        int colon = indexOf(line, start, end, ':');
+                        boolean valid = colon >= 0 && (matches(line, start, colon, "0", false)
+                                || matches(line, start, colon, "1", false));
+                        if (!valid && !isNullValue(line, start, end)) {
+                            error(lineNumber, i + 1, "Value in " + cols[i] + " column should be formated like "
+                                    + "\"0:LIVING\" (status:lable) ", cell(line, start, end));
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (deceased && (monthsStart < 0 || isNullValue(line, monthsStart, monthsEnd))) {
+                warning(lineNumber, null, "OS_MONTHS is not specified for deceased patient. Patient will be "
+                        + "excluded from survival curve and month of death will not be shown on patient view "
+                        + "timeline.", monthsStart < 0 || monthsStart == monthsEnd
+                        ? "<none>" : cell(line, monthsStart, monthsEnd));
+            }
+        }
+
+        private void onComplete() {
+            if (patientFile && linkToSamples) {
+                for (String patientId : report.patientsWithSamples) {
+                    if (!idLines.containsKey(patientId)) {
+                        warning(null, null, "Missing clinical data for a patient associated with samples",
+                                patientId);
+                    }
+                }
+            }
+        }
+
+        private void error(Integer line, Integer column, String message, String cause) {
+            report.add(ClinicalValidationMessage.Level.ERROR, file, line, column, message, cause);
+        }
+
+        private void warning(Integer line, Integer column, String message, String cause) {
+            report.add(ClinicalValidationMessage.Level.WARNING, file, line, column, message, cause);
+        }
+    }
+
+    /*
+     * Reads lines into one growing buffer and splits them at tabs into cell offsets; both are reused for every
+     * line. Lines end with \n, \r\n or \r.
+     */
+    private static final class LineReader {
+
+        private final Reader in;
+        private final char[] chunk = new char[64 * 1024];
+        private int chunkPos;
+        private int chunkLen;
+        private boolean skipLineFeed;
+
+        char[] line = new char[1024];
+        int length;
+        int[] starts = new int[64];
+        int[] ends = new int[64];
+
+        LineReader(Reader in) {
+            this.in = in;
+        }
+
+        boolean next() throws IOException {
+            length = 0;
+            while (true) {
+                if (chunkPos == chunkLen) {
+                    chunkLen = in.read(chunk, 0, chunk.length);
+                    chunkPos = 0;
+                    if (chunkLen <= 0) {
+                        chunkLen = 0;
+                        return length > 0;
+                    }
+                }
+                if (skipLineFeed) {
+                    skipLineFeed = false;
+                    if (chunk[chunkPos] == '\n') {
+                        chunkPos++;
+                        continue;
+                    }
+                }
+                int end = chunkPos;
+                while (end < chunkLen && chunk[end] != '\n' && chunk[end] != '\r') {
+                    end++;
+                }
+                append(chunkPos, end);
+                if (end < chunkLen) {
+                    skipLineFeed = chunk[end] == '\r';
+                    chunkPos = end + 1;
+                    return true;
+                }
+                chunkPos = end;
+            }
+        }
+
+        private void append(int from, int to) {
+            int count = to - from;
+            if (length + count > line.length) {
+                line = Arrays.copyOf(line, Math.max(line.length * 2, length + count));
+            }
+            System.arraycopy(chunk, from, line, length, count);
+            length += count;
+        }
+
+        /*
+         * Splits the current line at tabs and returns the number of cells.
+         */
+        int split() {
+            int count = 0;
+            int start = 0;
+            for (int i = 0; i <= length; i++) {
+                if (i == length || line[i] == '\t') {
+                    if (count == starts.length) {
+                        starts = Arrays.copyOf(starts, count * 2);
+                        ends = Arrays.copyOf(ends, count * 2);
+                    }
+                    starts[count] = start;
+                    ends[count] = i;
+                    count++;
+                    start = i + 1;
+                }
+            }
+            return count;
+        }
+
+        boolean isBlank(int count) {
+            for (int i = 0; i < count; i++) {
+                if (trimStart(line, starts[i], ends[i]) < ends[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        String toString(int from, int to) {
+            return new String(line, from, to - from);
+        }
+    }
+
+    private static int trimStart(char[] line, int start, int end) {
+        while (start < end && Character.isWhitespace(line[start])) {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimEnd(char[] line, int start, int end) {
+        while (end > start && Character.isWhitespace(line[end - 1])) {
+            end--;
+        }
+        return end;
+    }
+
+    private static String cell(char[] line, int start, int end) {
+        return new String(line, start, end - start);
+    }
+
+    private static boolean matches(char[] line, int start, int end, String value, boolean ignoreCase) {
+        if (end - start != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = line[start + i];
+            char v = value.charAt(i);
+            if (c != v && !(ignoreCase && Character.toLowerCase(c) == v)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isOneOf(char[] line, int start, int end, String[] values) {
+        for (String value : values) {
+            if (matches(line, start, end, value, false)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isNullValue(char[] line, int start, int end) {
+        for (String value : NULL_VALUES) {
+            if (matches(line, start, end, value, true)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean isNullValue(String value) {
+        char[] chars = value.toCharArray();
+        int start = trimStart(chars, 0, chars.length);
+        return isNullValue(chars, start, trimEnd(chars, start, chars.length));
+    }
+
+    private static int indexOf(char[] line, int start, int end, char c) {
+        for (int i = start; i < end; i++) {
+            if (line[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Whether Python's int() accepts the value and it is not negative.
+     */
+    private static boolean isPriority(String value) {
+        String trimmed = value.trim();
+        return INTEGER.matcher(trimmed).matches() && new BigInteger(trimmed.replace("_", "")).signum() >= 0;
+    }
+
+    /*
+     * Whether Python's float() accepts the value: a decimal number with optional sign and exponent, digits
+     * optionally grouped by single underscores, or inf, infinity and nan in any case.
+     */
+    static boolean isFloat(char[] line, int start, int end) {
+        int i = start;
+        if (i < end && (line[i] == '+' || line[i] == '-')) {
+            i++;
+        }
+        if (matches(line, i, end, "inf", true) || matches(line, i, end, "infinity", true)
+                || matches(line, i, end, "nan", true)) {
+            return true;
+        }
+        int digits = skipDigits(line, i, end);
+        boolean mantissa = digits > i;
+        i = digits;
+        if (i < end && line[i] == '.') {
+            digits = skipDigits(line, i + 1, end);
+            mantissa |= digits > i + 1;
+            i = digits;
+        }
+        if (!mantissa) {
+            return false;
+        }
+        if (i < end && (line[i] == 'e' || line[i] == 'E')) {
+            i++;
+            if (i < end && (line[i] == '+' || line[i] == '-')) {
+                i++;
+            }
+            digits = skipDigits(line, i, end);
+            if (digits <= i) {
+                return false;
+            }
+            i = digits;
+        }
+        return i == end;
+    }
+
+    /*
+     * Skips digits with single underscores between them and returns the index after them.
+     */
+    private static int skipDigits(char[] line, int i, int end) {
+        int start = i;
+        while (i < end) {
+            char c = line[i];
+            if (c >= '0' && c <= '9') {
+                i++;
+            } else if (c == '_' && i > start && i + 1 < end && line[i + 1] >= '0' && line[i + 1] <= '9') {
+                i++;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    /*
+     * Values like ">90" or "<18", which clinical files use for censored numbers.
+     */
+    private static boolean isBound(char[] line, int start, int end) {
+        if (end - start < 2 || (line[start] != '>' && line[start] != '<')) {
+            return false;
+        }
+        for (int i = start + 1; i < end; i++) {
+            if (!Character.isDigit(line[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasInvalidIdCharacter(char[] line, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = line[i];
+            if (!((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '.' || c == '_' || c == '-')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Values like "Jan-99" or "20-Oct", which Excel makes of ranges and IDs.
+     */
+    private static boolean looksLikeExcelDate(char[] line, int start, int end) {
+        int dash = indexOf(line, start, end, '-');
+        if (dash < 0 || indexOf(line, dash + 1, end, '-') >= 0) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            char c = line[i];
+            if (c == ',' || c == '.' || c == ':' || c == ';') {
+                return false;
+            }
+        }
+        for (String month : EXCEL_MONTHS) {
+            if (matches(line, start, dash, month, true) || matches(line, dash + 1, end, month, true)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Python's str.isupper(): at least one cased character and no lower case ones.
+     */
+    private static boolean isUpperCase(String name) {
+        boolean cased = false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isLowerCase(c)) {
+                return false;
+            }
+            cased |= Character.isUpperCase(c);
+        }
+        return cased;
+    }
+}
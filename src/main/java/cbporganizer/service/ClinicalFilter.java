@@ -0,0 +1,72 @@
+package cbporganizer.service;
+
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * One condition of a clinical attribute query, e.g. CANCER_TYPE eq BRCA or TMB_NONSYNONYMOUS gt 10. op is one of eq,
+ * ne, lt, le, gt, ge and in; in takes values, the others value. The comparisons lt to ge need a NUMBER attribute.
+ */
+public class ClinicalFilter {
+
+    private String attribute;
+    private String op = "eq";
+    private String value;
+    private List<String> values;
+
+    public ClinicalFilter() {
+    }
+
+    public ClinicalFilter(String attribute, String op, String value) {
+        this.attribute = attribute;
+        this.op = op;
+        this.value = value;
+    }
+
+    public String getAttribute() {
+        return attribute;
+    }
+
+    public void setAttribute(String attribute) {
+        this.attribute = attribute;
+    }
+
+    public String getOp() {
+        return op;
+    }
+
+    public void setOp(String op) {
+        this.op = op;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public void setValue(String value) {
+        this.value = value;
+    }
+
+    public List<String> getValues() {
+        return values;
+    }
+
+    public void setValues(List<String> values) {
+        this.values = values;
+    }
+
+    /*
+     * The values to compare with: values when given, value otherwise.
+     */
+    List<String> operands() {
+        if (values != null) {
+            return values;
+        }
+        return value == null ? Collections.emptyList() : Collections.singletonList(value);
+    }
+
+    @Override
+    public String toString() {
+        return attribute + " " + op + " " + (values != null ? values : value);
+    }
+}
@@ -0,0 +1,471 @@
+package cbporganizer.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Columnar indexes over the clinical attributes of one study, for answering attribute queries without reading the
+ * clinical files.
+ *
+ * Every attribute of the sample files is indexed by sample and every attribute of the patient files by patient; a
+ * patient condition selects the samples of the matching patients. NUMBER attributes keep their values sorted with
+ * the rows they come from, so a comparison is a binary search. Other attributes with few distinct values get one
+ * bitmap of rows per value; attributes with many, like the IDs, are sorted the same way as numbers instead, since a
+ * bitmap per value would grow with the square of the rows. Missing values match no condition.
+ */
+class ClinicalIndex {
+
+    // more distinct values than this and a bitmap per value costs more than a sorted column
+    private static final int MAX_BITMAPS = 128;
+
+    private final String fingerprint;
+    private final String[] sampleIds;
+    private final String[] patientIds;
+    private final int[] samplePatients;
+    private final int[] patientSampleStarts;
+    private final int[] patientSamples;
+    private final Map<String, Column> sampleColumns;
+    private final Map<String, Column> patientColumns;
+
+    private ClinicalIndex(String fingerprint, Table samples, Table patients) {
+        this.fingerprint = fingerprint;
+        this.sampleIds = samples.ids;
+        this.patientIds = patients.ids;
+        this.sampleColumns = samples.columns;
+        this.patientColumns = patients.columns;
+
+        Map<String, Integer> patientRows = new HashMap<>();
+        for (int p = patientIds.length - 1; p >= 0; p--) {
+            patientRows.put(patientIds[p], p);
+        }
+        samplePatients = new int[sampleIds.length];
+        patientSampleStarts = new int[patientIds.length + 1];
+        for (int s = 0; s < sampleIds.length; s++) {
+            Integer patient = samples.patientIds == null || samples.patientIds[s] == null ? null
+                    : patientRows.get(samples.patientIds[s]);
+            samplePatients[s] = patient == null ? -1 : patient;
+            if (patient != null) {
+                patientSampleStarts[patient + 1]++;
+            }
+        }
+        for (int p = 0; p < patientIds.length; p++) {
+            patientSampleStarts[p + 1] += patientSampleStarts[p];
+        }
+        patientSamples = new int[patientSampleStarts[patientIds.length]];
+        int[] next = Arrays.copyOf(patientSampleStarts, patientIds.length);
+        for (int s = 0; s < sampleIds.length; s++) {
+            if (samplePatients[s] >= 0) {
+                patientSamples[next[samplePatients[s]]++] = s;
+            }
+        }
+    }
+
+    /*
+     * Reads the sample and patient files, given relative to userDir, into a new index.
+     */
+    static ClinicalIndex build(Path userDir, List<String> sampleFiles, List<String> patientFiles, String fingerprint)
+            throws IOException {
+        Table samples = Table.read(userDir, sampleFiles, "SAMPLE_ID");
+        Table patients = Table.read(userDir, patientFiles, "PATIENT_ID");
+        return new ClinicalIndex(fingerprint, samples, patients);
+    }
+
+    String getFingerprint() {
+        return fingerprint;
+    }
+
+    int getSampleCount() {
+        return sampleIds.length;
+    }
+
+    int getPatientCount() {
+        return patientIds.length;
+    }
+
+    /*
+     * The samples matching all filters, and their patients; no filters match every sample. Throws
+     * IllegalArgumentException for an unknown attribute or operator, or a comparison the attribute does not support.
+     */
+    ClinicalQueryResult query(List<ClinicalFilter> filters) {
+        long start = System.nanoTime();
+        BitSet matches = new BitSet(sampleIds.length);
+        matches.set(0, sampleIds.length);
+        for (ClinicalFilter filter : filters) {
+            if (filter.getAttribute() == null) {
+                throw new IllegalArgumentException("A filter needs an attribute");
+            }
+            Column column = sampleColumns.get(filter.getAttribute());
+            if (column != null) {
+                matches.and(column.select(filter));
+                continue;
+            }
+            column = patientColumns.get(filter.getAttribute());
+            if (column == null) {
+                throw new IllegalArgumentException("Unknown clinical attribute " + filter.getAttribute());
+            }
+            BitSet patients = column.select(filter);
+            BitSet samples = new BitSet(sampleIds.length);
+            for (int p = patients.nextSetBit(0); p >= 0; p = patients.nextSetBit(p + 1)) {
+                for (int i = patientSampleStarts[p]; i < patientSampleStarts[p + 1]; i++) {
+                    samples.set(patientSamples[i]);
+                }
+            }
+            matches.and(samples);
+        }
+        List<String> samples = new ArrayList<>(matches.cardinality());
+        BitSet patients = new BitSet(patientIds.length);
+        for (int s = matches.nextSetBit(0); s >= 0; s = matches.nextSetBit(s + 1)) {
+            samples.add(sampleIds[s]);
+            if (samplePatients[s] >= 0) {
+                patients.set(samplePatients[s]);
+            }
+        }
+        List<String> patientList = new ArrayList<>(patients.cardinality());
+        for (int p = patients.nextSetBit(0); p >= 0; p = patients.nextSetBit(p + 1)) {
+            patientList.add(patientIds[p]);
+        }
+        return new ClinicalQueryResult(samples, patientList, (System.nanoTime() - start) / 1000);
+    }
+
+    /*
+     * The rows of one kind of clinical file: their IDs, the PATIENT_ID of each sample and the indexed attributes.
+     */
+    private static class Table {
+
+        String[] ids;
+        String[] patientIds;
+        Map<String, Column> columns = new LinkedHashMap<>();
+
+        static Table read(Path userDir, List<String> files, String idColumn) throws IOException {
+            List<String> ids = new ArrayList<>();
+            Map<String, List<String>> values = new LinkedHashMap<>();
+            Map<String, String> datatypes = new HashMap<>();
+            for (String file : files) {
+                readFile(userDir.resolve(file), idColumn, ids, values, datatypes);
+            }
+            Table table = new Table();
+            table.ids = ids.toArray(new String[0]);
+            for (Map.Entry<String, List<String>> entry : values.entrySet()) {
+                List<String> column = entry.getValue();
+                while (column.size() < ids.size()) {
+                    column.add(null);
+                }
+                String[] cells = column.toArray(new String[0]);
+                if (entry.getKey().equals("PATIENT_ID") && !idColumn.equals("PATIENT_ID")) {
+                    table.patientIds = cells;
+                }
+                table.columns.put(entry.getKey(), Column.of(cells, "NUMBER".equals(datatypes.get(entry.getKey()))));
+            }
+            return table;
+        }
+
+        /*
+         * Appends the rows of a file to ids and values, one list per attribute; a row without an ID is skipped.
+         */
+        private static void readFile(Path file, String idColumn, List<String> ids, Map<String, List<String>> values,
+                                     Map<String, String> datatypes) throws IOException {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                List<String> metadata = new ArrayList<>();
+                String line;
+                while ((line = reader.readLine()) != null && line.startsWith("#")) {
+                    metadata.add(line.substring(1));
+                }
+                if (line == null) {
+                    return;
+                }
+                String[] header = line.split("\t", -1);
+                String[] types = metadata.size() > 2 ? metadata.get(2).split("\t", -1) : new String[0];
+                int idIndex = -1;
+                List<List<String>> columns = new ArrayList<>();
+                for (int i = 0; i < header.length; i++) {
+                    String name = header[i].trim();
+                    if (name.equals(idColumn)) {
+                        idIndex = i;
+                    }
+                    if (header.length > 1 && Arrays.asList(header).subList(0, i).contains(header[i])) {
+                        // a repeated column is read once
+                        columns.add(new ArrayList<>());
+                        continue;
+                    }
+                    List<String> column = values.computeIfAbsent(name, k -> new ArrayList<>());
+                    while (column.size() < ids.size()) {
+                        column.add(null);
+                    }
+                    columns.add(column);
+                    if (i < types.length) {
+                        datatypes.putIfAbsent(name, types[i].trim().toUpperCase());
+                    }
+                }
+                if (idIndex < 0) {
+                    return;
+                }
+                while ((line = reader.readLine()) != null) {
+                    if (line.trim().isEmpty()) {
+                        continue;
+                    }
+                    String[] cells = line.split("\t", -1);
+                    String id = idIndex < cells.length ? cells[idIndex].trim() : "";
+                    if (ClinicalFileValidator.isNullValue(id)) {
+                        continue;
+                    }
+                    ids.add(id);
+                    for (int i = 0; i < columns.size(); i++) {
+                        String cell = i < cells.length ? cells[i].trim() : "";
+                        columns.get(i).add(ClinicalFileValidator.isNullValue(cell) ? null : cell);
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * The index of one attribute; select returns the rows matching a filter.
+     */
+    private abstract static class Column {
+
+        final int rows;
+        final BitSet present;
+
+        Column(String[] cells) {
+            rows = cells.length;
+            present = new BitSet(rows);
+            for (int i = 0; i < cells.length; i++) {
+                if (cells[i] != null) {
+                    present.set(i);
+                }
+            }
+        }
+
+        static Column of(String[] cells, boolean number) {
+            if (number) {
+                return new NumberColumn(cells);
+            }
+            Map<String, BitSet> bitmaps = new HashMap<>();
+            for (int i = 0; i < cells.length; i++) {
+                if (cells[i] != null) {
+                    bitmaps.computeIfAbsent(cells[i], k -> new BitSet()).set(i);
+                    if (bitmaps.size() > MAX_BITMAPS) {
+                        return new SortedColumn(cells);
+                    }
+                }
+            }
+            return new BitmapColumn(cells, bitmaps);
+        }
+
+        BitSet select(ClinicalFilter filter) {
+            String op = filter.getOp() == null ? "eq" : filter.getOp();
+            List<String> operands = filter.operands();
+            if (operands.isEmpty() && !op.equals("in")) {
+                throw new IllegalArgumentException("Filter " + filter + " needs a value");
+            }
+            switch (op) {
+                case "eq":
+                case "in":
+                    return equal(operands);
+                case "ne":
+                    BitSet others = (BitSet) present.clone();
+                    others.andNot(equal(operands));
+                    return others;
+                case "lt":
+                case "le":
+                case "gt":
+                case "ge":
+                    return compare(filter, op, operands.get(0));
+                default:
+                    throw new IllegalArgumentException("Unknown operator " + op + " in filter " + filter);
+            }
+        }
+
+        abstract BitSet equal(List<String> operands);
+
+        BitSet compare(ClinicalFilter filter, String op, String operand) {
+            throw new IllegalArgumentException("Filter " + filter + " needs a NUMBER attribute");
+        }
+
+        /*
+         * The rows of sortedRows from index from to index to, as a bitmap.
+         */
+        BitSet rowsOf(int[] sortedRows, int from, int to) {
+            BitSet bits = new BitSet(rows);
+            for (int i = from; i < to; i++) {
+                bits.set(sortedRows[i]);
+            }
+            return bits;
+        }
+    }
+
+    private static class BitmapColumn extends Column {
+
+        private final Map<String, BitSet> bitmaps;
+
+        BitmapColumn(String[] cells, Map<String, BitSet> bitmaps) {
+            super(cells);
+            this.bitmaps = bitmaps;
+        }
+
+        @Override
+        BitSet equal(List<String> operands) {
+            BitSet bits = new BitSet(rows);
+            for (String operand : operands) {
+                BitSet bitmap = bitmaps.get(operand);
+                if (bitmap != null) {
+                    bits.or(bitmap);
+                }
+            }
+            return bits;
+        }
+    }
+
+    private static class SortedColumn extends Column {
+
+        private final String[] values;
+        private final int[] sortedRows;
+
+        SortedColumn(String[] cells) {
+            super(cells);
+            int[] rowsPresent = present.stream().toArray();
+            int[] order = IntList.order(rowsPresent.length, Comparator.comparing(i -> cells[rowsPresent[i]]));
+            values = new String[order.length];
+            sortedRows = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                sortedRows[i] = rowsPresent[order[i]];
+                values[i] = cells[sortedRows[i]];
+            }
+        }
+
+        @Override
+        BitSet equal(List<String> operands) {
+            BitSet bits = new BitSet(rows);
+            for (String operand : operands) {
+                int from = lowerBound(operand);
+                int to = from;
+                while (to < values.length && values[to].equals(operand)) {
+                    bits.set(sortedRows[to++]);
+                }
+            }
+            return bits;
+        }
+
+        private int lowerBound(String operand) {
+            int low = 0;
+            int high = values.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[mid].compareTo(operand) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    private static class NumberColumn extends Column {
+
+        private final double[] values;
+        private final int[] sortedRows;
+
+        NumberColumn(String[] cells) {
+            super(numbers(cells));
+            double[] parsed = new double[rows];
+            for (int i = present.nextSetBit(0); i >= 0; i = present.nextSetBit(i + 1)) {
+                parsed[i] = Double.parseDouble(cells[i]);
+            }
+            int[] rowsPresent = present.stream().toArray();
+            int[] order = IntList.order(rowsPresent.length, (a, b) -> Double.compare(parsed[rowsPresent[a]],
+                    parsed[rowsPresent[b]]));
+            values = new double[order.length];
+            sortedRows = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                sortedRows[i] = rowsPresent[order[i]];
+                values[i] = parsed[sortedRows[i]];
+            }
+        }
+
+        /*
+         * The cells with the values that are not numbers, e.g. a stray text, left out.
+         */
+        private static String[] numbers(String[] cells) {
+            String[] numbers = new String[cells.length];
+            for (int i = 0; i < cells.length; i++) {
+                if (cells[i] != null && parse(cells[i]) != null) {
+                    numbers[i] = cells[i];
+                }
+            }
+            return numbers;
+        }
+
+        private static Double parse(String value) {
+            try {
+                double number = Double.parseDouble(value);
+                return Double.isNaN(number) ? null : number;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private static double operand(String value) {
+            Double number = parse(value);
+            if (number == null) {
+                throw new IllegalArgumentException(value + " is not a number");
+            }
+            return number;
+        }
+
+        @Override
+        BitSet equal(List<String> operands) {
+            BitSet bits = new BitSet(rows);
+            for (String operand : operands) {
+                double number = operand(operand);
+                for (int i = lowerBound(number, false); i < values.length && values[i] == number; i++) {
+                    bits.set(sortedRows[i]);
+                }
+            }
+            return bits;
+        }
+
+        @Override
+        BitSet compare(ClinicalFilter filter, String op, String operand) {
+            double number = operand(operand);
+            switch (op) {
+                case "lt":
+                    return rowsOf(sortedRows, 0, lowerBound(number, false));
+                case "le":
+                    return rowsOf(sortedRows, 0, lowerBound(number, true));
+                case "gt":
+                    return rowsOf(sortedRows, lowerBound(number, true), values.length);
+                default:
+                    return rowsOf(sortedRows, lowerBound(number, false), values.length);
+            }
+        }
+
+        /*
+         * The index of the first value not below number, or above it when inclusive is set.
+         */
+        private int lowerBound(double number, boolean inclusive) {
+            int low = 0;
+            int high = values.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[mid] < number || inclusive && values[mid] == number) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
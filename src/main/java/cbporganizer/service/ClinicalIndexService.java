@@ -0,0 +1,59 @@
+package cbporganizer.service;
+
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/*
+ * Keeps a ClinicalIndex for every study that has been uploaded or queried.
+ *
+ * An index remembers the size and modification time of the clinical files it was built from, as the catalog knows
+ * them; a query on a study whose clinical files changed since, by any path, rebuilds it first. After an upload the
+ * indexes of the user's studies are rebuilt in the background, so the first query does not pay for it.
+ */
+@Service
+public class ClinicalIndexService extends StudyIndexCache<ClinicalIndex> {
+
+    private static final String SAMPLE_TYPE = "CLINICAL:SAMPLE_ATTRIBUTES";
+    private static final String PATIENT_TYPE = "CLINICAL:PATIENT_ATTRIBUTES";
+
+    public ClinicalIndexService() {
+        super("clinical index", null, null);
+    }
+
+    /*
+     * Runs a query against the study's index, building it when needed; null when there is no such study. Throws
+     * IllegalArgumentException for an invalid filter.
+     */
+    public ClinicalQueryResult query(String userId, String folderName, List<ClinicalFilter> filters)
+            throws IOException {
+        ClinicalIndex index = get(userId, folderName);
+        return index == null ? null : index.query(filters);
+    }
+
+    @Override
+    protected String fingerprint(Path userDir, String folderName, List<CatalogEntry> files) {
+        return fingerprint(studyDataTypes.getDataFiles(userDir, files, SAMPLE_TYPE)) + "|"
+                + fingerprint(studyDataTypes.getDataFiles(userDir, files, PATIENT_TYPE));
+    }
+
+    @Override
+    protected String fingerprintOf(ClinicalIndex index) {
+        return index.getFingerprint();
+    }
+
+    @Override
+    protected ClinicalIndex build(Path userDir, String folderName, List<CatalogEntry> files, Path file,
+                                  String fingerprint) throws IOException {
+        long start = System.currentTimeMillis();
+        ClinicalIndex index = ClinicalIndex.build(userDir,
+                paths(studyDataTypes.getDataFiles(userDir, files, SAMPLE_TYPE)),
+                paths(studyDataTypes.getDataFiles(userDir, files, PATIENT_TYPE)), fingerprint);
+        System.out.println("Indexed the clinical files of " + folderName + ": " + index.getSampleCount()
+                + " samples, " + index.getPatientCount() + " patients in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return index;
+    }
+}
@@ -0,0 +1,40 @@
+package cbporganizer.service;
+
+import java.util.List;
+
+/*
+ * The samples matching all filters of a clinical attribute query, in file order, and their patients. elapsedMicros
+ * is the time spent on the indexes, without building them or writing the response.
+ */
+public class ClinicalQueryResult {
+
+    private final List<String> sampleIds;
+    private final List<String> patientIds;
+    private final long elapsedMicros;
+
+    ClinicalQueryResult(List<String> sampleIds, List<String> patientIds, long elapsedMicros) {
+        this.sampleIds = sampleIds;
+        this.patientIds = patientIds;
+        this.elapsedMicros = elapsedMicros;
+    }
+
+    public int getSampleCount() {
+        return sampleIds.size();
+    }
+
+    public int getPatientCount() {
+        return patientIds.size();
+    }
+
+    public List<String> getSampleIds() {
+        return sampleIds;
+    }
+
+    public List<String> getPatientIds() {
+        return patientIds;
+    }
+
+    public long getElapsedMicros() {
+        return elapsedMicros;
+    }
+}
@@ -0,0 +1,52 @@
+package cbporganizer.service;
+
+/*
+ * One problem found in a clinical data file. line and column are 1-based and null when the message concerns the
+ * whole file; cause is the offending value, if any.
+ */
+public class ClinicalValidationMessage {
+
+    public enum Level {
+        ERROR, WARNING
+    }
+
+    private final Level level;
+    private final String file;
+    private final Integer line;
+    private final Integer column;
+    private final String message;
+    private final String cause;
+
+    ClinicalValidationMessage(Level level, String file, Integer line, Integer column, String message, String cause) {
+        this.level = level;
+        this.file = file;
+        this.line = line;
+        this.column = column;
+        this.message = message;
+        this.cause = cause;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public Integer getLine() {
+        return line;
+    }
+
+    public Integer getColumn() {
+        return column;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public String getCause() {
+        return cause;
+    }
+}
@@ -0,0 +1,76 @@
+package cbporganizer.service;
+
+import java.util.List;
+
+/*
+ * Outcome of checking the clinical files of a study. status uses the exit codes of the study validator: 0 valid,
+ * 1 invalid, 2 not performed and 3 valid with warnings. Only the first messages are listed; the counts cover all.
+ */
+public class ClinicalValidationResult {
+
+    private final int status;
+    private final List<String> files;
+    private final int sampleCount;
+    private final int patientCount;
+    private final int errorCount;
+    private final int warningCount;
+    private final List<ClinicalValidationMessage> messages;
+    private final boolean truncated;
+    private final long durationMillis;
+
+    ClinicalValidationResult(int status, List<String> files, int sampleCount, int patientCount, int errorCount,
+                             int warningCount, List<ClinicalValidationMessage> messages, boolean truncated,
+                             long durationMillis) {
+        this.status = status;
+        this.files = files;
+        this.sampleCount = sampleCount;
+        this.patientCount = patientCount;
+        this.errorCount = errorCount;
+        this.warningCount = warningCount;
+        this.messages = messages;
+        this.truncated = truncated;
+        this.durationMillis = durationMillis;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public List<String> getFiles() {
+        return files;
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    public int getPatientCount() {
+        return patientCount;
+    }
+
+    public int getErrorCount() {
+        return errorCount;
+    }
+
+    public int getWarningCount() {
+        return warningCount;
+    }
+
+    public List<ClinicalValidationMessage> getMessages() {
+        return messages;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "ClinicalValidationResult{status=" + status + ", files=" + files + ", errors=" + errorCount
+                + ", warnings=" + warningCount + ", took " + durationMillis + " ms}";
+    }
+}
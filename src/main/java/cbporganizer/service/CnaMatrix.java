@@ -0,0 +1,395 @@
+package cbporganizer.service;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * The discrete copy number matrix of one study, from its data_cna.txt, packed into one byte per gene and sample.
+ *
+ * A cell holds twice the value, so -2, -1.5, -1, 0, 1 and 2 fit in a byte, or NA_CODE when it is empty or NA. The
+ * matrix is written to a file row by row and memory-mapped, so slices are written from the mapped file straight to
+ * the response, without a String or a boxed value per cell on the heap.
+ *
+ * The file holds, in order: the matrix, the sample and gene string tables, the sample and gene numbers sorted by
+ * name, a string table with the gene column name and the fingerprint of the CNA file, and a footer.
+ */
+class CnaMatrix {
+
+    private static final long MAGIC = 0x434e414d4158L; // "CNAMAX"
+    private static final int VERSION = 1;
+    private static final int FOOTER_SIZE = 8 + 6 * 4 + 4 + 8;
+    private static final byte NA_CODE = Byte.MIN_VALUE;
+    private static final String[] GENE_COLUMNS = {"Hugo_Symbol", "Entrez_Gene_Id"};
+    private static final Set<String> ROW_COLUMNS = new LinkedHashSet<>(
+            Arrays.asList("Hugo_Symbol", "Entrez_Gene_Id", "Cytoband"));
+
+    /* the text of every cell code, as written to a slice */
+    private static final byte[][] CELL_TEXT = new byte[256][];
+
+    static {
+        CELL_TEXT[NA_CODE & 0xff] = "NA".getBytes(StandardCharsets.US_ASCII);
+        for (int code = -4; code <= 4; code++) {
+            String text = code % 2 == 0 ? String.valueOf(code / 2) : (code / 2.0) + "";
+            CELL_TEXT[code & 0xff] = text.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final ByteBuffer[] segments;
+    private final int rowsPerSegment;
+    private final ByteBuffer meta;
+    private final int rowCount;
+    private final int sampleCount;
+    private final int samples;
+    private final int genes;
+    private final int sampleOrder;
+    private final int geneOrder;
+    private final String geneColumn;
+    private final String fingerprint;
+
+    private CnaMatrix(ByteBuffer[] segments, int rowsPerSegment, ByteBuffer meta, int[] offsets, int rowCount,
+                      int sampleCount) {
+        this.segments = segments;
+        this.rowsPerSegment = rowsPerSegment;
+        this.meta = meta;
+        this.rowCount = rowCount;
+        this.sampleCount = sampleCount;
+        this.samples = offsets[0];
+        this.genes = offsets[1];
+        this.sampleOrder = offsets[2];
+        this.geneOrder = offsets[3];
+        this.geneColumn = MutationIndex.stringAt(meta, offsets[4], 0);
+        this.fingerprint = MutationIndex.stringAt(meta, offsets[4], 1);
+    }
+
+    String getFingerprint() {
+        return fingerprint;
+    }
+
+    int getRowCount() {
+        return rowCount;
+    }
+
+    int getSampleCount() {
+        return sampleCount;
+    }
+
+    /*
+     * Maps a matrix file; null when it is missing or was written by another version.
+     */
+    static CnaMatrix open(Path file) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < FOOTER_SIZE) {
+                return null;
+            }
+            ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, size - FOOTER_SIZE, FOOTER_SIZE);
+            if (footer.getLong(FOOTER_SIZE - 8) != MAGIC || footer.getInt(FOOTER_SIZE - 12) != VERSION) {
+                return null;
+            }
+            long metaStart = footer.getLong(0);
+            int[] offsets = new int[5];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = footer.getInt(8 + i * 4);
+            }
+            int rowCount = footer.getInt(8 + 5 * 4);
+            MappedByteBuffer meta = channel.map(FileChannel.MapMode.READ_ONLY, metaStart,
+                    size - FOOTER_SIZE - metaStart);
+            int sampleCount = meta.getInt(offsets[0]);
+
+            // a mapping is limited to 2 GB, so a large matrix is mapped in segments of whole rows
+            int rowsPerSegment = Math.max(1, Integer.MAX_VALUE / Math.max(1, sampleCount));
+            ByteBuffer[] segments = new ByteBuffer[(rowCount + rowsPerSegment - 1) / rowsPerSegment];
+            for (int i = 0; i < segments.length; i++) {
+                int rows = Math.min(rowsPerSegment, rowCount - i * rowsPerSegment);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, (long) i * rowsPerSegment * sampleCount,
+                        (long) rows * sampleCount);
+            }
+            return new CnaMatrix(segments, rowsPerSegment, meta, offsets, rowCount, sampleCount);
+        }
+    }
+
+    /*
+     * Packs the discrete CNA file, given relative to userDir, and writes it to target. Throws
+     * IllegalArgumentException when a value is not one of -2, -1.5, -1, 0, 1, 2 or NA.
+     */
+    static void write(Path userDir, String cnaFile, Path target, String fingerprint) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path tmp = target.resolveSibling("." + target.getFileName() + ".tmp");
+        try (BufferedReader reader = Files.newBufferedReader(userDir.resolve(cnaFile), StandardCharsets.UTF_8);
+             OutputStream file = new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null && (line.startsWith("#") || line.trim().isEmpty())) {
+                lineNumber++;
+            }
+            lineNumber++;
+            if (line == null) {
+                throw new IllegalArgumentException(cnaFile + " is empty");
+            }
+            String[] header = line.split("\t", -1);
+            int geneColumn = -1;
+            for (String name : GENE_COLUMNS) {
+                geneColumn = Arrays.asList(header).indexOf(name);
+                if (geneColumn >= 0) {
+                    break;
+                }
+            }
+            int entrezColumn = Arrays.asList(header).indexOf("Entrez_Gene_Id");
+            if (geneColumn < 0) {
+                throw new IllegalArgumentException(cnaFile + " has no Hugo_Symbol or Entrez_Gene_Id column");
+            }
+            int firstSample = 0;
+            while (firstSample < header.length && ROW_COLUMNS.contains(header[firstSample])) {
+                firstSample++;
+            }
+            List<String> sampleIds = Arrays.asList(Arrays.copyOfRange(header, firstSample, header.length));
+            List<String> geneNames = new ArrayList<>();
+            byte[] row = new byte[sampleIds.size()];
+            long written = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] cells = line.split("\t", -1);
+                String gene = cell(cells, geneColumn);
+                if (gene.isEmpty() && entrezColumn >= 0) {
+                    gene = cell(cells, entrezColumn);
+                }
+                for (int s = 0; s < row.length; s++) {
+                    row[s] = code(cell(cells, firstSample + s), cnaFile, lineNumber);
+                }
+                file.write(row);
+                written += row.length;
+                geneNames.add(gene);
+            }
+
+            // the offsets in the footer are counted from the end of the matrix, which may be past 2 GB
+            DataOutputStream out = new DataOutputStream(file);
+            int[] offsets = new int[5];
+            offsets[0] = out.size();
+            MutationIndex.writeStrings(out, sampleIds);
+            offsets[1] = out.size();
+            MutationIndex.writeStrings(out, geneNames);
+            offsets[2] = out.size();
+            for (int sample : IntList.order(sampleIds.size(), Comparator.comparing(sampleIds::get))) {
+                out.writeInt(sample);
+            }
+            offsets[3] = out.size();
+            for (int gene : IntList.order(geneNames.size(), Comparator.comparing(geneNames::get))) {
+                out.writeInt(gene);
+            }
+            offsets[4] = out.size();
+            MutationIndex.writeStrings(out, Arrays.asList(header[geneColumn], fingerprint));
+            out.writeLong(written);
+            for (int offset : offsets) {
+                out.writeInt(offset);
+            }
+            out.writeInt(geneNames.size());
+            out.writeInt(VERSION);
+            out.writeLong(MAGIC);
+            out.flush();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /*
+     * The rows of the genes and the columns of the samples, in the order asked for; all of them when genes or
+     * samples is null. A gene that occurs in several rows gives all of them. Unknown ids are left out and listed.
+     */
+    CnaSlice slice(List<String> geneIds, List<String> sampleIds) {
+        List<String> unknownGenes = new ArrayList<>();
+        List<String> unknownSamples = new ArrayList<>();
+        int[] rows;
+        int[] columns;
+        if (geneIds == null) {
+            rows = range(rowCount);
+        } else {
+            IntList found = new IntList();
+            for (String gene : new LinkedHashSet<>(geneIds)) {
+                int before = found.size();
+                for (int i = lowerBound(genes, geneOrder, rowCount, gene); i < rowCount; i++) {
+                    int row = meta.getInt(geneOrder + i * 4);
+                    if (!MutationIndex.stringAt(meta, genes, row).equals(gene)) {
+                        break;
+                    }
+                    found.add(row);
+                }
+                if (found.size() == before) {
+                    unknownGenes.add(gene);
+                }
+            }
+            rows = found.toArray();
+        }
+        if (sampleIds == null) {
+            columns = range(sampleCount);
+        } else {
+            IntList found = new IntList();
+            for (String sample : new LinkedHashSet<>(sampleIds)) {
+                int i = lowerBound(samples, sampleOrder, sampleCount, sample);
+                int column = i < sampleCount ? meta.getInt(sampleOrder + i * 4) : -1;
+                if (column >= 0 && MutationIndex.stringAt(meta, samples, column).equals(sample)) {
+                    found.add(column);
+                } else {
+                    unknownSamples.add(sample);
+                }
+            }
+            columns = found.toArray();
+        }
+        return new CnaSlice(this, rows, columns, unknownGenes, unknownSamples);
+    }
+
+    /*
+     * Writes the rows and columns in the layout of data_cna.txt.
+     */
+    void write(OutputStream out, int[] rows, int[] columns) throws IOException {
+        LineBuffer line = new LineBuffer(out);
+        line.append(geneColumn.getBytes(StandardCharsets.UTF_8));
+        for (int column : columns) {
+            line.append((byte) '\t');
+            line.append(MutationIndex.stringAt(meta, samples, column).getBytes(StandardCharsets.UTF_8));
+        }
+        line.endLine();
+        for (int row : rows) {
+            ByteBuffer segment = segments[row / rowsPerSegment];
+            int start = (row % rowsPerSegment) * sampleCount;
+            line.append(MutationIndex.stringAt(meta, genes, row).getBytes(StandardCharsets.UTF_8));
+            for (int column : columns) {
+                line.append((byte) '\t');
+                line.append(CELL_TEXT[segment.get(start + column) & 0xff]);
+            }
+            line.endLine();
+        }
+        line.flush();
+    }
+
+    /*
+     * Collects bytes of the output and hands them on in blocks of 64 KB.
+     */
+    private static class LineBuffer {
+
+        private final OutputStream out;
+        private final byte[] buffer = new byte[64 * 1024];
+        private int size;
+
+        LineBuffer(OutputStream out) {
+            this.out = out;
+        }
+
+        void append(byte value) throws IOException {
+            if (size == buffer.length) {
+                flush();
+            }
+            buffer[size++] = value;
+        }
+
+        void append(byte[] bytes) throws IOException {
+            if (size + bytes.length > buffer.length) {
+                flush();
+                if (bytes.length > buffer.length) {
+                    out.write(bytes);
+                    return;
+                }
+            }
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        }
+
+        void endLine() throws IOException {
+            append((byte) '\n');
+        }
+
+        void flush() throws IOException {
+            out.write(buffer, 0, size);
+            size = 0;
+        }
+    }
+
+    /*
+     * The first position in order, the numbers of a string table sorted by their strings, whose string is not less
+     * than value.
+     */
+    private int lowerBound(int table, int order, int count, String value) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (MutationIndex.stringAt(meta, table, meta.getInt(order + mid * 4)).compareTo(value) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static byte code(String value, String file, int line) {
+        switch (value) {
+            case "0":
+                return 0;
+            case "-1":
+                return -2;
+            case "1":
+                return 2;
+            case "-2":
+                return -4;
+            case "2":
+                return 4;
+            case "-1.5":
+                return -3;
+            case "":
+            case "NA":
+                return NA_CODE;
+            default:
+                break;
+        }
+        try {
+            double twice = Double.parseDouble(value) * 2;
+            if (twice == Math.rint(twice) && twice >= -4 && twice <= 4 && twice != -1 && twice != 1 && twice != 3) {
+                return (byte) twice;
+            }
+        } catch (NumberFormatException e) {
+            // not a number, reported below
+        }
+        if (ClinicalFileValidator.isNullValue(value)) {
+            return NA_CODE;
+        }
+        throw new IllegalArgumentException(file + " line " + line + ": " + value
+                + " is not a discrete copy number value");
+    }
+
+    private static String cell(String[] cells, int column) {
+        return column >= 0 && column < cells.length ? cells[column].trim() : "";
+    }
+
+    private static int[] range(int count) {
+        int[] range = new int[count];
+        for (int i = 0; i < count; i++) {
+            range[i] = i;
+        }
+        return range;
+    }
+}
@@ -0,0 +1,66 @@
+package cbporganizer.service;
+
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/*
+ * Keeps the packed CnaMatrix of every study with a discrete CNA file, in cbpFiles/.cna-matrix/<user>/<study>.cna.
+ *
+ * Like the mutation index, a matrix file records the size and modification time of the CNA file it was packed from
+ * and is packed again when that changes. After an upload the matrices of the user's studies are packed in the
+ * background.
+ */
+@Service
+public class CnaMatrixService extends StudyIndexCache<CnaMatrix> {
+
+    private static final String CNA_TYPE = "COPY_NUMBER_ALTERATION:DISCRETE";
+
+    public CnaMatrixService() {
+        super("CNA matrix", FilesStorageServiceImpl.STORAGE_ROOT.resolve(".cna-matrix"), ".cna");
+    }
+
+    /*
+     * The rows of the genes and columns of the samples, all of them for a null list; null when there is no such
+     * study or it has no discrete CNA file. Throws IllegalArgumentException when the file cannot be packed.
+     */
+    public CnaSlice slice(String userId, String folderName, List<String> genes, List<String> samples)
+            throws IOException {
+        CnaMatrix matrix = get(userId, folderName);
+        return matrix == null ? null : matrix.slice(genes, samples);
+    }
+
+    @Override
+    protected String fingerprint(Path userDir, String folderName, List<CatalogEntry> files) {
+        List<CatalogEntry> cnaFiles = studyDataTypes.getDataFiles(userDir, files, CNA_TYPE);
+        if (cnaFiles.size() > 1) {
+            throw new IllegalArgumentException(folderName + " has more than one discrete CNA file");
+        }
+        return cnaFiles.isEmpty() ? null : fingerprint(cnaFiles);
+    }
+
+    @Override
+    protected String fingerprintOf(CnaMatrix matrix) {
+        return matrix.getFingerprint();
+    }
+
+    @Override
+    protected CnaMatrix open(Path file) throws IOException {
+        return CnaMatrix.open(file);
+    }
+
+    @Override
+    protected CnaMatrix build(Path userDir, String folderName, List<CatalogEntry> files, Path file,
+                              String fingerprint) throws IOException {
+        long start = System.currentTimeMillis();
+        CnaMatrix.write(userDir, studyDataTypes.getDataFiles(userDir, files, CNA_TYPE).get(0).getPath(), file,
+                fingerprint);
+        CnaMatrix matrix = CnaMatrix.open(file);
+        System.out.println("Packed the CNA file of " + folderName + ": " + matrix.getRowCount()
+                + " genes by " + matrix.getSampleCount() + " samples in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return matrix;
+    }
+}
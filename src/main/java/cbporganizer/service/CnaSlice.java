@@ -0,0 +1,49 @@
+package cbporganizer.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/*
+ * A slice of the discrete CNA matrix of a study, written from the mapped matrix file when the response is. Genes
+ * and samples that were asked for but are not in the matrix are listed.
+ */
+public class CnaSlice {
+
+    private final CnaMatrix matrix;
+    private final int[] rows;
+    private final int[] columns;
+    private final List<String> unknownGenes;
+    private final List<String> unknownSamples;
+
+    CnaSlice(CnaMatrix matrix, int[] rows, int[] columns, List<String> unknownGenes, List<String> unknownSamples) {
+        this.matrix = matrix;
+        this.rows = rows;
+        this.columns = columns;
+        this.unknownGenes = unknownGenes;
+        this.unknownSamples = unknownSamples;
+    }
+
+    public int getGeneCount() {
+        return rows.length;
+    }
+
+    public int getSampleCount() {
+        return columns.length;
+    }
+
+    public List<String> getUnknownGenes() {
+        return unknownGenes;
+    }
+
+    public List<String> getUnknownSamples() {
+        return unknownSamples;
+    }
+
+    /*
+     * Writes the slice as tab separated text in the layout of data_cna.txt.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        matrix.write(out, rows, columns);
+    }
+}
@@ -0,0 +1,28 @@
+package cbporganizer.service;
+
+import java.util.List;
+
+/*
+ * The genes and samples of a CNA slice, for lists too long for a query string; a missing list means all of them.
+ */
+public class CnaSliceRequest {
+
+    private List<String> genes;
+    private List<String> samples;
+
+    public List<String> getGenes() {
+        return genes;
+    }
+
+    public void setGenes(List<String> genes) {
+        this.genes = genes;
+    }
+
+    public List<String> getSamples() {
+        return samples;
+    }
+
+    public void setSamples(List<String> samples) {
+        this.samples = samples;
+    }
+}
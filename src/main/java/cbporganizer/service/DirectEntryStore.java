@@ -0,0 +1,36 @@
+package cbporganizer.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/*
+ * Stages each file next to its target and moves it into place; every study keeps its own copy.
+ */
+final class DirectEntryStore implements EntryStore {
+
+    static final DirectEntryStore INSTANCE = new DirectEntryStore();
+
+    private DirectEntryStore() {
+    }
+
+    @Override
+    public Path stage(Path target) throws IOException {
+        return Files.createTempFile(target.getParent(), ".extract-", ".tmp");
+    }
+
+    @Override
+    public void commit(Path staged, Path target, String sha256) throws IOException {
+        Files.move(staged, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void discard(Path staged) {
+        try {
+            Files.deleteIfExists(staged);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package cbporganizer.service;
+
+import java.nio.file.Path;
+
+/*
+ * Notified by the extraction paths after each file entry has been written, with the content hash computed on the way.
+ * Called from writer threads, so implementations must be thread-safe.
+ */
+interface EntryListener {
+
+    EntryListener NONE = (file, sha256, size) -> { };
+
+    void entryWritten(Path file, String sha256, long size);
+}
@@ -0,0 +1,18 @@
+package cbporganizer.service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/*
+ * Decides where the bytes of an extracted or uploaded file are written and how they become visible at their target
+ * path. Files are always staged under another name first, so a target is replaced atomically and never written
+ * through: with deduplicated storage the existing target may be a hard link shared with other studies.
+ */
+interface EntryStore {
+
+    Path stage(Path target) throws IOException;
+
+    void commit(Path staged, Path target, String sha256) throws IOException;
+
+    void discard(Path staged);
+}
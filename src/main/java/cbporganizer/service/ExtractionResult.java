@@ -0,0 +1,76 @@
+package cbporganizer.service;
+
+/*
+ * Summary of one archive extraction, returned to the client so upload throughput can be compared.
+ */
+public class ExtractionResult {
+
+    private final String fileName;
+    private final String format;
+    private final long archiveBytes;
+    private final long extractedBytes;
+    private final int entries;
+    private final long elapsedMillis;
+    private final boolean archiveKept;
+
+    public ExtractionResult(String fileName, String format, long archiveBytes, long extractedBytes, int entries,
+                            long elapsedMillis, boolean archiveKept) {
+        this.fileName = fileName;
+        this.format = format;
+        this.archiveBytes = archiveBytes;
+        this.extractedBytes = extractedBytes;
+        this.entries = entries;
+        this.elapsedMillis = elapsedMillis;
+        this.archiveKept = archiveKept;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    /*
+     * Archive format detected from the content, e.g. "tar.gz" or "zip".
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    public long getArchiveBytes() {
+        return archiveBytes;
+    }
+
+    public long getExtractedBytes() {
+        return extractedBytes;
+    }
+
+    public int getEntries() {
+        return entries;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public boolean isArchiveKept() {
+        return archiveKept;
+    }
+
+    public long getBytesPerSecond() {
+        return perSecond(archiveBytes);
+    }
+
+    public long getEntriesPerSecond() {
+        return perSecond(entries);
+    }
+
+    private long perSecond(long count) {
+        return elapsedMillis > 0 ? count * 1000L / elapsedMillis : count * 1000L;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%s): %d entries, %d archive bytes, %d extracted bytes in %d ms (%d B/s, %d entries/s)",
+                fileName, format, entries, archiveBytes, extractedBytes, elapsedMillis,
+                getBytesPerSecond(), getEntriesPerSecond());
+    }
+}
@@ -0,0 +1,35 @@
+package cbporganizer.service;
+
+/*
+ * One file of a study manifest: its path relative to the study folder and its content hash.
+ */
+public class FileDigest {
+
+    private final String path;
+    private final long size;
+    private final long lastModified;
+    private final String sha256;
+
+    public FileDigest(String path, long size, long lastModified, String sha256) {
+        this.path = path;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.sha256 = sha256;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+}
@@ -0,0 +1,35 @@
+package cbporganizer.service;
+
+import java.util.List;
+import java.util.Map;
+
+/*
+ * One page of a file listing. nextCursor is null on the last page.
+ */
+public class FileListing {
+
+    private final List<CatalogEntry> entries;
+    private final Map<String, String> dataTypes;
+    private final String nextCursor;
+
+    public FileListing(List<CatalogEntry> entries, Map<String, String> dataTypes, String nextCursor) {
+        this.entries = entries;
+        this.dataTypes = dataTypes;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<CatalogEntry> getEntries() {
+        return entries;
+    }
+
+    /*
+     * cBioPortal data type of the file as declared by its meta file, e.g. "MUTATION_EXTENDED:MAF", or null.
+     */
+    public String getDataType(CatalogEntry entry) {
+        return dataTypes.get(entry.getPath());
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
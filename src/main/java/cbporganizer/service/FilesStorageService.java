@@ -2,14 +2,20 @@ package cbporganizer.service;
 
 import org.springframework.web.multipart.MultipartFile;
 
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
 import java.util.List;
 
 public interface FilesStorageService {
 
     void init();
 
-    void save(MultipartFile file, String userId);
+    ExtractionResult save(MultipartFile file, String userId);
+
+    ExtractionResult saveStream(InputStream in, String fileName, String userId, boolean keepArchive);
+
+    ExtractionResult saveArchive(Path archive, String fileName, String userId);
 
     void deleteFiles(String userId);
 
@@ -19,14 +25,39 @@ public interface FilesStorageService {
 
     List<String> getFilesInFolder(String userId, String folderName);
 
+    String getListingVersion(String userId);
+
+    FileListing listFiles(String userId, String folderName, String after, int limit);
+
+    List<FileDigest> getManifest(String userId, String folderName);
+
+    FileDigest saveStudyFile(String userId, String folderName, String relativePath, InputStream in, String expectedSha256);
+
+    boolean deleteStudyFile(String userId, String folderName, String relativePath);
+
     byte[] getValidationResult(String userId, String folderName);
+
+    int validate(String userId, String folderName, ValidationJob job) throws IOException, InterruptedException;
+
+    ClinicalValidationResult validateClinicalFiles(String userId, String folderName);
     
     String getCreateCsv(String userId, String folderName);
 
-    byte[] getReport(String userId, String folderName) throws FileNotFoundException;
+    ClinicalCsvMerger.Merge prepareClinicalExport(String userId, String folderName) throws IOException;
+
+    /*
+     * The validation report of a study; FileNotFoundException when the study has not been validated yet.
+     */
+    Path getReportFile(String userId, String folderName) throws IOException;
 
-    String getReportAsString(String userId, String folderName);
+    /*
+     * The gzip variant of the validation report, validated_study.html.gz, written when the study is validated.
+     */
+    Path getCompressedReportFile(String userId, String folderName) throws IOException;
 
-   byte[] downloadCsv(String userId, String fileName);
+    /*
+     * The clinical.csv made by getCreateCsv; FileNotFoundException when there is none.
+     */
+    Path getClinicalCsvFile(String userId, String folderName) throws IOException;
 
 }
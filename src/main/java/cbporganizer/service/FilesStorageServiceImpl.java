@@ -2,25 +2,33 @@ package cbporganizer.service;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.util.StreamUtils;
 import org.springframework.web.multipart.MultipartFile;
 
 
 
 import java.io.*;
-import java.net.MalformedURLException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.stream.Collectors;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.Queue;
 import java.util.ArrayDeque;
 import java.util.Comparator;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.security.MessageDigest;
 
 
 
@@ -29,10 +37,66 @@ import java.util.Comparator;
 @Service
 public class FilesStorageServiceImpl implements FilesStorageService{
 
-    private final Path root = Paths.get("cbpFiles");
+    @Autowired
+    private PipelinedTarExtractor pipelinedExtractor;
+
+    @Autowired
+    private StudyManifestService manifestService;
+
+    @Autowired
+    private BlobStore blobStore;
+
+    @Autowired
+    private ValidationCache validationCache;
+
+    @Autowired
+    private ParallelZipExtractor zipExtractor;
+
+    @Autowired
+    private StudyCatalog catalog;
+
+    @Autowired
+    private StudyDataTypes studyDataTypes;
+
+    @Autowired
+    private ClinicalFileValidator clinicalFileValidator;
+
+    @Autowired
+    private PythonWorkerPool workerPool;
+
+    @Autowired
+    private ProcessRunner processRunner;
+
+    @Autowired
+    private ScriptCache scriptCache;
+
+    @Value("${cbporganizer.extract.pipelined:true}")
+    private boolean pipelinedExtraction;
+
+    @Value("${cbporganizer.validation.incremental:true}")
+    private boolean incrementalValidation;
+
+    @Value("${cbporganizer.validation.processes:1}")
+    private int validationProcesses;
+
+    @Autowired
+    private ClinicalCsvMerger clinicalCsvMerger;
+
+    @Autowired
+    private List<StudyChangeListener> studyChangeListeners;
+
+    @Value("${cbporganizer.clinical.merge-engine:java}")
+    private String clinicalMergeEngine;
+
+    static final Path STORAGE_ROOT = Paths.get("cbpFiles");
+
+    private final Path root = STORAGE_ROOT;
     private final String validationResultFileName = "validated_study.html";
     private final String csvFileName ="clinical.csv";
 
+    private static final int EXTRACT_BUFFER_SIZE = 256 * 1024;
+    private static final ThreadLocal<byte[]> EXTRACT_BUFFER = ThreadLocal.withInitial(() -> new byte[EXTRACT_BUFFER_SIZE]);
+
     @Override
     public void init() {
         try {
@@ -40,10 +104,17 @@ public class FilesStorageServiceImpl implements FilesStorageService{
         } catch (IOException e) {
             throw new RuntimeException("Could not initialize folder for upload!");
         }
+        blobStore.sweep();
+        catalog.start();
+        try {
+            workerPool.start(scriptCache.getScriptRoot());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     @Override
-    public void save(MultipartFile file, String userId) {
+    public ExtractionResult save(MultipartFile file, String userId) {
         Path userDir = getUserPath(userId);
         try {
             if (!Files.exists(userDir)) {
@@ -52,124 +123,366 @@ public class FilesStorageServiceImpl implements FilesStorageService{
             Path filePath = userDir.resolve(file.getOriginalFilename());
 
             Files.copy(file.getInputStream(), filePath, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            catalog.refresh(filePath);
 
-            extractGZip(filePath.toFile(), userId);
+            ExtractionResult result = extractArchive(filePath.toFile(), userId);
+            if (result == null) {
+                throw new IllegalArgumentException("Unsupported archive format: " + file.getOriginalFilename());
+            }
+            return result;
         } catch (IOException e) {
             e.printStackTrace();
+            throw new RuntimeException("Could not extract the uploaded archive: " + file.getOriginalFilename());
         }
     }
 
     /*
-     * Resolves the path to the user's directory by the userId.
+     * Extracts an archive while it is being read from the request body, without staging it on disk first.
+     * When keepArchive is set, the raw bytes are copied to cbpFiles/<user>/<name> on the way through.
+     * Zip archives need their central directory, which is at the end, so they are written to disk before extraction.
      */
-    private Path getUserPath(String userId) {
-        return root.resolve(userId);
-    }
-
-    private void extractGZip(File inputFile, String userId) {
+    @Override
+    public ExtractionResult saveStream(InputStream in, String fileName, String userId, boolean keepArchive) {
         Path userDir = getUserPath(userId);
+        String name = Paths.get(fileName).getFileName().toString();
         try {
-            TarArchiveInputStream tarInput = new TarArchiveInputStream(new GZIPInputStream(new FileInputStream(inputFile)));
-
-            TarArchiveEntry entry;
-            while((entry = tarInput.getNextTarEntry()) != null) {
-                if (entry.isDirectory()) {
-                    new File(userDir.resolve(entry.getName()).toString()).mkdirs();
-                } else {
-                    byte[] buffer = new byte[1024];
-                    File outFile = userDir.resolve(entry.getName()).toFile();
-                    outFile.getParentFile().mkdirs();
-                    try (FileOutputStream fos = new FileOutputStream(outFile)) {
-                        int len;
-                        while ((len = tarInput.read(buffer)) > 0) {
-                            fos.write(buffer, 0, len);
-                        }
+            Files.createDirectories(userDir);
+            BufferedInputStream source = new BufferedInputStream(in, EXTRACT_BUFFER_SIZE);
+            byte[] magic = new byte[ArchiveFormat.MAGIC_LENGTH];
+            source.mark(magic.length);
+            ArchiveFormat format = ArchiveFormat.detect(magic, ArchiveFormat.readFully(source, magic));
+            source.reset();
+            if (format == null) {
+                throw new IllegalArgumentException("Unsupported archive format: " + name);
+            }
+            if (format == ArchiveFormat.ZIP) {
+                Path archive = keepArchive ? userDir.resolve(name) : Files.createTempFile(root, ".stream-", ".zip");
+                try {
+                    Files.copy(source, archive, StandardCopyOption.REPLACE_EXISTING);
+                    return extractZip(archive, userId, name, keepArchive);
+                } finally {
+                    if (keepArchive) {
+                        catalog.refresh(archive);
+                    } else {
+                        Files.deleteIfExists(archive);
                     }
                 }
             }
+            try (OutputStream copy = keepArchive
+                    ? new BufferedOutputStream(Files.newOutputStream(userDir.resolve(name)), EXTRACT_BUFFER_SIZE)
+                    : null) {
+                return extractTarGz(new ArchiveTeeInputStream(source, copy), userId, name, keepArchive);
+            } finally {
+                if (keepArchive) {
+                    catalog.refresh(userDir.resolve(name));
+                }
+            }
         } catch (IOException e) {
             e.printStackTrace();
+            throw new RuntimeException("Could not extract the uploaded archive: " + name);
         }
     }
 
     /*
-     * Returns a list of files in the user's directory.
+     * Moves an archive that was assembled elsewhere, e.g. by a chunked upload, into the user's directory and
+     * extracts it the same way as a regular upload.
      */
     @Override
-    public List<String> getFiles(String userId) {
+    public ExtractionResult saveArchive(Path archive, String fileName, String userId) {
         Path userDir = getUserPath(userId);
-        List<String> ret = new LinkedList<>();
+        String name = Paths.get(fileName).getFileName().toString();
         try {
-            ret = Files.walk(userDir)
-                    .filter(Files::isRegularFile)
-                    .map(file -> file.getFileName().toString())
-                    .collect(Collectors.toList());
+            Files.createDirectories(userDir);
+            Path filePath = userDir.resolve(name);
+            Files.move(archive, filePath, StandardCopyOption.REPLACE_EXISTING);
+            catalog.refresh(filePath);
+            ExtractionResult result = extractArchive(filePath.toFile(), userId);
+            if (result == null) {
+                throw new IllegalArgumentException("Unsupported archive format: " + name);
+            }
+            return result;
         } catch (IOException e) {
-            throw new RuntimeException("Could not list the files!");
-        } finally {
-            return ret;
+            e.printStackTrace();
+            throw new RuntimeException("Could not extract the uploaded archive: " + name);
         }
     }
 
-    @Override
-    public List<String> getFolders(String userId) {
+    /*
+     * Resolves the path to the user's directory by the userId.
+     */
+    private Path getUserPath(String userId) {
+        return root.resolve(userId);
+    }
+
+    /*
+     * Extracts an archive stored in the user's directory according to its detected format; returns null for
+     * anything that is neither tar.gz nor zip.
+     */
+    private ExtractionResult extractArchive(File inputFile, String userId) throws IOException {
+        ArchiveFormat format = ArchiveFormat.detect(inputFile.toPath());
+        if (format == ArchiveFormat.ZIP) {
+            return extractZip(inputFile.toPath(), userId, inputFile.getName(), true);
+        }
+        if (format == ArchiveFormat.TAR_GZ) {
+            return extractGZip(inputFile, userId);
+        }
+        System.err.println("Unsupported archive format: " + inputFile.getName());
+        return null;
+    }
+
+    private ExtractionResult extractGZip(File inputFile, String userId) throws IOException {
+        try (InputStream in = new FileInputStream(inputFile)) {
+            return extractTarGz(new ArchiveTeeInputStream(in, null), userId, inputFile.getName(), true);
+        }
+    }
+
+    /*
+     * Decompresses and unpacks a tar.gz stream into the user's directory, either through the pipelined extractor
+     * or sequentially on the calling thread with one reusable per-thread buffer.
+     */
+    private ExtractionResult extractTarGz(ArchiveTeeInputStream source, String userId, String fileName,
+                                          boolean archiveKept) throws IOException {
         Path userDir = getUserPath(userId);
-        if (!Files.exists(userDir)) {
-            return null;
+        return extractRecorded(userId, (store, listener) -> pipelinedExtraction
+                ? pipelinedExtractor.extract(source, userDir, fileName, archiveKept, store, listener)
+                : extractTarGzSequentially(source, userDir, fileName, archiveKept, store, listener));
+    }
+
+    /*
+     * Unpacks a zip archive into the user's directory, inflating its entries in parallel.
+     */
+    private ExtractionResult extractZip(Path archive, String userId, String fileName, boolean archiveKept)
+            throws IOException {
+        Path userDir = getUserPath(userId);
+        return extractRecorded(userId, (store, listener) ->
+                zipExtractor.extract(archive, userDir, fileName, archiveKept, store, listener));
+    }
+
+    /*
+     * Runs an extraction against the current entry store. The content hashes computed while writing are recorded in
+     * the study manifests, blobs no longer referenced by the replaced files are freed and the written files are
+     * added to the catalog.
+     */
+    private ExtractionResult extractRecorded(String userId, Extraction extraction) throws IOException {
+        Map<Path, String> hashes = new ConcurrentHashMap<>();
+        try {
+            ExtractionResult result = extraction.run(getEntryStore(), (file, sha256, size) -> hashes.put(file, sha256));
+            System.out.println("Extracted " + result);
+            blobStore.release(manifestService.record(userId, hashes));
+            return result;
+        } finally {
+            for (Path file : hashes.keySet()) {
+                catalog.refresh(file);
+            }
+            studiesChanged(userId);
         }
-        List<String> ret = new LinkedList<>();
+    }
+
+    private interface Extraction {
+        ExtractionResult run(EntryStore store, EntryListener listener) throws IOException;
+    }
+
+    /*
+     * Extracted and uploaded study files go to the deduplicated blob store when the file system supports it.
+     */
+    private EntryStore getEntryStore() {
+        return blobStore.isAvailable() ? blobStore : DirectEntryStore.INSTANCE;
+    }
+
+    private ExtractionResult extractTarGzSequentially(ArchiveTeeInputStream source, Path userDir, String fileName,
+                                                      boolean archiveKept, EntryStore store,
+                                                      EntryListener listener) throws IOException {
+        long start = System.currentTimeMillis();
+        byte[] buffer = EXTRACT_BUFFER.get();
+        int entries = 0;
+        long extractedBytes = 0;
+        TarArchiveInputStream tarInput = new TarArchiveInputStream(
+                new GZIPInputStream(source, EXTRACT_BUFFER_SIZE));
+        TarArchiveEntry entry;
+        while ((entry = tarInput.getNextTarEntry()) != null) {
+            Path target = ArchiveEntries.resolve(userDir, entry.getName());
+            if (entry.isDirectory()) {
+                Files.createDirectories(target);
+                continue;
+            }
+            Files.createDirectories(target.getParent());
+            MessageDigest digest = Digests.sha256();
+            long size = 0;
+            Path staged = store.stage(target);
+            try {
+                try (OutputStream fos = Files.newOutputStream(staged)) {
+                    int len;
+                    while ((len = tarInput.read(buffer)) > 0) {
+                        fos.write(buffer, 0, len);
+                        digest.update(buffer, 0, len);
+                        size += len;
+                    }
+                }
+                String sha256 = Digests.toHex(digest.digest());
+                store.commit(staged, target, sha256);
+                listener.entryWritten(target, sha256, size);
+            } catch (IOException e) {
+                store.discard(staged);
+                throw e;
+            }
+            extractedBytes += size;
+            entries++;
+        }
+        source.drain(buffer);
+        return new ExtractionResult(fileName, ArchiveFormat.TAR_GZ.getName(), source.getCount(), extractedBytes, entries,
+                System.currentTimeMillis() - start, archiveKept);
+    }
+
+    @Override
+    public List<FileDigest> getManifest(String userId, String folderName) {
+        return manifestService.getManifest(userId, folderName);
+    }
+
+    /*
+     * Replaces a single file of a study with the given content, e.g. when a client re-uploads only the files whose
+     * hash differs from the manifest. The file is staged through the same entry store as extracted files and moved
+     * into place, so readers never see a half-written file. When expectedSha256 is given and does not match, the
+     * upload is discarded.
+     */
+    @Override
+    public FileDigest saveStudyFile(String userId, String folderName, String relativePath, InputStream in,
+                                    String expectedSha256) {
         try {
-            ret = Files.walk(userDir, 1) //only one level for study names
-                    .filter(path -> path.toFile().isDirectory())
-                    .map(folder -> folder.getFileName().toString())
-                    .collect(Collectors.toList());
-            // remove the user's directory
-            ret.remove(0);
+            Path studyDir = ArchiveEntries.resolve(getUserPath(userId), folderName);
+            Path target = ArchiveEntries.resolve(studyDir, relativePath);
+            if (target.equals(studyDir)) {
+                throw new IllegalArgumentException("A file path inside the study is required");
+            }
+            Files.createDirectories(target.getParent());
+            EntryStore store = getEntryStore();
+            Path staged = store.stage(target);
+            MessageDigest digest = Digests.sha256();
+            try {
+                byte[] buffer = EXTRACT_BUFFER.get();
+                try (OutputStream out = Files.newOutputStream(staged)) {
+                    int len;
+                    while ((len = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, len);
+                        digest.update(buffer, 0, len);
+                    }
+                }
+                String sha256 = Digests.toHex(digest.digest());
+                if (expectedSha256 != null && !expectedSha256.equalsIgnoreCase(sha256)) {
+                    throw new IllegalArgumentException("Content hash " + sha256 + " does not match " + expectedSha256);
+                }
+                store.commit(staged, target, sha256);
+                catalog.refresh(target);
+                studiesChanged(userId);
+                blobStore.release(manifestService.record(userId, Collections.singletonMap(target, sha256)));
+                return new FileDigest(studyDir.relativize(target).toString().replace('\\', '/'), Files.size(target),
+                        Files.getLastModifiedTime(target).toMillis(), sha256);
+            } catch (IOException | RuntimeException e) {
+                store.discard(staged);
+                throw e;
+            }
         } catch (IOException e) {
-            throw new RuntimeException("Could not list folders!");
+            e.printStackTrace();
+            throw new RuntimeException("Could not save the file " + relativePath);
         }
-        return ret;
     }
 
     @Override
-    public List<String> getFilesInFolder(String userId, String folderName) {
-        Path folderPath = getUserPath(userId).resolve(folderName);
-        List<String> ret = new LinkedList<>();
+    public boolean deleteStudyFile(String userId, String folderName, String relativePath) {
         try {
-            ret = Files.list(folderPath)
-                    .filter(Files::isRegularFile)
-                    .map(file -> file.getFileName().toString())
-                    .collect(Collectors.toList());
+            Path studyDir = ArchiveEntries.resolve(getUserPath(userId), folderName);
+            Path target = ArchiveEntries.resolve(studyDir, relativePath);
+            if (!Files.isRegularFile(target)) {
+                return false;
+            }
+            Files.delete(target);
+            catalog.remove(target);
+            studiesChanged(userId);
+            String sha256 = manifestService.remove(userId, folderName,
+                    studyDir.relativize(target).toString().replace('\\', '/'));
+            if (sha256 != null) {
+                blobStore.release(Collections.singleton(sha256));
+            }
+            return true;
         } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Could not delete the file " + relativePath);
+        }
+    }
+
+    /*
+     * Returns a list of files in the user's directory.
+     */
+    @Override
+    public List<String> getFiles(String userId) {
+        return catalog.getFiles(userId).stream()
+                .map(CatalogEntry::getName)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<String> getFolders(String userId) {
+        return catalog.getFolders(userId);
+    }
+
+    @Override
+    public List<String> getFilesInFolder(String userId, String folderName) {
+        List<CatalogEntry> files = catalog.getFilesInFolder(userId, folderName);
+        if (files == null) {
             throw new RuntimeException("Could not list the files in the folder!");
         }
-        return ret;
+        return files.stream()
+                .map(CatalogEntry::getName)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public String getListingVersion(String userId) {
+        return catalog.getVersion(userId);
+    }
+
+    /*
+     * Returns one page of the files of the user, or of one study folder when folderName is given, with the data
+     * types declared by the meta files of the studies on the page. Returns null when the folder does not exist.
+     */
+    @Override
+    public FileListing listFiles(String userId, String folderName, String after, int limit) {
+        List<CatalogEntry> page = catalog.getFilesAfter(userId, folderName, after, limit + 1);
+        if (page == null) {
+            return null;
+        }
+        String nextCursor = null;
+        if (page.size() > limit) {
+            page = page.subList(0, limit);
+            nextCursor = page.get(limit - 1).getPath();
+        }
+        Set<String> studies = new TreeSet<>();
+        for (CatalogEntry entry : page) {
+            int slash = entry.getPath().indexOf('/');
+            if (slash > 0) {
+                studies.add(entry.getPath().substring(0, slash));
+            }
+        }
+        List<CatalogEntry> metaFiles = new ArrayList<>();
+        for (String study : studies) {
+            List<CatalogEntry> files = catalog.getFilesInFolder(userId, study);
+            if (files != null) {
+                for (CatalogEntry file : files) {
+                    if (file.getType().equals("meta")) {
+                        metaFiles.add(file);
+                    }
+                }
+            }
+        }
+        return new FileListing(page, studyDataTypes.getDataTypes(getUserPath(userId), metaFiles), nextCursor);
     }
 
     @Override
     public byte[] getValidationResult(String userId, String folderName) {
         Path userDir = getUserPath(userId).resolve(folderName);
-        String scriptName = "validateData.py";
         byte[] ret = null;
         try {
-            // Create a temporary directory to extract the script
-            Path tempDir = Files.createTempDirectory("python-script");
-
-            // Extract the script to the temporary directory
-            Path importerDir = tempDir.resolve("importer");
-            Path scriptFile = importerDir.resolve(scriptName);
-            copyScriptsToTempDir(importerDir);
-
             File outFileHtml = new File(userDir.toFile(), validationResultFileName);
-
-            ProcessBuilder processBuilder = new ProcessBuilder("python3", scriptFile.toString(),
-                    "-s", userDir.toFile().getAbsolutePath(), "-n", "-html", outFileHtml.getAbsolutePath());
-            processBuilder.directory(tempDir.toFile());
-
-            processBuilder.redirectError(new File(userDir.toFile(), "errorOut.txt"));
-
-            Process p = processBuilder.start();
-            int exitCode = p.waitFor();
+            int exitCode = validate(userId, folderName, null);
             if (exitCode != 0) {
                 ret = Files.readAllBytes(outFileHtml.toPath());
             }
@@ -184,6 +497,117 @@ public class FilesStorageServiceImpl implements FilesStorageService{
         }
     }
 
+    /*
+     * Runs the validator on a study folder and returns its exit status: 0 valid, 1 invalid, 2 not performed and
+     * 3 valid with warnings. The report goes to validated_study.html, the messages in it one by one to
+     * validated_study_messages.jsonl and the validator's log to errorOut.txt.
+     * A job, when given, learns where the log is written and can cancel the run. A study whose content was
+     * validated before gets the earlier outputs back without running the validator; otherwise, in incremental mode,
+     * only the data files that changed since an earlier validation are validated again, and the data files are
+     * validated by several processes at once.
+     */
+    @Override
+    public int validate(String userId, String folderName, ValidationJob job) throws IOException, InterruptedException {
+        Path userDir = getUserPath(userId).resolve(folderName);
+        Path outFileHtml = userDir.resolve(validationResultFileName);
+        Path errorFile = userDir.resolve("errorOut.txt");
+        Path compressedHtml = userDir.resolve(validationResultFileName + ".gz");
+        Path messagesFile = userDir.resolve(ValidationMessageService.MESSAGES_FILE);
+        unlinkOutputs(outFileHtml, compressedHtml, userDir.resolve("validated_study_cropped.html"), errorFile,
+                messagesFile, userDir.resolve(ValidationMessageService.INDEX_FILE));
+
+        String fingerprint = validationCache.isEnabled()
+                ? validationCache.fingerprint(userId, folderName, userDir) : null;
+        if (fingerprint != null) {
+            Integer cached = validationCache.restore(fingerprint, userDir);
+            if (cached != null) {
+                if (job != null) {
+                    job.attach(null, errorFile);
+                }
+                catalog.refresh(userDir);
+                return cached;
+            }
+        }
+
+        List<String> args = new ArrayList<>(Arrays.asList(
+                "-s", userDir.toFile().getAbsolutePath(), "-n", "-html", outFileHtml.toFile().getAbsolutePath(),
+                "--messages_file", messagesFile.toAbsolutePath().toString()));
+        String module = "validateData";
+        if (incrementalValidation && fingerprint != null) {
+            // the manifest was just brought up to date by the fingerprint
+            module = "validateStudyFiles";
+            args.addAll(Arrays.asList(
+                    "--records-dir", validationCache.getRecordsDir().toAbsolutePath().toString(),
+                    "--file-hashes", manifestService.getManifestPath(userId, folderName).toAbsolutePath().toString(),
+                    "--script-version", scriptCache.getVersion()));
+        }
+        // 0 shares the cores among the scripts ProcessRunner lets run at once
+        int processes = validationProcesses > 0 ? validationProcesses
+                : Math.max(1, Runtime.getRuntime().availableProcessors() / Math.max(1, processRunner.getMaxConcurrent()));
+        if (processes > 1) {
+            module = "validateStudyFiles";
+            args.addAll(Arrays.asList("--jobs", Integer.toString(processes)));
+        }
+        PythonJob script = new PythonJob(module, args, null, null, errorFile);
+        if (job != null) {
+            job.attach(script, errorFile);
+        }
+        try {
+            ProcessRun run = processRunner.run(script);
+            if (run.isTimedOut()) {
+                throw new IOException("Validation of " + folderName + " timed out after " + run.getWallMillis()
+                        + " ms");
+            }
+            if (run.getExitCode() == null) {
+                throw new InterruptedIOException("Validation of " + folderName + " was cancelled");
+            }
+            int exitCode = run.getExitCode();
+            if (Files.isRegularFile(outFileHtml)) {
+                compressReport(outFileHtml, compressedHtml);
+            }
+            if (fingerprint != null && !script.isCancelled()) {
+                validationCache.store(fingerprint, userDir, exitCode);
+            }
+            return exitCode;
+        } finally {
+            catalog.refresh(userDir);
+        }
+    }
+
+    /*
+     * Checks only the clinical sample and patient files of the folder, in Java, which takes milliseconds instead of
+     * a run of the study validator. The files are found through the meta files that declare them. Returns null when
+     * the folder does not exist.
+     */
+    @Override
+    public ClinicalValidationResult validateClinicalFiles(String userId, String folderName) {
+        List<CatalogEntry> files = catalog.getFilesInFolder(userId, folderName);
+        if (files == null) {
+            return null;
+        }
+        List<String> sampleFiles = studyDataTypes.getDataFiles(getUserPath(userId), files,
+                "CLINICAL:SAMPLE_ATTRIBUTES").stream().map(CatalogEntry::getPath).collect(Collectors.toList());
+        List<String> patientFiles = studyDataTypes.getDataFiles(getUserPath(userId), files,
+                "CLINICAL:PATIENT_ATTRIBUTES").stream().map(CatalogEntry::getPath).collect(Collectors.toList());
+        ClinicalValidationResult result = clinicalFileValidator.validate(getUserPath(userId), sampleFiles,
+                patientFiles);
+        System.out.println("Validated clinical files of " + folderName + ": " + result);
+        return result;
+    }
+
+    /*
+     * The merge behind clinical.csv, ready to be written straight to a response instead of to the study; null when
+     * there is no such study.
+     */
+    @Override
+    public ClinicalCsvMerger.Merge prepareClinicalExport(String userId, String folderName) throws IOException {
+        Path userDir = getUserPath(userId).resolve(folderName);
+        if (!Files.isDirectory(userDir)) {
+            return null;
+        }
+        return clinicalCsvMerger.prepare(userDir.resolve("data_clinical_sample.txt"),
+                userDir.resolve("data_clinical_patient.txt"), userDir.resolve("meta_study.txt"));
+    }
 
 @Override
 public String getCreateCsv(String userId, String folderName) {
@@ -222,13 +646,26 @@ public String getCreateCsv(String userId, String folderName) {
 //checking with validate.py
         Path userDir = getUserPath(userId).resolve(folderName);
         String scriptName = "prepare_clinical_data.py";
-        Path tempDir = Files.createTempDirectory("python-script");
-
-        // Extract the script to the temporary directory
-        Path importerDir = tempDir.resolve("importer");
-        Path scriptFile = importerDir.resolve(scriptName);
-        copyScriptsToTempDir(importerDir);
         File outFileHtml = new File(userDir.toFile(), csvFileName);
+        unlinkOutputs(outFileHtml.toPath());
+
+        if ("java".equals(clinicalMergeEngine)) {
+            // the same merge as prepare_clinical_data.py, without starting Python and pandas
+            try {
+                long started = System.currentTimeMillis();
+                int rows = clinicalCsvMerger.merge(userDir.resolve("data_clinical_sample.txt"),
+                        userDir.resolve("data_clinical_patient.txt"), userDir.resolve("meta_study.txt"),
+                        outFileHtml.toPath());
+                System.out.println("Merged " + rows + " clinical rows of " + folderName + " in "
+                        + (System.currentTimeMillis() - started) + " ms");
+                retRes = "Success";
+            } catch (IllegalArgumentException | IOException e) {
+                e.printStackTrace();
+                retRes = "Error: " + e.getMessage();
+            }
+            catalog.refresh(outFileHtml.toPath());
+            return retRes;
+        }
 
 
 
@@ -343,7 +780,7 @@ public String getCreateCsv(String userId, String folderName) {
         String[] command = new String[arguments.length + 2];
         command[0] = pythonCommand;
         //change here as well
-        command[1] = scriptFile.toString();
+        command[1] = scriptName;
         command[2] = arguments[0];
         command[3] = arguments[1];
         command[4] = arguments[2];
@@ -375,7 +812,6 @@ public String getCreateCsv(String userId, String folderName) {
         for (Map.Entry<String, String> entry : env.entrySet()) {
             //System.out.printf(entry.getKey() + " : " + entry.getValue());
         }
-        ProcessBuilder pb = new ProcessBuilder(command);
        //ProcessBuilder pb = new ProcessBuilder("python3", "src/main/resources/trial-match-utils/src/tools/prepare_clinical_data.py -s src/main/resources/trial-match-utils/src/tools/samples/data_clinical_sample.txt -p src/main/resources/trial-match-utils/src/tools/samples/data_clinical_patient.txt -st src/main/resources/trial-match-utils/src/tools/samples/meta_study.txt -o src/main/resources/trial-match-utils/src/tools/samples/clinical.csv");
       /* ProcessBuilder pb = new ProcessBuilder(
     "python3",
@@ -399,31 +835,22 @@ public String getCreateCsv(String userId, String folderName) {
             long fileSize = csvFile.length(); 
             System.out.printf("Clinical.csv File size before operation"+Long.toString(fileSize));
 
-        Process process = pb.start();
-
-        // Capture output from Python script
-        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-        String line;
-        while ((line = reader.readLine()) != null) {
-            // Process output here if needed
-            System.out.println(line);
-            // Write output to the byte array stream
-            outputStream.write(line.getBytes());
+        // the script's output goes to files, so it can run on a worker; only the end of each is kept in memory
+        Path stdoutFile = Files.createTempFile("prepare-clinical-", ".out");
+        Path stderrFile = Files.createTempFile("prepare-clinical-", ".err");
+        ProcessRun run;
+        try {
+            run = processRunner.run(new PythonJob("prepare_clinical_data", Arrays.asList(arguments),
+                    Paths.get("").toAbsolutePath(), stdoutFile, stderrFile));
+        } finally {
+            Files.deleteIfExists(stdoutFile);
+            Files.deleteIfExists(stderrFile);
         }
-
-
-
-            InputStream errorStream = process.getErrorStream();
-            BufferedReader errorReader = new BufferedReader(new InputStreamReader(errorStream));
-            StringBuilder errorStringBuilder = new StringBuilder();
-            System.out.println("Error:");
-            while ((line = errorReader.readLine()) != null) {
-                System.out.println(line);
-                errorStringBuilder.append(line).append("\n");
-            }
-
-        // Wait for the process to complete
-        int exitCode = process.waitFor();
+        System.out.println(run.getStdout());
+        System.out.println("Error:");
+        System.out.println(run.getStderr());
+        int exitCode = run.getExitCode() != null ? run.getExitCode() : -1;
+        catalog.refresh(outFileHtml.toPath());
 
         if (exitCode == 0) {
             
@@ -433,10 +860,13 @@ public String getCreateCsv(String userId, String folderName) {
             //System.out.println(String.format("Python script executed successfully. Size of CSV File: %d", fileSize));
             //retRes="Success while executing: "+Long.toString(fileSize);
             retRes="Success";
+        } else if (run.isTimedOut()) {
+            System.err.println("Python script timed out after " + run.getWallMillis() + " ms");
+            retRes="Error: timed out after " + run.getWallMillis() / 1000 + " s";
         } else {
             System.out.println("Error, exit code is not zero");
             System.err.println("Error executing Python script. Exit code: " + exitCode);
-            retRes="Error: "+ errorStringBuilder.toString();
+            retRes="Error: "+ run.getStderr();
         }
         
         // You can also handle errors by reading from process.getErrorStream()
@@ -455,83 +885,29 @@ public String getCreateCsv(String userId, String folderName) {
 
 
 
-    private String[] listValidatorFileNames() {
-        // todo: traverse the directory and get all the file names
-        String[] fileNames = {"__init__.py",
-                "allowed_data_types.txt",
-                "cbioportal_common.py",
-                "cbioportalImporter.py",
-                "chromosome_sizes.json",
-                "cropped_validation_report_template.html.jinja",
-                "data_cna_pd_annotations.txt",
-                "importOncokbDiscreteCNA.py",
-                "importOncokbMutation.py",
-                "libImportOncokb.py",
-                "metaImport.py",
-                "updateOncokbAnnotations.py",
-                "validateData.py",
-                "validateStudies.py",
-                "prepare_clinical_data.py",
-                "validation_report_template.html.jinja"};
-        return fileNames;
-    }
-
-    private void copyScriptsToTempDir(Path tempDir) throws IOException {
-        for (String fileName : listValidatorFileNames()) {
-            copyToTempDir(tempDir, fileName);
-        }
-    }
-
-    private void copyToTempDir(Path importerDir, String fileName) throws IOException {
-        // Create the importer subdirectory if it doesn't exist
-        Files.createDirectories(importerDir);
-
-        Path scriptFile = importerDir.resolve(fileName);
-        try (InputStream is = getClass().getResourceAsStream("/importer/" + fileName)) {
-            Files.copy(is, scriptFile, StandardCopyOption.REPLACE_EXISTING);
+    /*
+     * Removes generated outputs before a script rewrites them. Files that came out of an archive may be hard links
+     * into the shared blob store, and the scripts open their outputs for truncation instead of replacing them.
+     */
+    private void unlinkOutputs(Path... outputs) throws IOException {
+        for (Path output : outputs) {
+            Files.deleteIfExists(output);
         }
     }
 
     @Override
-    public byte[] getReport(String userId, String folderName) throws FileNotFoundException {
-        Path userDir = getUserPath(userId).resolve(folderName);
-        File outFileHtml = new File(userDir.toFile(), validationResultFileName);
-
-        if (!outFileHtml.exists()) {
+    public Path getReportFile(String userId, String folderName) throws IOException {
+        Path report = ArchiveEntries.resolve(getUserPath(userId), folderName).resolve(validationResultFileName);
+        if (!Files.isRegularFile(report)) {
             throw new FileNotFoundException("Validation report not found! Please validate the data first.");
         }
-
-        byte[] ret = null;
-        try {
-            ret = Files.readAllBytes(outFileHtml.toPath());
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            return ret;
-        }
-    }
-
-    @Override
-    public String getReportAsString(String userId, String folderName) {
-        String ret = "";
-        Path userDir = getUserPath(userId).resolve(folderName);
-        File outFileHtml = new File(userDir.toFile(), validationResultFileName);
-
-        try {
-            String htmlContent = StreamUtils.copyToString(outFileHtml.toURL().openStream(), StandardCharsets.UTF_8);
-            ret = htmlContent;
-        } catch (MalformedURLException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            return ret;
-        }
+        return report;
     }
 
     @Override
     public void deleteFiles(String userId) {
         Path userDir = getUserPath(userId);
+        Set<String> hashes = manifestService.recordedHashes(userId);
         try {
             // Delete all files in the user's directory
             Files.walk(userDir)
@@ -543,44 +919,59 @@ public String getCreateCsv(String userId, String folderName) {
         } catch (IOException e) {
             e.printStackTrace();
         }
+        catalog.remove(userDir);
+        manifestService.invalidate(userId);
+        blobStore.release(hashes);
+        // also called with <user>/<study>; either way the indexes of what is gone are removed
+        studiesChanged(userDir.getName(root.getNameCount()).toString());
     }
 
+    private void studiesChanged(String userId) {
+        for (StudyChangeListener listener : studyChangeListeners) {
+            listener.studiesChanged(userId);
+        }
+    }
 
 
 
-    @Override
-    public byte[] downloadCsv(String userId, String fileName) {
-/*
-        response.setContentType("text/csv");
-        response.setHeader("Content-Disposition", "attachment; filename=\"data.csv\"");
-        
-        // Assume csvData is a string containing your CSV data
-        String csvData = "Name, Age\nJohn, 30\nDoe, 25";
-        
-        OutputStream outputStream = response.getOutputStream();
-        outputStream.write(csvData.getBytes());
-        outputStream.flush();
-        outputStream.close()
 
-*/
-        
-       // String filePath = determineFilePath(userId, folderName);
-
-    try {
-        File file = new File("cbpFiles/user-local/"+fileName+"/clinical.csv");
+    @Override
+    public Path getCompressedReportFile(String userId, String folderName) throws IOException {
+        Path report = getReportFile(userId, folderName);
+        Path compressed = report.resolveSibling(validationResultFileName + ".gz");
+        if (!Files.isRegularFile(compressed)
+                || !Files.getLastModifiedTime(compressed).equals(Files.getLastModifiedTime(report))) {
+            // a report from before the variant was kept, or restored from the cache by a copy
+            compressReport(report, compressed);
+        }
+        return compressed;
+    }
 
-        if (file.exists()) {
-            byte[] bytes = Files.readAllBytes(file.toPath());
-            return bytes;
-        } else {
-            System.err.println("File not found: " + fileName);
-            return null;
+    /*
+     * Writes the gzip variant of a validation report next to it, with the report's modification time, which tells
+     * whether the variant is still the one of the report.
+     */
+    private void compressReport(Path report, Path compressed) throws IOException {
+        Path tmp = compressed.resolveSibling("." + compressed.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmp), 64 * 1024)) {
+                Files.copy(report, out);
+            }
+            Files.setLastModifiedTime(tmp, Files.getLastModifiedTime(report));
+            Files.move(tmp, compressed, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
         }
-    } catch (IOException e) {
-        System.err.println("Error reading file: " + e.getMessage());
-        e.printStackTrace();
-        return null;
     }
+
+    @Override
+    public Path getClinicalCsvFile(String userId, String folderName) throws IOException {
+        Path csv = ArchiveEntries.resolve(getUserPath(userId), folderName).resolve("clinical.csv");
+        if (!Files.isRegularFile(csv)) {
+            throw new FileNotFoundException("File not found: " + folderName + "/clinical.csv");
+        }
+        return csv;
     }
 
 
@@ -0,0 +1,66 @@
+package cbporganizer.service;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/*
+ * A growing list of ints without boxing, for the row and sample numbers the study indexes collect while they are
+ * built or queried.
+ */
+final class IntList {
+
+    private int[] values = new int[4];
+    private int size;
+
+    void add(int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    /*
+     * Adds the value unless it is the last one, as for consecutive rows of one sample.
+     */
+    void addIfNotLast(int value) {
+        if (size == 0 || values[size - 1] != value) {
+            add(value);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    int[] sortedUnique() {
+        int[] sorted = toArray();
+        Arrays.sort(sorted);
+        int unique = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (unique == 0 || sorted[unique - 1] != sorted[i]) {
+                sorted[unique++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, unique);
+    }
+
+    /*
+     * The numbers from 0 to count - 1 in the order of the comparator.
+     */
+    static int[] order(int count, Comparator<Integer> comparator) {
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, comparator);
+        int[] sorted = new int[count];
+        for (int i = 0; i < count; i++) {
+            sorted[i] = order[i];
+        }
+        return sorted;
+    }
+}
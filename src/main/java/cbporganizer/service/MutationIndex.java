@@ -0,0 +1,415 @@
+package cbporganizer.service;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * An index of the mutations of one study from its MAF files: which samples carry a mutation in a gene, or a given
+ * protein change in it, without reading the MAF again.
+ *
+ * Samples, genes and protein changes are dictionary-encoded as ints. Every gene, and every protein change of a
+ * gene, has a posting list of the samples that carry it: the sorted sample numbers, or a bitmap over all samples
+ * when that is smaller. The index is written to a file and memory-mapped, so it is only paged in as queries touch
+ * it and survives restarts. Protein changes are kept without their "p." prefix.
+ *
+ * The file holds, in order: the sample, gene and protein change string tables, the gene entries (first and end
+ * protein change, posting offset), the protein change entries (posting offset), the postings, the fingerprint of
+ * the MAF files and a footer with the offsets of all of these.
+ */
+class MutationIndex {
+
+    private static final long MAGIC = 0x4d4146494458L; // "MAFIDX"
+    private static final int VERSION = 1;
+    private static final int FOOTER_INTS = 8;
+    private static final int FOOTER_SIZE = FOOTER_INTS * 4 + 4 + 8;
+
+    private static final String[] SAMPLE_COLUMNS = {"Tumor_Sample_Barcode"};
+    private static final String[] GENE_COLUMNS = {"Hugo_Symbol"};
+    private static final String[] PROTEIN_COLUMNS = {"HGVSp_Short", "Protein_Change", "Amino_Acid_Change"};
+
+    private final MappedByteBuffer buffer;
+    private final int samples;
+    private final int genes;
+    private final int geneEntries;
+    private final int variants;
+    private final int variantEntries;
+    private final int postings;
+    private final String fingerprint;
+    private final int sampleCount;
+    private final int geneCount;
+
+    private MutationIndex(MappedByteBuffer buffer, int[] offsets, String fingerprint) {
+        this.buffer = buffer;
+        this.samples = offsets[0];
+        this.genes = offsets[1];
+        this.geneEntries = offsets[2];
+        this.variants = offsets[3];
+        this.variantEntries = offsets[4];
+        this.postings = offsets[5];
+        this.fingerprint = fingerprint;
+        this.sampleCount = buffer.getInt(samples);
+        this.geneCount = buffer.getInt(genes);
+    }
+
+    String getFingerprint() {
+        return fingerprint;
+    }
+
+    int getSampleCount() {
+        return sampleCount;
+    }
+
+    int getGeneCount() {
+        return geneCount;
+    }
+
+    /*
+     * Maps an index file; null when it is missing or was written by another version.
+     */
+    static MutationIndex open(Path file) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < FOOTER_SIZE || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int footer = (int) size - FOOTER_SIZE;
+            if (buffer.getLong(footer + FOOTER_INTS * 4 + 4) != MAGIC
+                    || buffer.getInt(footer + FOOTER_INTS * 4) != VERSION) {
+                return null;
+            }
+            int[] offsets = new int[FOOTER_INTS];
+            for (int i = 0; i < FOOTER_INTS; i++) {
+                offsets[i] = buffer.getInt(footer + i * 4);
+            }
+            return new MutationIndex(buffer, offsets, readString(buffer, offsets[6], offsets[7]));
+        }
+    }
+
+    /*
+     * Builds the index of the MAF files, given relative to userDir, and writes it to target.
+     */
+    static void write(Path userDir, List<String> mafFiles, Path target, String fingerprint) throws IOException {
+        Map<String, Integer> sampleNumbers = new HashMap<>();
+        List<String> sampleIds = new ArrayList<>();
+        TreeMap<String, Gene> genes = new TreeMap<>();
+        for (String mafFile : mafFiles) {
+            readMaf(userDir.resolve(mafFile), sampleNumbers, sampleIds, genes);
+        }
+
+        Files.createDirectories(target.getParent());
+        Path tmp = target.resolveSibling("." + target.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp),
+                64 * 1024))) {
+            List<int[]> geneSamples = new ArrayList<>(genes.size());
+            List<String> variantNames = new ArrayList<>();
+            List<int[]> variantSamples = new ArrayList<>();
+            for (Gene gene : genes.values()) {
+                geneSamples.add(gene.samples.sortedUnique());
+                for (Map.Entry<String, IntList> variant : gene.variants.entrySet()) {
+                    variantNames.add(variant.getKey());
+                    variantSamples.add(variant.getValue().sortedUnique());
+                }
+            }
+            int[] offsets = new int[FOOTER_INTS];
+            offsets[0] = out.size();
+            writeStrings(out, sampleIds);
+            offsets[1] = out.size();
+            writeStrings(out, new ArrayList<>(genes.keySet()));
+
+            // the postings follow the entries, so their offsets are counted ahead
+            int position = 0;
+            int[] genePostings = new int[genes.size()];
+            int[] variantPostings = new int[variantNames.size()];
+            for (int g = 0; g < genePostings.length; g++) {
+                genePostings[g] = position;
+                position += postingSize(geneSamples.get(g), sampleIds.size());
+            }
+            for (int v = 0; v < variantPostings.length; v++) {
+                variantPostings[v] = position;
+                position += postingSize(variantSamples.get(v), sampleIds.size());
+            }
+
+            offsets[2] = out.size();
+            int variant = 0;
+            int g = 0;
+            for (Gene gene : genes.values()) {
+                out.writeInt(variant);
+                variant += gene.variants.size();
+                out.writeInt(variant);
+                out.writeInt(genePostings[g++]);
+            }
+            offsets[3] = out.size();
+            writeStrings(out, variantNames);
+            offsets[4] = out.size();
+            for (int posting : variantPostings) {
+                out.writeInt(posting);
+            }
+            offsets[5] = out.size();
+            for (int[] samples : geneSamples) {
+                writePosting(out, samples, sampleIds.size());
+            }
+            for (int[] samples : variantSamples) {
+                writePosting(out, samples, sampleIds.size());
+            }
+            byte[] fingerprintBytes = fingerprint.getBytes(StandardCharsets.UTF_8);
+            offsets[6] = out.size();
+            offsets[7] = fingerprintBytes.length;
+            out.write(fingerprintBytes);
+            for (int offset : offsets) {
+                out.writeInt(offset);
+            }
+            out.writeInt(VERSION);
+            out.writeLong(MAGIC);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /*
+     * The samples with a mutation in the gene, or only with the given protein change when it is set. A protein
+     * change without the changed residue, like G12, matches every change at that position.
+     */
+    MutationQueryResult query(String gene, String proteinChange) {
+        long start = System.nanoTime();
+        List<String> matchedVariants = new ArrayList<>();
+        BitSet matches = new BitSet(sampleCount);
+        int g = find(genes, 0, geneCount, gene);
+        if (g >= 0) {
+            int entry = geneEntries + g * 12;
+            if (proteinChange == null || proteinChange.isEmpty()) {
+                readPosting(buffer.getInt(entry + 8), matches);
+            } else {
+                String change = stripPrefix(proteinChange);
+                boolean position = change.matches("[A-Za-z*]+[0-9]+");
+                int from = buffer.getInt(entry);
+                int to = buffer.getInt(entry + 4);
+                for (int v = lowerBound(variants, from, to, change); v < to; v++) {
+                    String name = stringAt(variants, v);
+                    if (!name.startsWith(change)) {
+                        break;
+                    }
+                    boolean matched = position
+                            ? name.length() == change.length() || !Character.isDigit(name.charAt(change.length()))
+                            : name.length() == change.length();
+                    if (matched) {
+                        matchedVariants.add(name);
+                        readPosting(buffer.getInt(variantEntries + v * 4), matches);
+                    }
+                }
+            }
+        }
+        List<String> sampleIds = new ArrayList<>(matches.cardinality());
+        for (int s = matches.nextSetBit(0); s >= 0; s = matches.nextSetBit(s + 1)) {
+            sampleIds.add(stringAt(samples, s));
+        }
+        return new MutationQueryResult(gene, proteinChange, matchedVariants, sampleIds,
+                (System.nanoTime() - start) / 1000);
+    }
+
+    private void readPosting(int offset, BitSet into) {
+        int position = postings + offset;
+        int header = buffer.getInt(position);
+        position += 4;
+        if (header >= 0) {
+            for (int i = 0; i < header; i++) {
+                into.set(buffer.getInt(position + i * 4));
+            }
+        } else {
+            long[] words = new long[-header];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = buffer.getLong(position + i * 8);
+            }
+            into.or(BitSet.valueOf(words));
+        }
+    }
+
+    /*
+     * The index of value in the sorted string table between from and to, or -1.
+     */
+    private int find(int table, int from, int to, String value) {
+        int index = lowerBound(table, from, to, value);
+        return index < to && stringAt(table, index).equals(value) ? index : -1;
+    }
+
+    private int lowerBound(int table, int from, int to, String value) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (stringAt(table, mid).compareTo(value) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private String stringAt(int table, int index) {
+        return stringAt(buffer, table, index);
+    }
+
+    /*
+     * String number index of a string table: a count, count + 1 offsets into the UTF-8 bytes, then the bytes.
+     */
+    static String stringAt(ByteBuffer buffer, int table, int index) {
+        int count = buffer.getInt(table);
+        int offsets = table + 4;
+        int bytes = offsets + (count + 1) * 4;
+        int start = buffer.getInt(offsets + index * 4);
+        int end = buffer.getInt(offsets + (index + 1) * 4);
+        return readString(buffer, bytes + start, end - start);
+    }
+
+    static String readString(ByteBuffer buffer, int position, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(position + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+        List<byte[]> encoded = new ArrayList<>(strings.size());
+        for (String string : strings) {
+            encoded.add(string.getBytes(StandardCharsets.UTF_8));
+        }
+        out.writeInt(strings.size());
+        int offset = 0;
+        out.writeInt(offset);
+        for (byte[] bytes : encoded) {
+            offset += bytes.length;
+            out.writeInt(offset);
+        }
+        for (byte[] bytes : encoded) {
+            out.write(bytes);
+        }
+    }
+
+    /*
+     * A posting is a header and either header sorted sample numbers or -header words of a bitmap.
+     */
+    private static int postingSize(int[] samples, int sampleCount) {
+        return 4 + (useBitmap(samples, sampleCount) ? words(sampleCount) * 8 : samples.length * 4);
+    }
+
+    private static void writePosting(DataOutputStream out, int[] samples, int sampleCount) throws IOException {
+        if (useBitmap(samples, sampleCount)) {
+            long[] words = new long[words(sampleCount)];
+            for (int sample : samples) {
+                words[sample >>> 6] |= 1L << sample;
+            }
+            out.writeInt(-words.length);
+            for (long word : words) {
+                out.writeLong(word);
+            }
+        } else {
+            out.writeInt(samples.length);
+            for (int sample : samples) {
+                out.writeInt(sample);
+            }
+        }
+    }
+
+    private static boolean useBitmap(int[] samples, int sampleCount) {
+        return words(sampleCount) * 8L < samples.length * 4L;
+    }
+
+    private static int words(int sampleCount) {
+        return (sampleCount + 63) >>> 6;
+    }
+
+    /*
+     * Adds the mutations of a MAF file; comment lines before the header and uncalled mutations are skipped.
+     */
+    private static void readMaf(Path file, Map<String, Integer> sampleNumbers, List<String> sampleIds,
+                                Map<String, Gene> genes) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null && (line.startsWith("#") || line.trim().isEmpty())) {
+                // comments and version line
+            }
+            if (line == null) {
+                return;
+            }
+            List<String> header = Arrays.asList(line.split("\t", -1));
+            int sampleColumn = column(header, SAMPLE_COLUMNS);
+            int geneColumn = column(header, GENE_COLUMNS);
+            int proteinColumn = column(header, PROTEIN_COLUMNS);
+            int statusColumn = header.indexOf("Mutation_Status");
+            if (sampleColumn < 0 || geneColumn < 0) {
+                throw new IllegalArgumentException(file.getFileName() + " has no Tumor_Sample_Barcode or Hugo_Symbol");
+            }
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] cells = line.split("\t", -1);
+                String sampleId = cell(cells, sampleColumn);
+                String symbol = cell(cells, geneColumn);
+                if (sampleId.isEmpty() || symbol.isEmpty()
+                        || cell(cells, statusColumn).equalsIgnoreCase("UNCALLED")) {
+                    continue;
+                }
+                Integer sample = sampleNumbers.get(sampleId);
+                if (sample == null) {
+                    sample = sampleIds.size();
+                    sampleNumbers.put(sampleId, sample);
+                    sampleIds.add(sampleId);
+                }
+                Gene gene = genes.computeIfAbsent(symbol, k -> new Gene());
+                gene.samples.addIfNotLast(sample);
+                String change = stripPrefix(cell(cells, proteinColumn));
+                if (!change.isEmpty() && !change.equals("NA") && !change.equals(".")) {
+                    gene.variants.computeIfAbsent(change, k -> new IntList()).addIfNotLast(sample);
+                }
+            }
+        }
+    }
+
+    private static int column(List<String> header, String[] names) {
+        for (String name : names) {
+            int index = header.indexOf(name);
+            if (index >= 0) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private static String cell(String[] cells, int column) {
+        return column >= 0 && column < cells.length ? cells[column].trim() : "";
+    }
+
+    private static String stripPrefix(String proteinChange) {
+        return proteinChange.startsWith("p.") ? proteinChange.substring(2) : proteinChange;
+    }
+
+    private static class Gene {
+        final IntList samples = new IntList();
+        final TreeMap<String, IntList> variants = new TreeMap<>();
+    }
+}
@@ -0,0 +1,61 @@
+package cbporganizer.service;
+
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/*
+ * Keeps a MutationIndex for every study with MAF files, in cbpFiles/.mutation-index/<user>/<study>.idx.
+ *
+ * An index records the size and modification time of the MAF files it was built from. A query on a study whose MAF
+ * files changed since rebuilds it first; an index file left from before a restart is used as long as it still
+ * matches. After an upload the indexes of the user's studies are brought up to date in the background.
+ */
+@Service
+public class MutationIndexService extends StudyIndexCache<MutationIndex> {
+
+    private static final String MAF_TYPE = "MUTATION_EXTENDED:MAF";
+
+    public MutationIndexService() {
+        super("mutation index", FilesStorageServiceImpl.STORAGE_ROOT.resolve(".mutation-index"), ".idx");
+    }
+
+    /*
+     * The samples with a mutation in the gene, or with the protein change in it; null when there is no such study.
+     */
+    public MutationQueryResult query(String userId, String folderName, String gene, String proteinChange)
+            throws IOException {
+        MutationIndex index = get(userId, folderName);
+        return index == null ? null : index.query(gene, proteinChange);
+    }
+
+    @Override
+    protected String fingerprint(Path userDir, String folderName, List<CatalogEntry> files) {
+        return fingerprint(studyDataTypes.getDataFiles(userDir, files, MAF_TYPE));
+    }
+
+    @Override
+    protected String fingerprintOf(MutationIndex index) {
+        return index.getFingerprint();
+    }
+
+    @Override
+    protected MutationIndex open(Path file) throws IOException {
+        return MutationIndex.open(file);
+    }
+
+    @Override
+    protected MutationIndex build(Path userDir, String folderName, List<CatalogEntry> files, Path file,
+                                  String fingerprint) throws IOException {
+        long start = System.currentTimeMillis();
+        MutationIndex.write(userDir, paths(studyDataTypes.getDataFiles(userDir, files, MAF_TYPE)), file,
+                fingerprint);
+        MutationIndex index = MutationIndex.open(file);
+        System.out.println("Indexed the mutations of " + folderName + ": " + index.getGeneCount()
+                + " genes in " + index.getSampleCount() + " samples in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return index;
+    }
+}
@@ -0,0 +1,52 @@
+package cbporganizer.service;
+
+import java.util.List;
+
+/*
+ * The samples with a mutation in a gene, or with one of the protein changes that matched the query, in the order
+ * they first appear in the MAF files. elapsedMicros is the time spent on the index.
+ */
+public class MutationQueryResult {
+
+    private final String gene;
+    private final String proteinChange;
+    private final List<String> proteinChanges;
+    private final List<String> sampleIds;
+    private final long elapsedMicros;
+
+    MutationQueryResult(String gene, String proteinChange, List<String> proteinChanges, List<String> sampleIds,
+                        long elapsedMicros) {
+        this.gene = gene;
+        this.proteinChange = proteinChange;
+        this.proteinChanges = proteinChanges;
+        this.sampleIds = sampleIds;
+        this.elapsedMicros = elapsedMicros;
+    }
+
+    public String getGene() {
+        return gene;
+    }
+
+    public String getProteinChange() {
+        return proteinChange;
+    }
+
+    /*
+     * The protein changes that matched; empty for a query on the gene alone.
+     */
+    public List<String> getProteinChanges() {
+        return proteinChanges;
+    }
+
+    public int getSampleCount() {
+        return sampleIds.size();
+    }
+
+    public List<String> getSampleIds() {
+        return sampleIds;
+    }
+
+    public long getElapsedMicros() {
+        return elapsedMicros;
+    }
+}
@@ -0,0 +1,59 @@
+package cbporganizer.service;
+
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Keeps the last capacity bytes written to it, so a script's output can be shown without holding all of it.
+ */
+class OutputTail {
+
+    private final byte[] buffer;
+    private int position;
+    private long total;
+
+    OutputTail(int capacity) {
+        this.buffer = new byte[Math.max(capacity, 1)];
+    }
+
+    synchronized void write(byte[] bytes, int offset, int length) {
+        total += length;
+        if (length >= buffer.length) {
+            System.arraycopy(bytes, offset + length - buffer.length, buffer, 0, buffer.length);
+            position = 0;
+            return;
+        }
+        int first = Math.min(length, buffer.length - position);
+        System.arraycopy(bytes, offset, buffer, position, first);
+        System.arraycopy(bytes, offset + first, buffer, 0, length - first);
+        position = (position + length) % buffer.length;
+    }
+
+    int capacity() {
+        return buffer.length;
+    }
+
+    /*
+     * Number of bytes written, including the ones that no longer fit.
+     */
+    synchronized long getTotalBytes() {
+        return total;
+    }
+
+    synchronized boolean isTruncated() {
+        return total > buffer.length;
+    }
+
+    /*
+     * The kept bytes as UTF-8; a character cut at the start of a truncated tail becomes a replacement character.
+     */
+    @Override
+    public synchronized String toString() {
+        if (total < buffer.length) {
+            return new String(buffer, 0, (int) total, StandardCharsets.UTF_8);
+        }
+        byte[] ordered = new byte[buffer.length];
+        System.arraycopy(buffer, position, ordered, 0, buffer.length - position);
+        System.arraycopy(buffer, 0, ordered, buffer.length - position, position);
+        return new String(ordered, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,159 @@
+package cbporganizer.service;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Extracts zip study archives with one worker per entry.
+ *
+ * Unlike gzip, a zip has a central directory that gives the offset of every entry, and commons-compress reads
+ * entries through positional FileChannel reads, so entries of one ZipFile can be inflated concurrently. Directories
+ * are created up front; if a path occurs more than once only its last entry is extracted, which is what a sequential
+ * extraction would leave on disk.
+ */
+@Component
+public class ParallelZipExtractor {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    @Value("${cbporganizer.extract.zip-threads:0}")
+    private int threads;
+
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private ExecutorService workers;
+
+    @PostConstruct
+    public void start() {
+        int size = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        workers = Executors.newFixedThreadPool(size, r -> {
+            Thread t = new Thread(r, "zip-extract-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        workers.shutdownNow();
+    }
+
+    public ExtractionResult extract(Path archive, Path targetDir, String fileName, boolean archiveKept,
+                                    EntryStore store, EntryListener listener) throws IOException {
+        long start = System.currentTimeMillis();
+        try (ZipFile zipFile = new ZipFile(archive.toFile())) {
+            Map<Path, ZipArchiveEntry> files = new LinkedHashMap<>();
+            Enumeration<ZipArchiveEntry> entries = zipFile.getEntriesInPhysicalOrder();
+            while (entries.hasMoreElements()) {
+                ZipArchiveEntry entry = entries.nextElement();
+                Path target = ArchiveEntries.resolve(targetDir, entry.getName());
+                if (entry.isDirectory()) {
+                    Files.createDirectories(target);
+                } else if (!entry.isUnixSymlink()) {
+                    Files.createDirectories(target.getParent());
+                    files.remove(target);
+                    files.put(target, entry);
+                }
+            }
+
+            AtomicBoolean stopped = new AtomicBoolean();
+            List<Future<Long>> writes = new ArrayList<>();
+            for (Map.Entry<Path, ZipArchiveEntry> file : files.entrySet()) {
+                writes.add(workers.submit(() -> stopped.get() ? 0L
+                        : write(zipFile, file.getValue(), file.getKey(), store, listener, stopped)));
+            }
+            long extractedBytes = 0;
+            try {
+                for (Future<Long> write : writes) {
+                    extractedBytes += write.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Extraction of " + fileName + " was interrupted");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            } finally {
+                // the ZipFile is closed on return, so wait until no worker reads from it any more; after a failure
+                // the others stop at their next buffer. They are not interrupted, as an interrupt during a read
+                // would close the archive's channel under all of them.
+                stopped.set(true);
+                awaitAll(writes);
+            }
+            return new ExtractionResult(fileName, ArchiveFormat.ZIP.getName(), Files.size(archive), extractedBytes,
+                    files.size(), System.currentTimeMillis() - start, archiveKept);
+        }
+    }
+
+    private static void awaitAll(List<Future<Long>> writes) {
+        boolean interrupted = false;
+        for (Future<Long> write : writes) {
+            while (true) {
+                try {
+                    write.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    // the first failure is the one reported
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private long write(ZipFile zipFile, ZipArchiveEntry entry, Path target, EntryStore store,
+                       EntryListener listener, AtomicBoolean stopped) throws IOException {
+        byte[] buffer = BUFFER.get();
+        MessageDigest digest = Digests.sha256();
+        long size = 0;
+        Path staged = store.stage(target);
+        try {
+            try (InputStream in = zipFile.getInputStream(entry);
+                 OutputStream out = Files.newOutputStream(staged)) {
+                int len;
+                while ((len = in.read(buffer)) > 0) {
+                    if (stopped.get()) {
+                        throw new InterruptedIOException("Extraction of " + entry.getName() + " was stopped");
+                    }
+                    out.write(buffer, 0, len);
+                    digest.update(buffer, 0, len);
+                    size += len;
+                }
+            }
+            String sha256 = Digests.toHex(digest.digest());
+            store.commit(staged, target, sha256);
+            listener.entryWritten(target, sha256, size);
+            return size;
+        } catch (IOException e) {
+            store.discard(staged);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package cbporganizer.service;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * Extracts a tar.gz stream in three overlapping stages:
+ *  1. a decompression thread gunzips the source into a small ring of chunks,
+ *  2. the calling thread parses tar headers from that ring and slices entry content into pooled chunks,
+ *  3. a bounded pool of writers drains each entry's chunks to disk through a FileChannel.
+ *
+ * Memory is bounded by the ring plus the writer chunk pool: when every chunk is in flight the parser waits for a
+ * writer to hand one back. Directories are created by the parser before any later entry is queued, and a path that
+ * occurs twice in the archive is only rewritten after its earlier write has finished, so the result on disk matches
+ * a sequential extraction.
+ */
+@Component
+public class PipelinedTarExtractor {
+
+    private static final int RING_CHUNKS = 8;
+    private static final Chunk END = new Chunk(new byte[0]);
+
+    @Value("${cbporganizer.extract.writer-threads:4}")
+    private int writerThreads = 4;
+
+    @Value("${cbporganizer.extract.chunk-size:262144}")
+    private int chunkSize = 256 * 1024;
+
+    @Value("${cbporganizer.extract.max-buffered-bytes:67108864}")
+    private long maxBufferedBytes = 64L * 1024 * 1024;
+
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    public ExtractionResult extract(ArchiveTeeInputStream source, Path targetDir, String fileName,
+                                    boolean archiveKept, EntryStore store, EntryListener listener)
+            throws IOException {
+        long start = System.currentTimeMillis();
+        int poolChunks = (int) Math.max(2, maxBufferedBytes / chunkSize);
+        ChunkPool ring = new ChunkPool(RING_CHUNKS, chunkSize);
+        ChunkPool writerPool = new ChunkPool(poolChunks, chunkSize);
+        BlockingQueue<Chunk> decompressed = new ArrayBlockingQueue<>(RING_CHUNKS + 1);
+
+        // one writer pool per extraction, so a stalled upload can never starve another one's writers
+        ExecutorService writers = Executors.newFixedThreadPool(writerThreads, r -> newThread(r, "tar-writer"));
+        ExecutorService gunzip = Executors.newSingleThreadExecutor(r -> newThread(r, "tar-gunzip"));
+        Future<?> decompressor = gunzip.submit(() -> {
+            decompress(source, ring, decompressed);
+            return null;
+        });
+
+        AtomicLong extractedBytes = new AtomicLong();
+        Map<Path, Future<?>> pendingWrites = new HashMap<>();
+        List<Future<?>> writes = new ArrayList<>();
+        int entries = 0;
+        boolean completed = false;
+        try {
+            ChunkQueueInputStream tarSource = new ChunkQueueInputStream(decompressed, ring, decompressor);
+            TarArchiveInputStream tarInput = new TarArchiveInputStream(tarSource);
+            TarArchiveEntry entry;
+            while ((entry = tarInput.getNextTarEntry()) != null) {
+                Path target = ArchiveEntries.resolve(targetDir, entry.getName());
+                if (entry.isDirectory()) {
+                    Files.createDirectories(target);
+                    continue;
+                }
+                Files.createDirectories(target.getParent());
+
+                Future<?> previous = pendingWrites.get(target);
+                if (previous != null) {
+                    await(previous);
+                }
+                EntryWriter writer = new EntryWriter(target, writerPool, extractedBytes, store, listener);
+                Future<?> write = writers.submit(writer);
+                pendingWrites.put(target, write);
+                writes.add(write);
+
+                Chunk chunk = writerPool.take();
+                int len;
+                while ((len = tarInput.read(chunk.data, chunk.length, chunkSize - chunk.length)) > 0) {
+                    chunk.length += len;
+                    if (chunk.length == chunkSize) {
+                        writer.queue.put(chunk);
+                        checkFailed(write);
+                        chunk = writerPool.take();
+                    }
+                }
+                if (chunk.length > 0) {
+                    writer.queue.put(chunk);
+                } else {
+                    writerPool.release(chunk);
+                }
+                writer.queue.put(END);
+                entries++;
+            }
+            tarSource.drain();
+            for (Future<?> write : writes) {
+                await(write);
+            }
+            await(decompressor);
+            completed = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Extraction of " + fileName + " was interrupted");
+        } finally {
+            if (!completed) {
+                decompressor.cancel(true);
+                writers.shutdownNow();
+            }
+            writers.shutdown();
+            gunzip.shutdownNow();
+            if (!completed) {
+                // the writers discard what they staged, and the caller may close the tee's copy once we return
+                awaitStopped(writers);
+                awaitStopped(gunzip);
+            }
+        }
+        return new ExtractionResult(fileName, ArchiveFormat.TAR_GZ.getName(), source.getCount(), extractedBytes.get(), entries,
+                System.currentTimeMillis() - start, archiveKept);
+    }
+
+    private void decompress(ArchiveTeeInputStream source, ChunkPool ring, BlockingQueue<Chunk> out)
+            throws IOException, InterruptedException {
+        try (InputStream gzip = new GZIPInputStream(source, chunkSize)) {
+            while (true) {
+                Chunk chunk = ring.take();
+                int len;
+                while (chunk.length < chunkSize
+                        && (len = gzip.read(chunk.data, chunk.length, chunkSize - chunk.length)) > 0) {
+                    chunk.length += len;
+                }
+                if (chunk.length == 0) {
+                    ring.release(chunk);
+                    break;
+                }
+                out.put(chunk);
+            }
+            // keep reading past the gzip trailer so a retained archive copy is byte-identical
+            source.drain(new byte[8192]);
+        } finally {
+            out.put(END);
+        }
+    }
+
+    private Thread newThread(Runnable r, String prefix) {
+        Thread t = new Thread(r, prefix + "-" + threadCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+
+    private static void awaitStopped(ExecutorService executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void checkFailed(Future<?> write) throws IOException, InterruptedException {
+        if (write.isDone()) {
+            await(write);
+        }
+    }
+
+    private static void await(Future<?> future) throws IOException, InterruptedException {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /*
+     * A reusable buffer and the number of valid bytes in it.
+     */
+    private static final class Chunk {
+        final byte[] data;
+        int length;
+
+        Chunk(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    /*
+     * Fixed set of chunks handed back and forth between stages; its size is the memory bound of the stage.
+     */
+    private static final class ChunkPool {
+        private final BlockingQueue<Chunk> free;
+
+        ChunkPool(int chunks, int chunkSize) {
+            free = new ArrayBlockingQueue<>(chunks);
+            for (int i = 0; i < chunks; i++) {
+                free.add(new Chunk(new byte[chunkSize]));
+            }
+        }
+
+        Chunk take() throws InterruptedException {
+            Chunk chunk = free.take();
+            chunk.length = 0;
+            return chunk;
+        }
+
+        void release(Chunk chunk) {
+            free.offer(chunk);
+        }
+    }
+
+    /*
+     * Writes the chunks of one entry to its file, hashing them on the way, and returns them to the pool.
+     */
+    private static final class EntryWriter implements Callable<Void> {
+        final BlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+        private final Path target;
+        private final ChunkPool pool;
+        private final AtomicLong written;
+        private final EntryStore store;
+        private final EntryListener listener;
+
+        EntryWriter(Path target, ChunkPool pool, AtomicLong written, EntryStore store, EntryListener listener) {
+            this.target = target;
+            this.pool = pool;
+            this.written = written;
+            this.store = store;
+            this.listener = listener;
+        }
+
+        @Override
+        public Void call() throws IOException, InterruptedException {
+            MessageDigest digest = Digests.sha256();
+            Path staged = null;
+            boolean consumed = false;
+            boolean committed = false;
+            try {
+                staged = store.stage(target);
+                long size = write(staged, digest);
+                consumed = true;
+                String sha256 = Digests.toHex(digest.digest());
+                store.commit(staged, target, sha256);
+                committed = true;
+                listener.entryWritten(target, sha256, size);
+            } catch (IOException e) {
+                // keep returning chunks so the parser is never left waiting on a failed entry
+                if (!consumed) {
+                    Chunk chunk;
+                    while ((chunk = queue.take()) != END) {
+                        pool.release(chunk);
+                    }
+                }
+                throw e;
+            } finally {
+                // also when the extraction is cancelled while this entry is still being written
+                if (staged != null && !committed) {
+                    store.discard(staged);
+                }
+            }
+            return null;
+        }
+
+        private long write(Path staged, MessageDigest digest) throws IOException, InterruptedException {
+            long size = 0;
+            try (FileChannel channel = FileChannel.open(staged, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                Chunk chunk;
+                while ((chunk = queue.take()) != END) {
+                    try {
+                        ByteBuffer buffer = ByteBuffer.wrap(chunk.data, 0, chunk.length);
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                        digest.update(chunk.data, 0, chunk.length);
+                        size += chunk.length;
+                        written.addAndGet(chunk.length);
+                    } finally {
+                        pool.release(chunk);
+                    }
+                }
+            }
+            return size;
+        }
+    }
+
+    /*
+     * Presents the decompressed chunks as one stream to the tar parser.
+     */
+    private static final class ChunkQueueInputStream extends InputStream {
+        private final BlockingQueue<Chunk> queue;
+        private final ChunkPool ring;
+        private final Future<?> producer;
+        private Chunk current;
+        private int position;
+        private boolean eof;
+
+        ChunkQueueInputStream(BlockingQueue<Chunk> queue, ChunkPool ring, Future<?> producer) {
+            this.queue = queue;
+            this.ring = ring;
+            this.producer = producer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!advance()) {
+                return -1;
+            }
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current.data, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        private boolean advance() throws IOException {
+            while (!eof && (current == null || position == current.length)) {
+                if (current != null) {
+                    ring.release(current);
+                    current = null;
+                }
+                Chunk next;
+                try {
+                    next = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                if (next == END) {
+                    eof = true;
+                    // surface a decompression failure instead of a truncated archive
+                    try {
+                        await(producer);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                } else {
+                    current = next;
+                    position = 0;
+                }
+            }
+            return !eof;
+        }
+
+        /*
+         * Consumes the tar padding after the end-of-archive marker so the decompressor can finish.
+         */
+        void drain() throws IOException {
+            while (advance()) {
+                position = current.length;
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package cbporganizer.service;
+
+import java.util.List;
+import java.util.Map;
+
+/*
+ * A snapshot of the importer script runs: how many run and wait for a slot now, totals per script and the most
+ * recent runs, newest first.
+ */
+public class ProcessMetrics {
+
+    private final int maxConcurrent;
+    private final long timeoutSeconds;
+    private final int running;
+    private final int waiting;
+    private final Map<String, ModuleStats> modules;
+    private final List<ProcessRun> recentRuns;
+
+    ProcessMetrics(int maxConcurrent, long timeoutSeconds, int running, int waiting, Map<String, ModuleStats> modules,
+                   List<ProcessRun> recentRuns) {
+        this.maxConcurrent = maxConcurrent;
+        this.timeoutSeconds = timeoutSeconds;
+        this.running = running;
+        this.waiting = waiting;
+        this.modules = modules;
+        this.recentRuns = recentRuns;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public long getTimeoutSeconds() {
+        return timeoutSeconds;
+    }
+
+    public int getRunning() {
+        return running;
+    }
+
+    public int getWaiting() {
+        return waiting;
+    }
+
+    public Map<String, ModuleStats> getModules() {
+        return modules;
+    }
+
+    public List<ProcessRun> getRecentRuns() {
+        return recentRuns;
+    }
+
+    /*
+     * Totals over all runs of one script since the backend started. CPU time and memory only count the runs that
+     * reported them.
+     */
+    public static class ModuleStats {
+
+        private long runs;
+        private long timeouts;
+        private long cancellations;
+        private long totalQueuedMillis;
+        private long totalWallMillis;
+        private long maxWallMillis;
+        private long totalCpuMillis;
+        private long maxRssKb;
+
+        ModuleStats() {
+        }
+
+        ModuleStats(ModuleStats other) {
+            runs = other.runs;
+            timeouts = other.timeouts;
+            cancellations = other.cancellations;
+            totalQueuedMillis = other.totalQueuedMillis;
+            totalWallMillis = other.totalWallMillis;
+            maxWallMillis = other.maxWallMillis;
+            totalCpuMillis = other.totalCpuMillis;
+            maxRssKb = other.maxRssKb;
+        }
+
+        void add(ProcessRun run) {
+            runs++;
+            if (run.isTimedOut()) {
+                timeouts++;
+            }
+            if (run.isCancelled()) {
+                cancellations++;
+            }
+            totalQueuedMillis += run.getQueuedMillis();
+            totalWallMillis += run.getWallMillis();
+            maxWallMillis = Math.max(maxWallMillis, run.getWallMillis());
+            if (run.getCpuMillis() > 0) {
+                totalCpuMillis += run.getCpuMillis();
+            }
+            maxRssKb = Math.max(maxRssKb, run.getMaxRssKb());
+        }
+
+        public long getRuns() {
+            return runs;
+        }
+
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        public long getCancellations() {
+            return cancellations;
+        }
+
+        public long getTotalQueuedMillis() {
+            return totalQueuedMillis;
+        }
+
+        public long getTotalWallMillis() {
+            return totalWallMillis;
+        }
+
+        public long getAverageWallMillis() {
+            return runs == 0 ? 0 : totalWallMillis / runs;
+        }
+
+        public long getMaxWallMillis() {
+            return maxWallMillis;
+        }
+
+        public long getTotalCpuMillis() {
+            return totalCpuMillis;
+        }
+
+        public long getMaxRssKb() {
+            return maxRssKb;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package cbporganizer.service;
+
+/*
+ * What one run of an importer script took: how long it waited for a free slot, its wall-clock time, CPU time and
+ * peak memory, and how it ended. CPU time and memory are reported by the Python worker and are -1 for scripts run
+ * in a new process. The ends of the script's stdout and stderr are kept for the caller but not exposed as JSON.
+ */
+public class ProcessRun {
+
+    private final long runId;
+    private final String module;
+    private final long submittedAt;
+    private volatile long queuedMillis;
+    private volatile long wallMillis;
+    private volatile long cpuMillis = -1;
+    private volatile long maxRssKb = -1;
+    private volatile Integer exitCode;
+    private volatile boolean timedOut;
+    private volatile boolean cancelled;
+    private volatile boolean worker;
+
+    private final OutputTail stdout;
+    private final OutputTail stderr;
+
+    ProcessRun(long runId, String module, int tailBytes) {
+        this.runId = runId;
+        this.module = module;
+        this.submittedAt = System.currentTimeMillis();
+        this.stdout = new OutputTail(tailBytes);
+        this.stderr = new OutputTail(tailBytes);
+    }
+
+    public long getRunId() {
+        return runId;
+    }
+
+    public String getModule() {
+        return module;
+    }
+
+    public long getSubmittedAt() {
+        return submittedAt;
+    }
+
+    public long getQueuedMillis() {
+        return queuedMillis;
+    }
+
+    public long getWallMillis() {
+        return wallMillis;
+    }
+
+    public long getCpuMillis() {
+        return cpuMillis;
+    }
+
+    public long getMaxRssKb() {
+        return maxRssKb;
+    }
+
+    /*
+     * The script's exit status; null while it runs and when it never started.
+     */
+    public Integer getExitCode() {
+        return exitCode;
+    }
+
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /*
+     * Whether the script ran on a warm Python worker rather than in a new process.
+     */
+    public boolean isWorker() {
+        return worker;
+    }
+
+    OutputTail getStdout() {
+        return stdout;
+    }
+
+    OutputTail getStderr() {
+        return stderr;
+    }
+
+    void setQueuedMillis(long queuedMillis) {
+        this.queuedMillis = queuedMillis;
+    }
+
+    void setWallMillis(long wallMillis) {
+        this.wallMillis = wallMillis;
+    }
+
+    void setUsage(long cpuMillis, long maxRssKb) {
+        this.cpuMillis = cpuMillis;
+        this.maxRssKb = maxRssKb;
+    }
+
+    void setExitCode(Integer exitCode) {
+        this.exitCode = exitCode;
+    }
+
+    void setTimedOut(boolean timedOut) {
+        this.timedOut = timedOut;
+    }
+
+    void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    void setWorker(boolean worker) {
+        this.worker = worker;
+    }
+}
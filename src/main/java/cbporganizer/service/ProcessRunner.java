@@ -0,0 +1,321 @@
+package cbporganizer.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/*
+ * Runs the importer scripts for every service method, on a warm Python worker when the pool is available and in
+ * a new process otherwise.
+ *
+ * At most max-concurrent scripts run at once; the others wait for a slot. A script that runs longer than
+ * timeout-seconds is killed together with the processes it started. A new process has its stdout and stderr
+ * drained by two threads at the same time, so neither pipe can fill up and block it; the streams still go to the
+ * job's files when it names them. The last output-tail-bytes of each stream are kept in the run, and every run
+ * records its waiting time, wall-clock time, CPU time and peak memory for the metrics.
+ */
+@Component
+public class ProcessRunner {
+
+    private static final int RECENT_RUNS = 100;
+    private static final long SLOT_POLL_MILLIS = 250;
+    private static final long DRAIN_GRACE_MILLIS = 5000;
+
+    @Autowired
+    private PythonWorkerPool workerPool;
+
+    @Autowired
+    private ScriptCache scriptCache;
+
+    @Value("${cbporganizer.python.command:python3}")
+    private String pythonCommand;
+
+    @Value("${cbporganizer.python.max-concurrent:4}")
+    private int maxConcurrent;
+
+    @Value("${cbporganizer.python.timeout-seconds:3600}")
+    private long timeoutSeconds;
+
+    @Value("${cbporganizer.python.output-tail-bytes:65536}")
+    private int tailBytes;
+
+    private Semaphore slots;
+    private ScheduledExecutorService timer;
+    private ExecutorService drainers;
+    private final AtomicLong runIds = new AtomicLong();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final Deque<ProcessRun> recentRuns = new ArrayDeque<>();
+    private final Map<String, ProcessMetrics.ModuleStats> modules = new TreeMap<>();
+
+    @PostConstruct
+    public void start() {
+        slots = new Semaphore(maxConcurrent > 0 ? maxConcurrent : Integer.MAX_VALUE, true);
+        timer = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "process-timeout-"));
+        drainers = Executors.newCachedThreadPool(r -> daemon(r, "process-output-"));
+    }
+
+    @PreDestroy
+    public void stop() {
+        timer.shutdownNow();
+        drainers.shutdownNow();
+    }
+
+    /*
+     * Runs the job once a slot is free and returns how it went; the exit code is null when the job was cancelled
+     * before it started. A job that timed out was killed and has timedOut set.
+     */
+    public ProcessRun run(PythonJob job) throws IOException, InterruptedException {
+        ProcessRun run = new ProcessRun(runIds.incrementAndGet(), job.getModule(), tailBytes);
+        long submitted = System.nanoTime();
+        waiting.incrementAndGet();
+        try {
+            while (!slots.tryAcquire(SLOT_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (job.isCancelled()) {
+                    run.setCancelled(true);
+                    run.setQueuedMillis(millisSince(submitted));
+                    record(run);
+                    return run;
+                }
+            }
+        } finally {
+            waiting.decrementAndGet();
+        }
+        running.incrementAndGet();
+        long started = System.nanoTime();
+        run.setQueuedMillis((started - submitted) / 1000000);
+        ScheduledFuture<?> timeout = timeoutSeconds <= 0 ? null : timer.schedule(() -> {
+            run.setTimedOut(true);
+            job.cancel();
+        }, timeoutSeconds, TimeUnit.SECONDS);
+        try {
+            if (!job.isCancelled()) {
+                run.setExitCode(execute(job, run));
+            }
+        } finally {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            run.setWallMillis(millisSince(started));
+            run.setCancelled(job.isCancelled() && !run.isTimedOut());
+            running.decrementAndGet();
+            slots.release();
+            record(run);
+        }
+        return run;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public ProcessMetrics getMetrics() {
+        synchronized (recentRuns) {
+            Map<String, ProcessMetrics.ModuleStats> snapshot = new TreeMap<>();
+            for (Map.Entry<String, ProcessMetrics.ModuleStats> entry : modules.entrySet()) {
+                snapshot.put(entry.getKey(), new ProcessMetrics.ModuleStats(entry.getValue()));
+            }
+            return new ProcessMetrics(maxConcurrent, timeoutSeconds, running.get(), waiting.get(), snapshot,
+                    new ArrayList<>(recentRuns));
+        }
+    }
+
+    private int execute(PythonJob job, ProcessRun run) throws IOException, InterruptedException {
+        if (workerPool.isEnabled()) {
+            try {
+                int exitCode = workerPool.run(job);
+                run.setWorker(true);
+                run.setUsage(job.getCpuMillis(), job.getMaxRssKb());
+                readTail(job.getStdout(), run.getStdout());
+                readTail(job.getStderr(), run.getStderr());
+                return exitCode;
+            } catch (IOException e) {
+                if (job.isCancelled()) {
+                    throw e;
+                }
+                System.err.println("Python worker failed, running " + job.getModule() + " in a new process: " + e);
+            }
+        }
+        return runProcess(job, run);
+    }
+
+    private int runProcess(PythonJob job, ProcessRun run) throws IOException, InterruptedException {
+        Path scriptRoot = scriptCache.getScriptRoot();
+        List<String> command = new ArrayList<>();
+        command.add(pythonCommand);
+        command.add(scriptRoot.resolve("importer").resolve(job.getModule() + ".py").toString());
+        command.addAll(job.getArgs());
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.directory((job.getCwd() != null ? job.getCwd() : scriptRoot).toFile());
+        Process process = processBuilder.start();
+        process.getOutputStream().close();
+        Future<?> stdout = drainers.submit(() -> drain(process.getInputStream(), job.getStdout(), run.getStdout()));
+        Future<?> stderr = drainers.submit(() -> drain(process.getErrorStream(), job.getStderr(), run.getStderr()));
+        job.setCanceller(() -> destroyTree(process));
+        try {
+            int exitCode = process.waitFor();
+            awaitDrain(stdout, process.getInputStream());
+            awaitDrain(stderr, process.getErrorStream());
+            return exitCode;
+        } finally {
+            job.setCanceller(null);
+            if (process.isAlive()) {
+                // interrupted while waiting
+                destroyTree(process);
+            }
+        }
+    }
+
+    /*
+     * Copies a stream of the process into its tail and, when given, into a file.
+     */
+    private static Void drain(InputStream in, Path file, OutputTail tail) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        OutputStream out = null;
+        try {
+            if (file != null) {
+                try {
+                    out = new FileOutputStream(file.toFile());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                tail.write(buffer, 0, read);
+                if (out != null) {
+                    out.write(buffer, 0, read);
+                    out.flush();
+                }
+            }
+            return null;
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /*
+     * Waits for a stream to be drained; a process the script left behind may keep the pipe open, so after a grace
+     * period the stream is closed instead.
+     */
+    private static void awaitDrain(Future<?> drain, InputStream in) throws InterruptedException {
+        try {
+            drain.get(DRAIN_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+                // the drain ends either way
+            }
+            drain.cancel(true);
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        }
+    }
+
+    /*
+     * Puts the end of an output file the worker wrote into the tail.
+     */
+    private static void readTail(Path file, OutputTail tail) {
+        if (file == null) {
+            return;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file.toFile(), "r")) {
+            long length = in.length();
+            int size = (int) Math.min(length, 64 * 1024);
+            byte[] buffer = new byte[size];
+            long position = Math.max(0, length - tail.capacity());
+            in.seek(position);
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                tail.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            // removed or never written
+        }
+    }
+
+    /*
+     * Kills the process and the processes it started. ProcessHandle is looked up at runtime, as the sources stay on
+     * Java 8, where only the process itself can be killed.
+     */
+    private static void destroyTree(Process process) {
+        List<Object> descendants = new ArrayList<>();
+        Method destroy = null;
+        try {
+            Class<?> handleClass = Class.forName("java.lang.ProcessHandle");
+            Object handle = Process.class.getMethod("toHandle").invoke(process);
+            try (Stream<?> stream = (Stream<?>) handleClass.getMethod("descendants").invoke(handle)) {
+                stream.forEach(descendants::add);
+            }
+            destroy = handleClass.getMethod("destroyForcibly");
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Java 8
+        }
+        process.destroyForcibly();
+        if (destroy != null) {
+            for (Object descendant : descendants) {
+                try {
+                    destroy.invoke(descendant);
+                } catch (ReflectiveOperationException | RuntimeException e) {
+                    // already gone
+                }
+            }
+        }
+    }
+
+    private void record(ProcessRun run) {
+        synchronized (recentRuns) {
+            recentRuns.addFirst(run);
+            while (recentRuns.size() > RECENT_RUNS) {
+                recentRuns.removeLast();
+            }
+            modules.computeIfAbsent(run.getModule(), module -> new ProcessMetrics.ModuleStats()).add(run);
+        }
+        System.out.println("Ran " + run.getModule() + ": exit code " + run.getExitCode() + ", waited "
+                + run.getQueuedMillis() + " ms, took " + run.getWallMillis() + " ms, cpu " + run.getCpuMillis()
+                + " ms, max rss " + run.getMaxRssKb() + " kB" + (run.isTimedOut() ? ", timed out" : "")
+                + (run.isCancelled() ? ", cancelled" : ""));
+    }
+
+    private static long millisSince(long nanos) {
+        return (System.nanoTime() - nanos) / 1000000;
+    }
+
+    private static Thread daemon(Runnable r, String prefix) {
+        Thread t = new Thread(r, prefix + UUID.randomUUID().toString().substring(0, 8));
+        t.setDaemon(true);
+        return t;
+    }
+}
@@ -0,0 +1,94 @@
+package cbporganizer.service;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.List;
+
+/*
+ * One run of an importer script: the module of the importer package, its command line arguments, the working
+ * directory and the files that receive its stdout and stderr (discarded when null).
+ */
+class PythonJob {
+
+    static final File NULL_FILE = new File(File.separatorChar == '\\' ? "NUL" : "/dev/null");
+
+    private final String module;
+    private final List<String> args;
+    private final Path cwd;
+    private final Path stdout;
+    private final Path stderr;
+
+    private volatile long maxRssKb;
+    private volatile long cpuMillis;
+    private volatile boolean cancelled;
+    private volatile Runnable canceller;
+
+    PythonJob(String module, List<String> args, Path cwd, Path stdout, Path stderr) {
+        this.module = module;
+        this.args = args;
+        this.cwd = cwd;
+        this.stdout = stdout;
+        this.stderr = stderr;
+    }
+
+    String getModule() {
+        return module;
+    }
+
+    List<String> getArgs() {
+        return args;
+    }
+
+    Path getCwd() {
+        return cwd;
+    }
+
+    Path getStdout() {
+        return stdout;
+    }
+
+    Path getStderr() {
+        return stderr;
+    }
+
+    /*
+     * Peak resident memory and CPU time of the script, as reported by the worker after it exited.
+     */
+    long getMaxRssKb() {
+        return maxRssKb;
+    }
+
+    long getCpuMillis() {
+        return cpuMillis;
+    }
+
+    void setUsage(long maxRssKb, long cpuMillis) {
+        this.maxRssKb = maxRssKb;
+        this.cpuMillis = cpuMillis;
+    }
+
+    /*
+     * Stops the script if it is running; a job that has not started yet will be stopped as soon as it does.
+     */
+    void cancel() {
+        cancelled = true;
+        Runnable current = canceller;
+        if (current != null) {
+            current.run();
+        }
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /*
+     * Registers how the running script is stopped, or clears it with null once the script has exited.
+     */
+    void setCanceller(Runnable canceller) {
+        this.canceller = canceller;
+        if (canceller != null && cancelled) {
+            canceller.run();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package cbporganizer.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Long-lived Python processes that run the importer scripts without paying interpreter startup and the pandas,
+ * jinja2 and yaml imports on every call.
+ *
+ * Each worker runs importer/worker.py, which imports validateData and prepare_clinical_data once and then forks a
+ * child per job, so every job still starts from a clean module state. Jobs and their results are exchanged as JSON
+ * lines over the worker's stdin and stdout. A worker runs one job at a time; it is replaced after max-jobs jobs and
+ * whenever it dies, in which case the job fails with an IOException and the caller can run the script directly.
+ * Cancelling a job makes the worker kill the job's process group.
+ */
+@Component
+public class PythonWorkerPool {
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    @Value("${cbporganizer.python.command:python3}")
+    private String pythonCommand;
+
+    @Value("${cbporganizer.python.workers:2}")
+    private int size;
+
+    @Value("${cbporganizer.python.worker-max-jobs:50}")
+    private int maxJobs;
+
+    private final BlockingQueue<Worker> idle = new LinkedBlockingQueue<>();
+    private final AtomicLong jobIds = new AtomicLong();
+    private Semaphore slots;
+    private volatile Path scriptRoot;
+    private volatile boolean stopped;
+
+    /*
+     * Starts the workers in the background; scriptRoot is the directory that contains the importer package.
+     */
+    public synchronized void start(Path scriptRoot) {
+        if (size <= 0 || this.scriptRoot != null) {
+            return;
+        }
+        this.slots = new Semaphore(size);
+        this.scriptRoot = scriptRoot;
+        Thread warmUp = new Thread(() -> {
+            while (idle.size() < size && !stopped) {
+                try {
+                    idle.add(new Worker());
+                } catch (IOException e) {
+                    System.err.println("Could not start a Python worker: " + e);
+                    return;
+                }
+            }
+        }, "python-worker-warmup");
+        warmUp.setDaemon(true);
+        warmUp.start();
+    }
+
+    public boolean isEnabled() {
+        return scriptRoot != null && !stopped;
+    }
+
+    /*
+     * Runs the job on a free worker, waiting for one if all are busy, and returns the script's exit code.
+     */
+    public int run(PythonJob job) throws IOException, InterruptedException {
+        slots.acquire();
+        try {
+            Worker worker = idle.poll();
+            if (worker == null) {
+                worker = new Worker();
+            }
+            int exitCode;
+            try {
+                exitCode = worker.run(job);
+            } catch (IOException e) {
+                worker.destroy();
+                throw e;
+            }
+            if (worker.jobs >= maxJobs || stopped || idle.size() >= size) {
+                worker.close();
+            } else {
+                idle.add(worker);
+            }
+            return exitCode;
+        } finally {
+            slots.release();
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        stopped = true;
+        Worker worker;
+        while ((worker = idle.poll()) != null) {
+            worker.close();
+        }
+    }
+
+    private class Worker {
+
+        private final Process process;
+        private final BufferedWriter in;
+        private final BufferedReader out;
+        private int jobs;
+
+        Worker() throws IOException {
+            ProcessBuilder processBuilder = new ProcessBuilder(pythonCommand,
+                    scriptRoot.resolve("importer").resolve("worker.py").toString());
+            processBuilder.directory(scriptRoot.toFile());
+            processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            process = processBuilder.start();
+            in = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+            out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+            try {
+                JsonNode ready = readEvent();
+                System.out.println("Python worker " + ready.path("pid").asText() + " preloaded "
+                        + ready.path("preloaded"));
+            } catch (IOException e) {
+                destroy();
+                throw e;
+            }
+        }
+
+        int run(PythonJob job) throws IOException {
+            String id = Long.toString(jobIds.incrementAndGet());
+            ObjectNode request = JSON.createObjectNode();
+            request.put("id", id);
+            request.put("module", job.getModule());
+            job.getArgs().forEach(request.putArray("args")::add);
+            request.put("cwd", (job.getCwd() != null ? job.getCwd() : scriptRoot).toAbsolutePath().toString());
+            request.put("stdout", job.getStdout() == null ? null : job.getStdout().toAbsolutePath().toString());
+            request.put("stderr", job.getStderr() == null ? null : job.getStderr().toAbsolutePath().toString());
+            jobs++;
+            send(request);
+            job.setCanceller(() -> {
+                ObjectNode cancel = JSON.createObjectNode();
+                cancel.put("cancel", id);
+                try {
+                    send(cancel);
+                } catch (IOException e) {
+                    destroy();
+                }
+            });
+            try {
+                while (true) {
+                    JsonNode event = readEvent();
+                    if (id.equals(event.path("id").asText()) && "exit".equals(event.path("event").asText())) {
+                        job.setUsage(event.path("maxRssKb").asLong(), event.path("cpuMillis").asLong());
+                        return event.path("code").asInt();
+                    }
+                }
+            } finally {
+                job.setCanceller(null);
+            }
+        }
+
+        private void send(ObjectNode message) throws IOException {
+            synchronized (in) {
+                in.write(JSON.writeValueAsString(message));
+                in.newLine();
+                in.flush();
+            }
+        }
+
+        private JsonNode readEvent() throws IOException {
+            String line = out.readLine();
+            if (line == null) {
+                throw new IOException("Python worker exited");
+            }
+            return JSON.readTree(line);
+        }
+
+        void close() {
+            try {
+                // the worker exits when its stdin is closed
+                in.close();
+            } catch (IOException e) {
+                destroy();
+            }
+        }
+
+        void destroy() {
+            process.destroyForcibly();
+        }
+    }
+}
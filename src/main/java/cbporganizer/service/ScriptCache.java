@@ -0,0 +1,227 @@
+package cbporganizer.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/*
+ * Extracts the importer scripts from the classpath once and shares them between all script runs.
+ *
+ * Every resource under /importer is discovered on the classpath and the whole set is hashed, so the scripts land in
+ * <java.io.tmpdir>/cbporganizer-scripts/<version>/importer and a new build never runs against stale copies. A version
+ * is extracted under a temporary name and renamed into place, so a directory that exists is always complete.
+ *
+ * Several instances, or the old and new release of a rolling deploy, can share the cache. Each holds a shared lock on
+ * <version>.lock for as long as it runs, and touches the version directory when it starts using it. At startup,
+ * another version is removed only when it has not been used for cbporganizer.scripts.stale-after-hours and its lock
+ * can be taken exclusively; the same age applies to abandoned .tmp-* extractions and to the per-call
+ * python-script* directories of earlier releases.
+ */
+@Component
+public class ScriptCache {
+
+    private static final String RESOURCE_ROOT = "importer/";
+
+    private final Path cacheRoot = Paths.get(System.getProperty("java.io.tmpdir"), "cbporganizer-scripts");
+    private volatile Path scriptRoot;
+    private volatile String version;
+    /* held for as long as this instance runs */
+    private FileLock versionLock;
+
+    @Value("${cbporganizer.scripts.stale-after-hours:24}")
+    private long staleAfterHours;
+
+    /*
+     * The directory containing the importer package, extracted on first use.
+     */
+    public Path getScriptRoot() throws IOException {
+        if (scriptRoot == null) {
+            extract();
+        }
+        return scriptRoot;
+    }
+
+    /*
+     * Content hash of the scripts; changes whenever any of them changes.
+     */
+    public String getVersion() throws IOException {
+        if (version == null) {
+            extract();
+        }
+        return version;
+    }
+
+    private synchronized void extract() throws IOException {
+        if (scriptRoot != null) {
+            return;
+        }
+        Map<String, byte[]> scripts = loadScripts();
+        MessageDigest digest = Digests.sha256();
+        for (Map.Entry<String, byte[]> script : scripts.entrySet()) {
+            digest.update(script.getKey().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(script.getValue());
+        }
+        String hash = Digests.toHex(digest.digest()).substring(0, 16);
+        Path versionDir = cacheRoot.resolve(hash);
+        Files.createDirectories(cacheRoot);
+        // taken before the directory is looked at, so no other instance removes it from here on
+        versionLock = lock(hash, true);
+        if (!Files.isDirectory(versionDir)) {
+            Path tmp = cacheRoot.resolve(".tmp-" + UUID.randomUUID());
+            try {
+                for (Map.Entry<String, byte[]> script : scripts.entrySet()) {
+                    Path file = tmp.resolve(RESOURCE_ROOT + script.getKey());
+                    Files.createDirectories(file.getParent());
+                    Files.write(file, script.getValue());
+                }
+                Files.move(tmp, versionDir, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+                // extracted concurrently by another instance
+            } finally {
+                deleteRecursively(tmp);
+            }
+        }
+        Files.setLastModifiedTime(versionDir, FileTime.fromMillis(System.currentTimeMillis()));
+        System.out.println("Importer scripts " + hash + " (" + scripts.size() + " files) at " + versionDir);
+        version = hash;
+        scriptRoot = versionDir;
+        removeStaleCopies(hash);
+    }
+
+    /*
+     * Reads every resource below /importer, keyed by its path relative to that directory.
+     */
+    private Map<String, byte[]> loadScripts() throws IOException {
+        Map<String, byte[]> scripts = new TreeMap<>();
+        Resource[] resources = new PathMatchingResourcePatternResolver(getClass().getClassLoader())
+                .getResources("classpath:/" + RESOURCE_ROOT + "**");
+        for (Resource resource : resources) {
+            String url = resource.getURL().toString();
+            int start = url.lastIndexOf("/" + RESOURCE_ROOT);
+            // directories; isReadable() cannot be used to skip them as it is false for empty files in a jar
+            if (start < 0 || url.endsWith("/") || (resource.isFile() && resource.getFile().isDirectory())) {
+                continue;
+            }
+            String name = url.substring(start + RESOURCE_ROOT.length() + 1);
+            if (name.isEmpty() || name.contains("__pycache__")) {
+                continue;
+            }
+            try (InputStream in = resource.getInputStream()) {
+                scripts.put(name, StreamUtils.copyToByteArray(in));
+            }
+        }
+        if (!scripts.containsKey("validateData.py")) {
+            throw new IOException("The importer scripts were not found on the classpath");
+        }
+        return scripts;
+    }
+
+    /*
+     * Locks <version>.lock, shared while a version is in use and exclusive to remove it; null when an exclusive lock
+     * is held elsewhere. The lock files are left in place, so every instance locks the same file of a version.
+     */
+    private FileLock lock(String version, boolean shared) throws IOException {
+        FileChannel channel = FileChannel.open(cacheRoot.resolve(version + ".lock"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            FileLock lock = shared ? channel.lock(0, Long.MAX_VALUE, true) : channel.tryLock();
+            if (lock == null) {
+                channel.close();
+            }
+            return lock;
+        } catch (IOException | OverlappingFileLockException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void removeStaleCopies(String current) {
+        long staleBefore = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(staleAfterHours);
+        try (DirectoryStream<Path> versions = Files.newDirectoryStream(cacheRoot)) {
+            for (Path dir : versions) {
+                String name = dir.getFileName().toString();
+                if (name.equals(current) || !Files.isDirectory(dir) || !isOlder(dir, staleBefore)) {
+                    continue;
+                }
+                if (name.startsWith(".tmp-")) {
+                    // an extraction takes seconds, so one this old was abandoned by an instance that stopped
+                    deleteRecursively(dir);
+                    continue;
+                }
+                FileLock lock = lock(name, false);
+                if (lock == null) {
+                    continue;
+                }
+                try {
+                    deleteRecursively(dir);
+                } finally {
+                    lock.channel().close();
+                }
+            }
+        } catch (IOException | OverlappingFileLockException e) {
+            e.printStackTrace();
+        }
+        Path tmpDir = cacheRoot.getParent();
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(tmpDir, "python-{script,worker}*")) {
+            for (Path dir : leftovers) {
+                if (isOlder(dir, staleBefore)) {
+                    deleteRecursively(dir);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static boolean isOlder(Path dir, long millis) {
+        try {
+            return Files.getLastModifiedTime(dir).toMillis() < millis;
+        } catch (IOException e) {
+            // removed meanwhile
+            return false;
+        }
+    }
+
+    private static void deleteRecursively(Path dir) {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package cbporganizer.service;
+
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * In-memory view of the users, study folders and files under cbpFiles, so listings do not walk the tree on every
+ * request.
+ *
+ * The catalog is built once at startup. The upload, extraction and delete paths report the files they touch, and a
+ * WatchService picks up everything else (script outputs, files changed by hand). When the watcher overflows, the
+ * affected directory is scanned again. Internal directories and temporary files, whose names start with a dot, are
+ * never listed.
+ *
+ * Every change bumps a per-user version that the listing endpoints use as their ETag. The versions start from the
+ * startup time, so a restarted server never reuses an ETag for different content.
+ */
+@Component
+public class StudyCatalog {
+
+    private final Path root = FilesStorageServiceImpl.STORAGE_ROOT.toAbsolutePath().normalize();
+    private final Map<String, UserCatalog> users = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> versions = new ConcurrentHashMap<>();
+    private final long epoch = System.currentTimeMillis();
+
+    private final Map<WatchKey, Path> watchedDirs = new ConcurrentHashMap<>();
+    private WatchService watcher;
+    private Thread watchThread;
+
+    private static class UserCatalog {
+        // relative path -> file, and the relative paths of all directories, both sorted by path
+        final NavigableMap<String, CatalogEntry> files = new ConcurrentSkipListMap<>();
+        final NavigableSet<String> dirs = new ConcurrentSkipListSet<>();
+    }
+
+    /*
+     * Scans the storage root and starts watching it.
+     */
+    public synchronized void start() {
+        if (watcher != null) {
+            return;
+        }
+        try {
+            watcher = root.getFileSystem().newWatchService();
+            watchThread = new Thread(this::processEvents, "study-catalog-watcher");
+            watchThread.setDaemon(true);
+            watchThread.start();
+        } catch (IOException e) {
+            // listings stay correct through the explicit updates, only changes made outside the app are missed
+            System.out.println("Storage changes outside the application will not be detected: " + e);
+        }
+        refresh(root);
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public boolean hasUser(String userId) {
+        return users.containsKey(userId);
+    }
+
+    /*
+     * All files of the user, or an empty list when the user has no directory.
+     */
+    public List<CatalogEntry> getFiles(String userId) {
+        UserCatalog user = users.get(userId);
+        return user == null ? new ArrayList<>() : new ArrayList<>(user.files.values());
+    }
+
+    /*
+     * The study folders of the user, or null when the user has no directory.
+     */
+    public List<String> getFolders(String userId) {
+        UserCatalog user = users.get(userId);
+        if (user == null) {
+            return null;
+        }
+        List<String> folders = new ArrayList<>();
+        for (String dir : user.dirs) {
+            if (dir.indexOf('/') < 0) {
+                folders.add(dir);
+            }
+        }
+        return folders;
+    }
+
+    /*
+     * The files directly inside a folder of the user, or null when there is no such folder.
+     */
+    public List<CatalogEntry> getFilesInFolder(String userId, String folderName) {
+        UserCatalog user = users.get(userId);
+        if (user == null || !user.dirs.contains(folderName)) {
+            return null;
+        }
+        List<CatalogEntry> files = new ArrayList<>();
+        String prefix = folderName + "/";
+        for (CatalogEntry entry : user.files.subMap(prefix, true, prefix + Character.MAX_VALUE, true).values()) {
+            if (entry.getPath().indexOf('/', prefix.length()) < 0) {
+                files.add(entry);
+            }
+        }
+        return files;
+    }
+
+    /*
+     * Up to limit files of the user, or of one of the user's folders including its subfolders, in path order and
+     * starting after the given path. Returns null when the user or folder does not exist.
+     */
+    public List<CatalogEntry> getFilesAfter(String userId, String folderName, String after, int limit) {
+        UserCatalog user = users.get(userId);
+        if (user == null || (folderName != null && !user.dirs.contains(folderName))) {
+            return null;
+        }
+        NavigableMap<String, CatalogEntry> files = user.files;
+        if (folderName != null) {
+            String prefix = folderName + "/";
+            files = files.subMap(prefix, true, prefix + Character.MAX_VALUE, true);
+        }
+        if (after != null) {
+            files = files.tailMap(after, false);
+        }
+        List<CatalogEntry> page = new ArrayList<>();
+        for (CatalogEntry entry : files.values()) {
+            if (page.size() == limit) {
+                break;
+            }
+            page.add(entry);
+        }
+        return page;
+    }
+
+    /*
+     * Changes whenever anything in the user's directory changes.
+     */
+    public String getVersion(String userId) {
+        AtomicLong version = versions.get(userId);
+        return epoch + "-" + (version == null ? 0 : version.get());
+    }
+
+    /*
+     * Brings the catalog in line with the current state of a path on disk: files are added or updated, directories
+     * are scanned again and paths that no longer exist are removed together with everything below them.
+     */
+    public void refresh(Path path) {
+        Path absolute = path.toAbsolutePath().normalize();
+        if (absolute.equals(root)) {
+            Set<String> seen = new HashSet<>();
+            try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root, Files::isDirectory)) {
+                for (Path dir : dirs) {
+                    String userId = dir.getFileName().toString();
+                    if (!isHidden(userId)) {
+                        seen.add(userId);
+                        refresh(dir);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            for (String userId : new ArrayList<>(users.keySet())) {
+                if (!seen.contains(userId)) {
+                    remove(root.resolve(userId));
+                }
+            }
+            return;
+        }
+        Location location = locate(absolute);
+        if (location == null) {
+            return;
+        }
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(absolute, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            remove(absolute);
+            return;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (attrs.isDirectory()) {
+            scan(location, absolute);
+        } else if (attrs.isRegularFile() && location.path != null) {
+            UserCatalog user = users.computeIfAbsent(location.userId, u -> new UserCatalog());
+            addParents(user, location.path);
+            user.files.put(location.path, toEntry(location.path, attrs));
+            touch(location.userId);
+        }
+    }
+
+    /*
+     * Forgets a path and everything below it; the user's own directory forgets the user.
+     */
+    public void remove(Path path) {
+        Location location = locate(path.toAbsolutePath().normalize());
+        if (location == null) {
+            return;
+        }
+        if (location.path == null) {
+            users.remove(location.userId);
+        } else {
+            UserCatalog user = users.get(location.userId);
+            if (user == null) {
+                return;
+            }
+            String prefix = location.path + "/";
+            user.files.remove(location.path);
+            user.files.subMap(prefix, true, prefix + Character.MAX_VALUE, true).clear();
+            user.dirs.remove(location.path);
+            user.dirs.subSet(prefix, true, prefix + Character.MAX_VALUE, true).clear();
+        }
+        touch(location.userId);
+    }
+
+    private void scan(Location location, Path dir) {
+        UserCatalog user = users.computeIfAbsent(location.userId, u -> new UserCatalog());
+        String base = location.path == null ? "" : location.path + "/";
+        Set<String> seenFiles = new HashSet<>();
+        Set<String> seenDirs = new HashSet<>();
+        if (location.path != null) {
+            addParents(user, location.path);
+            user.dirs.add(location.path);
+        }
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path subDir, BasicFileAttributes attrs) throws IOException {
+                    if (subDir.equals(dir)) {
+                        watch(subDir);
+                        return FileVisitResult.CONTINUE;
+                    }
+                    if (isHidden(subDir.getFileName().toString())) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    String path = base + toCatalogPath(dir.relativize(subDir));
+                    seenDirs.add(path);
+                    user.dirs.add(path);
+                    watch(subDir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && !isHidden(file.getFileName().toString())) {
+                        String path = base + toCatalogPath(dir.relativize(file));
+                        seenFiles.add(path);
+                        user.files.put(path, toEntry(path, attrs));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    // removed while scanning
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        String upper = base + Character.MAX_VALUE;
+        user.files.subMap(base, true, upper, true).keySet().removeIf(path -> !seenFiles.contains(path));
+        user.dirs.subSet(base, false, upper, true).removeIf(path -> !path.equals(location.path)
+                && !seenDirs.contains(path));
+        touch(location.userId);
+    }
+
+    private void watch(Path dir) {
+        if (watcher == null) {
+            return;
+        }
+        try {
+            WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedDirs.put(key, dir);
+        } catch (ClosedWatchServiceException e) {
+            // shutting down
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void processEvents() {
+        watch(root);
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = watchedDirs.get(key);
+            if (dir != null) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    try {
+                        handle(dir, event);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            if (!key.reset()) {
+                watchedDirs.remove(key);
+            }
+        }
+    }
+
+    private void handle(Path dir, WatchEvent<?> event) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            refresh(dir);
+            return;
+        }
+        Path child = dir.resolve((Path) event.context());
+        if (isHidden(child.getFileName().toString())) {
+            return;
+        }
+        if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+            remove(child);
+        } else {
+            refresh(child);
+        }
+    }
+
+    private void addParents(UserCatalog user, String path) {
+        int slash = path.indexOf('/');
+        while (slash > 0) {
+            user.dirs.add(path.substring(0, slash));
+            slash = path.indexOf('/', slash + 1);
+        }
+    }
+
+    private void touch(String userId) {
+        versions.computeIfAbsent(userId, u -> new AtomicLong()).incrementAndGet();
+    }
+
+    private static CatalogEntry toEntry(String path, BasicFileAttributes attrs) {
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        return new CatalogEntry(name, path, attrs.size(), attrs.lastModifiedTime().toMillis(),
+                CatalogEntry.typeOf("/" + path, name));
+    }
+
+    /*
+     * Splits an absolute path below the storage root into the user and the path inside the user's directory
+     * (null for the directory itself); returns null for the root, internal directories and temporary files.
+     */
+    private Location locate(Path absolute) {
+        if (!absolute.startsWith(root) || absolute.equals(root)) {
+            return null;
+        }
+        Path relative = root.relativize(absolute);
+        for (Path name : relative) {
+            if (isHidden(name.toString())) {
+                return null;
+            }
+        }
+        String userId = relative.getName(0).toString();
+        String path = relative.getNameCount() == 1 ? null
+                : toCatalogPath(relative.subpath(1, relative.getNameCount()));
+        return new Location(userId, path);
+    }
+
+    private static class Location {
+        final String userId;
+        final String path;
+
+        Location(String userId, String path) {
+            this.userId = userId;
+            this.path = path;
+        }
+    }
+
+    private static boolean isHidden(String name) {
+        return name.startsWith(".");
+    }
+
+    private static String toCatalogPath(Path relative) {
+        return relative.toString().replace('\\', '/');
+    }
+}
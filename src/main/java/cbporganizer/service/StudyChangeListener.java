@@ -0,0 +1,10 @@
+package cbporganizer.service;
+
+/*
+ * Notified by the storage service whenever files of a user's studies were written or deleted, including a study or
+ * the whole user directory being deleted. Called on request threads, so implementations must return quickly.
+ */
+interface StudyChangeListener {
+
+    void studiesChanged(String userId);
+}
@@ -0,0 +1,120 @@
+package cbporganizer.service;
+
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Infers the cBioPortal data type of study files from the meta_*.txt files that describe them.
+ *
+ * A meta file names its data file in data_filename and its type in genetic_alteration_type and datatype, e.g.
+ * "MUTATION_EXTENDED:MAF"; both the meta file and the data file get that type. Meta files are small, and each one is
+ * only parsed again when its size or modification time changes.
+ */
+@Component
+public class StudyDataTypes {
+
+    private final Map<Path, ParsedMeta> parsed = new ConcurrentHashMap<>();
+
+    private static class ParsedMeta {
+        final long size;
+        final long lastModified;
+        final String dataType;
+        final String dataFilename;
+
+        ParsedMeta(long size, long lastModified, String dataType, String dataFilename) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.dataType = dataType;
+            this.dataFilename = dataFilename;
+        }
+    }
+
+    /*
+     * Maps the paths of the described files, relative to the user's directory, to their data type. metaFiles are
+     * the catalog entries of the meta files of one or more studies.
+     */
+    public Map<String, String> getDataTypes(Path userDir, List<CatalogEntry> metaFiles) {
+        Map<String, String> dataTypes = new HashMap<>();
+        for (CatalogEntry metaFile : metaFiles) {
+            ParsedMeta meta = parse(userDir.resolve(metaFile.getPath()), metaFile);
+            if (meta == null || meta.dataType == null) {
+                continue;
+            }
+            dataTypes.put(metaFile.getPath(), meta.dataType);
+            if (meta.dataFilename != null) {
+                String dir = metaFile.getPath().substring(0, metaFile.getPath().lastIndexOf('/') + 1);
+                dataTypes.put(dir + meta.dataFilename, meta.dataType);
+            }
+        }
+        return dataTypes;
+    }
+
+    /*
+     * The data files among files, the catalog entries of a study, that have the given data type, e.g.
+     * CLINICAL:SAMPLE_ATTRIBUTES.
+     */
+    public List<CatalogEntry> getDataFiles(Path userDir, List<CatalogEntry> files, String dataType) {
+        List<CatalogEntry> metaFiles = new ArrayList<>();
+        for (CatalogEntry file : files) {
+            if (file.getType().equals("meta")) {
+                metaFiles.add(file);
+            }
+        }
+        Map<String, String> dataTypes = getDataTypes(userDir, metaFiles);
+        List<CatalogEntry> dataFiles = new ArrayList<>();
+        for (CatalogEntry file : files) {
+            if (!file.getType().equals("meta") && dataType.equals(dataTypes.get(file.getPath()))) {
+                dataFiles.add(file);
+            }
+        }
+        return dataFiles;
+    }
+
+    private ParsedMeta parse(Path file, CatalogEntry entry) {
+        Path key = file.toAbsolutePath().normalize();
+        ParsedMeta meta = parsed.get(key);
+        if (meta != null && meta.size == entry.getSize() && meta.lastModified == entry.getLastModified()) {
+            return meta;
+        }
+        String alterationType = null;
+        String datatype = null;
+        String dataFilename = null;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int colon = line.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equals("genetic_alteration_type")) {
+                    alterationType = value;
+                } else if (name.equals("datatype")) {
+                    datatype = value;
+                } else if (name.equals("data_filename")) {
+                    dataFilename = value;
+                }
+            }
+        } catch (IOException e) {
+            // removed or not readable as text; the listing just carries no type for it
+            parsed.remove(key);
+            return null;
+        }
+        String dataType = alterationType == null ? null
+                : datatype == null ? alterationType : alterationType + ":" + datatype;
+        meta = new ParsedMeta(entry.getSize(), entry.getLastModified(), dataType, dataFilename);
+        parsed.put(key, meta);
+        return meta;
+    }
+}
@@ -0,0 +1,201 @@
+package cbporganizer.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Keeps one index per study, built from some of its data files, for the services that query them.
+ *
+ * An index records a fingerprint of the size and modification time of the files it was built from, as the catalog
+ * knows them; getting the index of a study whose files changed since, by any path, builds it again first. With a
+ * root the indexes are also files, in <root>/<user>/<study><suffix>, and one left from before a restart is used as
+ * long as its fingerprint still matches. When the studies of a user change, their indexes are brought up to date on
+ * a background thread, so the first query does not pay for it, and those of studies that are gone are removed.
+ */
+abstract class StudyIndexCache<T> implements StudyChangeListener {
+
+    @Autowired
+    protected StudyCatalog catalog;
+
+    @Autowired
+    protected StudyDataTypes studyDataTypes;
+
+    private final String name;
+    private final Path root;
+    private final String suffix;
+    private final Map<String, T> indexes = new ConcurrentHashMap<>();
+    private final Map<String, Object> locks = new ConcurrentHashMap<>();
+    private final Set<String> scheduled = ConcurrentHashMap.newKeySet();
+    private ExecutorService builder;
+
+    /*
+     * name describes the index in messages; root is null for indexes that are only kept in memory.
+     */
+    StudyIndexCache(String name, Path root, String suffix) {
+        this.name = name;
+        this.root = root;
+        this.suffix = suffix;
+    }
+
+    @PostConstruct
+    public void start() {
+        builder = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, name.replace(' ', '-'));
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        builder.shutdownNow();
+    }
+
+    /*
+     * The fingerprint of the files of the study the index is built from, or null when the study has nothing to
+     * index. Throws IllegalArgumentException when its files cannot be indexed.
+     */
+    protected abstract String fingerprint(Path userDir, String folderName, List<CatalogEntry> files);
+
+    protected abstract String fingerprintOf(T index);
+
+    /*
+     * Builds the index of the study, writing it to file when there is a root.
+     */
+    protected abstract T build(Path userDir, String folderName, List<CatalogEntry> files, Path file,
+                               String fingerprint) throws IOException;
+
+    /*
+     * The index in file, or null when it is missing or was written by another version.
+     */
+    protected T open(Path file) throws IOException {
+        return null;
+    }
+
+    /*
+     * Brings the indexes of all studies of the user up to date in the background and removes those of studies
+     * that are gone.
+     */
+    @Override
+    public void studiesChanged(String userId) {
+        if (!scheduled.add(userId)) {
+            return;
+        }
+        builder.execute(() -> {
+            scheduled.remove(userId);
+            List<String> current = catalog.getFolders(userId);
+            List<String> folders = current == null ? new ArrayList<>() : current;
+            for (String folder : folders) {
+                try {
+                    get(userId, folder);
+                } catch (IOException | UncheckedIOException | IllegalArgumentException e) {
+                    System.err.println("Could not build the " + name + " of " + folder + ": " + e);
+                }
+            }
+            removeGone(userId, folders);
+        });
+    }
+
+    /*
+     * The index of the study, built when it is missing or out of date; null when there is no such study or it has
+     * nothing to index.
+     */
+    protected T get(String userId, String folderName) throws IOException {
+        String key = key(userId, folderName);
+        List<CatalogEntry> files = catalog.getFilesInFolder(userId, folderName);
+        Path userDir = FilesStorageServiceImpl.STORAGE_ROOT.resolve(userId);
+        String fingerprint = files == null ? null : fingerprint(userDir, folderName, files);
+        if (fingerprint == null) {
+            remove(userId, folderName);
+            return null;
+        }
+        T index = indexes.get(key);
+        if (index != null && fingerprintOf(index).equals(fingerprint)) {
+            return index;
+        }
+        synchronized (locks.computeIfAbsent(key, k -> new Object())) {
+            Path file = root == null ? null : root.resolve(userId).resolve(folderName + suffix);
+            index = indexes.get(key);
+            if ((index == null || !fingerprintOf(index).equals(fingerprint)) && file != null) {
+                index = open(file);
+            }
+            if (index == null || !fingerprintOf(index).equals(fingerprint)) {
+                index = build(userDir, folderName, files, file, fingerprint);
+            }
+            indexes.put(key, index);
+            return index;
+        }
+    }
+
+    private void remove(String userId, String folderName) throws IOException {
+        indexes.remove(key(userId, folderName));
+        if (root != null) {
+            Files.deleteIfExists(root.resolve(userId).resolve(folderName + suffix));
+        }
+    }
+
+    private void removeGone(String userId, List<String> folders) {
+        indexes.keySet().removeIf(key -> key.startsWith(userId + "/")
+                && !folders.contains(key.substring(userId.length() + 1)));
+        Path userIndexes = root == null ? null : root.resolve(userId);
+        if (userIndexes == null || !Files.isDirectory(userIndexes)) {
+            return;
+        }
+        try {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(userIndexes, "*" + suffix)) {
+                for (Path file : stream) {
+                    String fileName = file.getFileName().toString();
+                    if (!folders.contains(fileName.substring(0, fileName.length() - suffix.length()))) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+            if (folders.isEmpty()) {
+                Files.deleteIfExists(userIndexes);
+            }
+        } catch (DirectoryNotEmptyException e) {
+            // a study was uploaded again meanwhile
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * The size and modification time of every file, which changes whenever one of them does.
+     */
+    protected static String fingerprint(List<CatalogEntry> files) {
+        StringBuilder fingerprint = new StringBuilder();
+        for (CatalogEntry file : files) {
+            fingerprint.append(file.getPath()).append(':').append(file.getSize()).append(':')
+                    .append(file.getLastModified()).append(';');
+        }
+        return fingerprint.toString();
+    }
+
+    protected static List<String> paths(List<CatalogEntry> files) {
+        List<String> paths = new ArrayList<>();
+        for (CatalogEntry file : files) {
+            paths.add(file.getPath());
+        }
+        return paths;
+    }
+
+    private static String key(String userId, String folderName) {
+        return userId + "/" + folderName;
+    }
+}
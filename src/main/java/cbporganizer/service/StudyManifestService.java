@@ -0,0 +1,291 @@
+package cbporganizer.service;
+
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/*
+ * Keeps a content hash for every file of a study, so clients can find out which files changed without re-uploading
+ * the whole archive.
+ *
+ * Manifests live in cbpFiles/.manifests/<user>/<study>.tsv as "path, size, mtime, sha256" rows. Files are only
+ * hashed again when their size or modification time no longer matches the stored row; the upload and extraction
+ * paths record the hash they computed while writing, so a fresh upload never has to be read back.
+ */
+@Service
+public class StudyManifestService {
+
+    private final Path manifestRoot = FilesStorageServiceImpl.STORAGE_ROOT.resolve(".manifests");
+    private final Map<String, Map<String, FileDigest>> manifests = new ConcurrentHashMap<>();
+
+    /*
+     * Returns the up-to-date manifest of a study folder, hashing only files that changed since the last call.
+     */
+    public List<FileDigest> getManifest(String userId, String folderName) {
+        Path studyDir = getStudyPath(userId, folderName);
+        if (!Files.isDirectory(studyDir)) {
+            return null;
+        }
+        Map<String, FileDigest> manifest = load(userId, folderName);
+        synchronized (manifest) {
+            try {
+                if (refresh(studyDir, manifest)) {
+                    store(userId, folderName, manifest);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException("Could not compute the manifest of " + folderName);
+            }
+            return new ArrayList<>(manifest.values());
+        }
+    }
+
+    /*
+     * Looks up the hash of one file, or null when the file is not in the manifest or changed since it was recorded.
+     */
+    public String getHash(String userId, String folderName, String relativePath) {
+        Path file = getStudyPath(userId, folderName).resolve(relativePath);
+        Map<String, FileDigest> manifest = load(userId, folderName);
+        synchronized (manifest) {
+            FileDigest digest = manifest.get(relativePath);
+            try {
+                if (digest != null && Files.isRegularFile(file)
+                        && matches(digest, Files.readAttributes(file, BasicFileAttributes.class))) {
+                    return digest.getSha256();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return null;
+        }
+    }
+
+    /*
+     * Records hashes computed while files were written and returns the hashes they replaced. Files outside a study
+     * folder are ignored.
+     */
+    public Set<String> record(String userId, Map<Path, String> hashes) {
+        Set<String> replaced = new HashSet<>();
+        Path userDir = FilesStorageServiceImpl.STORAGE_ROOT.resolve(userId).toAbsolutePath().normalize();
+        Map<String, Map<String, String>> byStudy = new TreeMap<>();
+        for (Map.Entry<Path, String> entry : hashes.entrySet()) {
+            Path relative = userDir.relativize(entry.getKey().toAbsolutePath().normalize());
+            if (relative.getNameCount() < 2) {
+                continue;
+            }
+            String study = relative.getName(0).toString();
+            String path = toManifestPath(relative.subpath(1, relative.getNameCount()));
+            byStudy.computeIfAbsent(study, s -> new TreeMap<>()).put(path, entry.getValue());
+        }
+        for (Map.Entry<String, Map<String, String>> study : byStudy.entrySet()) {
+            Path studyDir = getStudyPath(userId, study.getKey());
+            Map<String, FileDigest> manifest = load(userId, study.getKey());
+            synchronized (manifest) {
+                try {
+                    for (Map.Entry<String, String> file : study.getValue().entrySet()) {
+                        BasicFileAttributes attrs = Files.readAttributes(studyDir.resolve(file.getKey()),
+                                BasicFileAttributes.class);
+                        FileDigest previous = manifest.put(file.getKey(), new FileDigest(file.getKey(), attrs.size(),
+                                attrs.lastModifiedTime().toMillis(), file.getValue()));
+                        if (previous != null && !previous.getSha256().equals(file.getValue())) {
+                            replaced.add(previous.getSha256());
+                        }
+                    }
+                    store(userId, study.getKey(), manifest);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return replaced;
+    }
+
+    /*
+     * Removes one file from the manifest and returns the hash it had, if it was known.
+     */
+    public String remove(String userId, String folderName, String relativePath) {
+        Map<String, FileDigest> manifest = load(userId, folderName);
+        synchronized (manifest) {
+            FileDigest removed = manifest.remove(relativePath);
+            if (removed != null) {
+                try {
+                    store(userId, folderName, manifest);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            return removed == null ? null : removed.getSha256();
+        }
+    }
+
+    /*
+     * Returns the stored hashes below a storage path ("<user>" or "<user>/<study>") without touching the files.
+     */
+    public Set<String> recordedHashes(String storagePath) {
+        Path relative = FilesStorageServiceImpl.STORAGE_ROOT.relativize(
+                FilesStorageServiceImpl.STORAGE_ROOT.resolve(storagePath).normalize());
+        Set<String> hashes = new HashSet<>();
+        if (relative.getNameCount() == 0 || relative.getNameCount() > 2) {
+            return hashes;
+        }
+        String userId = relative.getName(0).toString();
+        List<String> folders = new ArrayList<>();
+        if (relative.getNameCount() == 2) {
+            folders.add(relative.getName(1).toString());
+        } else {
+            Path userManifests = manifestRoot.resolve(userId);
+            if (Files.isDirectory(userManifests)) {
+                try (Stream<Path> files = Files.list(userManifests)) {
+                    files.map(file -> file.getFileName().toString())
+                            .filter(name -> name.endsWith(".tsv"))
+                            .forEach(name -> folders.add(name.substring(0, name.length() - 4)));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        for (String folderName : folders) {
+            Map<String, FileDigest> manifest = load(userId, folderName);
+            synchronized (manifest) {
+                for (FileDigest digest : manifest.values()) {
+                    hashes.add(digest.getSha256());
+                }
+            }
+        }
+        return hashes;
+    }
+
+    /*
+     * Drops the manifests below a storage path: "<user>" for all studies of a user or "<user>/<study>" for one.
+     */
+    public void invalidate(String storagePath) {
+        Path relative = FilesStorageServiceImpl.STORAGE_ROOT.relativize(
+                FilesStorageServiceImpl.STORAGE_ROOT.resolve(storagePath).normalize());
+        try {
+            if (relative.getNameCount() == 1) {
+                String userId = relative.toString();
+                manifests.keySet().removeIf(key -> key.startsWith(userId + "/"));
+                Path userManifests = manifestRoot.resolve(userId);
+                if (Files.isDirectory(userManifests)) {
+                    try (Stream<Path> files = Files.list(userManifests)) {
+                        for (Path file : (Iterable<Path>) files::iterator) {
+                            Files.deleteIfExists(file);
+                        }
+                    }
+                    Files.deleteIfExists(userManifests);
+                }
+            } else if (relative.getNameCount() == 2) {
+                String userId = relative.getName(0).toString();
+                String folderName = relative.getName(1).toString();
+                manifests.remove(key(userId, folderName));
+                Files.deleteIfExists(getManifestPath(userId, folderName));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private boolean refresh(Path studyDir, Map<String, FileDigest> manifest) throws IOException {
+        Set<String> seen = new HashSet<>();
+        boolean[] changed = {false};
+        Files.walkFileTree(studyDir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (!attrs.isRegularFile()) {
+                    return FileVisitResult.CONTINUE;
+                }
+                String path = toManifestPath(studyDir.relativize(file));
+                seen.add(path);
+                FileDigest digest = manifest.get(path);
+                if (digest == null || !matches(digest, attrs)) {
+                    manifest.put(path, new FileDigest(path, attrs.size(), attrs.lastModifiedTime().toMillis(),
+                            Digests.sha256(file)));
+                    changed[0] = true;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        if (manifest.keySet().retainAll(seen)) {
+            changed[0] = true;
+        }
+        return changed[0];
+    }
+
+    private static boolean matches(FileDigest digest, BasicFileAttributes attrs) {
+        return digest.getSize() == attrs.size() && digest.getLastModified() == attrs.lastModifiedTime().toMillis();
+    }
+
+    private Map<String, FileDigest> load(String userId, String folderName) {
+        return manifests.computeIfAbsent(key(userId, folderName), k -> {
+            Map<String, FileDigest> manifest = new TreeMap<>();
+            Path manifestPath = getManifestPath(userId, folderName);
+            if (Files.exists(manifestPath)) {
+                try (BufferedReader reader = Files.newBufferedReader(manifestPath, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        String[] parts = line.split("\t");
+                        if (parts.length == 4) {
+                            manifest.put(parts[0], new FileDigest(parts[0], Long.parseLong(parts[1]),
+                                    Long.parseLong(parts[2]), parts[3]));
+                        }
+                    }
+                } catch (IOException | NumberFormatException e) {
+                    // a damaged manifest is rebuilt from the files on the next refresh
+                    e.printStackTrace();
+                    manifest.clear();
+                }
+            }
+            return manifest;
+        });
+    }
+
+    private void store(String userId, String folderName, Map<String, FileDigest> manifest) throws IOException {
+        Path manifestPath = getManifestPath(userId, folderName);
+        Files.createDirectories(manifestPath.getParent());
+        Path tmp = manifestPath.resolveSibling(manifestPath.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (FileDigest digest : manifest.values()) {
+                writer.write(digest.getPath() + "\t" + digest.getSize() + "\t" + digest.getLastModified()
+                        + "\t" + digest.getSha256());
+                writer.newLine();
+            }
+        }
+        Files.move(tmp, manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path getStudyPath(String userId, String folderName) {
+        return FilesStorageServiceImpl.STORAGE_ROOT.resolve(userId).resolve(folderName);
+    }
+
+    /*
+     * The manifest as last stored by getManifest, for scripts that want the hashes too.
+     */
+    Path getManifestPath(String userId, String folderName) {
+        return manifestRoot.resolve(userId).resolve(folderName + ".tsv");
+    }
+
+    private static String toManifestPath(Path relative) {
+        return relative.toString().replace('\\', '/');
+    }
+
+    private static String key(String userId, String folderName) {
+        return userId + "/" + folderName;
+    }
+}
@@ -0,0 +1,51 @@
+package cbporganizer.service;
+
+import java.util.List;
+
+/*
+ * State of a chunked upload as reported to the client, so it knows which byte ranges still have to be sent.
+ */
+public class UploadStatus {
+
+    private final String uploadId;
+    private final String fileName;
+    private final long totalSize;
+    private final long receivedBytes;
+    private final List<long[]> receivedRanges;
+
+    public UploadStatus(String uploadId, String fileName, long totalSize, long receivedBytes,
+                        List<long[]> receivedRanges) {
+        this.uploadId = uploadId;
+        this.fileName = fileName;
+        this.totalSize = totalSize;
+        this.receivedBytes = receivedBytes;
+        this.receivedRanges = receivedRanges;
+    }
+
+    public String getUploadId() {
+        return uploadId;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    /*
+     * Received byte ranges as [start, end) pairs, merged and in ascending order.
+     */
+    public List<long[]> getReceivedRanges() {
+        return receivedRanges;
+    }
+
+    public boolean isComplete() {
+        return receivedBytes == totalSize;
+    }
+}
@@ -0,0 +1,271 @@
+package cbporganizer.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/*
+ * Remembers the outcome of validations, so validating a study that did not change returns at once.
+ *
+ * A result is keyed by a fingerprint of the study: the content hashes from the study manifest of the files the
+ * validator reads, the study's location, which is printed in the report, and the version of the validator scripts.
+ * Other files, like clinical.csv or the validator's own outputs, do not change it. Entries live in cbpFiles/.validation-cache/<fingerprint>/ and hold the report, the log and the
+ * exit status; they are hard-linked back into the study folder on a hit. Only definite results (valid, invalid,
+ * valid with warnings) are kept. The per-file records of incremental validations are kept in .records below the same
+ * directory. When the entries and records outgrow max-bytes, the least recently used ones are removed.
+ */
+@Component
+public class ValidationCache {
+
+    static final List<String> OUTPUTS = Arrays.asList(
+            "validated_study.html", "validated_study.html.gz", "validated_study_cropped.html", "errorOut.txt",
+            ValidationMessageService.MESSAGES_FILE, ValidationMessageService.INDEX_FILE);
+
+    private static final String EXIT_CODE_FILE = "exitCode";
+    /* the names validateData.py takes for meta files */
+    private static final Pattern META_FILE = Pattern.compile("(\\b|_)meta(\\b|[_0-9])", Pattern.CASE_INSENSITIVE);
+
+    private final Path cacheRoot = FilesStorageServiceImpl.STORAGE_ROOT.resolve(".validation-cache");
+    private final Path recordsDir = cacheRoot.resolve(".records");
+
+    @Autowired
+    private StudyManifestService manifestService;
+
+    @Autowired
+    private ScriptCache scriptCache;
+
+    @Value("${cbporganizer.validation.cache-max-bytes:268435456}")
+    private long maxBytes;
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /*
+     * Where validateStudyFiles.py keeps the log records of single data files.
+     */
+    public Path getRecordsDir() {
+        return recordsDir;
+    }
+
+    /*
+     * Fingerprint of the study's current content, or null when the study cannot be read.
+     */
+    public String fingerprint(String userId, String folderName, Path studyDir) {
+        try {
+            List<FileDigest> manifest = manifestService.getManifest(userId, folderName);
+            if (manifest == null) {
+                return null;
+            }
+            MessageDigest digest = Digests.sha256();
+            update(digest, scriptCache.getVersion());
+            update(digest, studyDir.toAbsolutePath().toString());
+            Set<String> inputs = validatorInputs(studyDir, manifest);
+            for (FileDigest file : manifest) {
+                if (inputs.contains(file.getPath())) {
+                    update(digest, file.getPath());
+                    update(digest, file.getSha256());
+                }
+            }
+            return Digests.toHex(digest.digest());
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /*
+     * The paths of the files validateData.py reads: the meta files it finds by name, the files they name in a
+     * *_filename field, like data_filename, and the case lists. Hidden and backup files are skipped, as it does.
+     */
+    private static Set<String> validatorInputs(Path studyDir, List<FileDigest> manifest) throws IOException {
+        Set<String> inputs = new HashSet<>();
+        for (FileDigest file : manifest) {
+            String path = file.getPath();
+            String name = path.substring(path.lastIndexOf('/') + 1);
+            if (name.startsWith(".") || name.endsWith("~")) {
+                continue;
+            }
+            if (path.equals(name) && META_FILE.matcher(name).find() && !name.startsWith("ONCOKB_IMPORT_BACKUP")) {
+                inputs.add(path);
+                try (BufferedReader reader = Files.newBufferedReader(studyDir.resolve(path),
+                        StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        int colon = line.indexOf(':');
+                        if (colon > 0 && line.substring(0, colon).trim().endsWith("_filename")) {
+                            inputs.add(line.substring(colon + 1).trim());
+                        }
+                    }
+                }
+            } else if (path.equals("case_lists/" + name)) {
+                inputs.add(path);
+            }
+        }
+        return inputs;
+    }
+
+    /*
+     * Puts the cached outputs for the fingerprint into the study folder and returns the cached exit status, or
+     * returns null when there is no entry. The outputs must have been removed from the folder beforehand.
+     */
+    public Integer restore(String fingerprint, Path studyDir) {
+        Path entry = cacheRoot.resolve(fingerprint);
+        try {
+            int exitCode = Integer.parseInt(new String(Files.readAllBytes(entry.resolve(EXIT_CODE_FILE)),
+                    StandardCharsets.UTF_8).trim());
+            for (String output : OUTPUTS) {
+                Path cached = entry.resolve(output);
+                if (Files.exists(cached)) {
+                    linkOrCopy(cached, studyDir.resolve(output));
+                }
+            }
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            return exitCode;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /*
+     * Keeps the outputs of a finished validation under the fingerprint taken before it ran.
+     */
+    public void store(String fingerprint, Path studyDir, int exitCode) {
+        if (exitCode == 0 || exitCode == 1 || exitCode == 3) {
+            storeEntry(fingerprint, studyDir, exitCode);
+        }
+        // the run may also have added records
+        evict();
+    }
+
+    private void storeEntry(String fingerprint, Path studyDir, int exitCode) {
+        Path entry = cacheRoot.resolve(fingerprint);
+        Path tmp = cacheRoot.resolve(".tmp-" + UUID.randomUUID());
+        try {
+            Files.createDirectories(tmp);
+            for (String output : OUTPUTS) {
+                Path file = studyDir.resolve(output);
+                if (Files.exists(file)) {
+                    linkOrCopy(file, tmp.resolve(output));
+                }
+            }
+            Files.write(tmp.resolve(EXIT_CODE_FILE), Integer.toString(exitCode).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+            // stored concurrently by another validation of the same content
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            deleteRecursively(tmp);
+        }
+    }
+
+    /*
+     * Removes the least recently used entries and records until the cache fits into max-bytes again.
+     */
+    private synchronized void evict() {
+        List<Path> entries = new ArrayList<>();
+        long total = 0;
+        for (Path dir : Arrays.asList(cacheRoot, recordsDir)) {
+            if (!Files.isDirectory(dir)) {
+                continue;
+            }
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+                for (Path child : children) {
+                    if (!child.getFileName().toString().startsWith(".")) {
+                        entries.add(child);
+                        total += size(child);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+        entries.sort(Comparator.comparingLong(ValidationCache::lastUsed));
+        for (Path entry : entries) {
+            if (total <= maxBytes) {
+                break;
+            }
+            total -= size(entry);
+            deleteRecursively(entry);
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    /*
+     * The outputs are always unlinked before a script writes them, so sharing an inode with the cache is safe.
+     */
+    private static void linkOrCopy(Path source, Path target) throws IOException {
+        try {
+            Files.createLink(target, source);
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static long lastUsed(Path entry) {
+        try {
+            return Files.getLastModifiedTime(entry).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static long size(Path entry) {
+        if (!Files.isDirectory(entry)) {
+            return entry.toFile().length();
+        }
+        try (Stream<Path> files = Files.list(entry)) {
+            return files.mapToLong(file -> file.toFile().length()).sum();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static void deleteRecursively(Path dir) {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package cbporganizer.service;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/*
+ * A validation submitted to run in the background. The getters form the JSON status returned to clients; the
+ * validator's log lines are collected as they are written, so a client that subscribes late still gets all of them.
+ */
+public class ValidationJob {
+
+    public enum State {
+        QUEUED, RUNNING, FINISHED, FAILED, CANCELLED
+    }
+
+    private static final int MAX_LOG_LINES = 50000;
+
+    private final String jobId;
+    private final String userId;
+    private final String folderName;
+    private final long submittedAt = System.currentTimeMillis();
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private volatile State state = State.QUEUED;
+    private volatile Integer exitCode;
+
+    private final List<String> logLines = new ArrayList<>();
+    private final List<Consumer<ValidationJob>> listeners = new ArrayList<>();
+    private volatile PythonJob script;
+    private volatile Path logFile;
+    private volatile boolean cancelRequested;
+    private Runnable task;
+
+    ValidationJob(String jobId, String userId, String folderName) {
+        this.jobId = jobId;
+        this.userId = userId;
+        this.folderName = folderName;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public String getFolderName() {
+        return folderName;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /*
+     * Exit status of the validator once it finished: 0 valid, 1 invalid, 2 not performed, 3 valid with warnings.
+     */
+    public Integer getExitCode() {
+        return exitCode;
+    }
+
+    public String getResult() {
+        if (exitCode == null || state != State.FINISHED) {
+            return null;
+        }
+        switch (exitCode) {
+            case 0:
+                return "succeeded";
+            case 1:
+                return "failed";
+            case 2:
+                return "not performed";
+            case 3:
+                return "succeeded with warnings";
+            default:
+                return "unknown";
+        }
+    }
+
+    public long getSubmittedAt() {
+        return submittedAt;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    public synchronized int getLogLineCount() {
+        return logLines.size();
+    }
+
+    String getUserId() {
+        return userId;
+    }
+
+    boolean isDone() {
+        return state == State.FINISHED || state == State.FAILED || state == State.CANCELLED;
+    }
+
+    /*
+     * Called by the storage service once the validator is about to start; script is null when the result came from
+     * the validation cache.
+     */
+    synchronized void attach(PythonJob script, Path logFile) {
+        this.logFile = logFile;
+        this.script = script;
+        if (cancelRequested && script != null) {
+            script.cancel();
+        }
+    }
+
+    Path getLogFile() {
+        return logFile;
+    }
+
+    Runnable getTask() {
+        return task;
+    }
+
+    void setTask(Runnable task) {
+        this.task = task;
+    }
+
+    /*
+     * Requests cancellation. A queued job is cancelled right away and true is returned; a running job is cancelled
+     * by killing its validator.
+     */
+    synchronized boolean cancel() {
+        if (isDone()) {
+            return false;
+        }
+        cancelRequested = true;
+        if (state == State.QUEUED) {
+            finished(State.CANCELLED, null);
+            return true;
+        }
+        if (script != null) {
+            script.cancel();
+        }
+        return false;
+    }
+
+    boolean isCancelRequested() {
+        return cancelRequested;
+    }
+
+    /*
+     * Moves a queued job to running; returns false if it was cancelled in the meantime.
+     */
+    synchronized boolean start() {
+        if (state != State.QUEUED) {
+            return false;
+        }
+        startedAt = System.currentTimeMillis();
+        changeState(State.RUNNING);
+        return true;
+    }
+
+    synchronized void finished(State state, Integer exitCode) {
+        this.exitCode = exitCode;
+        this.finishedAt = System.currentTimeMillis();
+        changeState(state);
+    }
+
+    /*
+     * Appends log lines and hands them to the subscribers in the same order.
+     */
+    synchronized void appendLog(List<String> lines) {
+        for (String line : lines) {
+            if (logLines.size() < MAX_LOG_LINES) {
+                logLines.add(line);
+            }
+        }
+        notifyListeners();
+    }
+
+    synchronized List<String> getLogLines(int from) {
+        return new ArrayList<>(logLines.subList(Math.min(from, logLines.size()), logLines.size()));
+    }
+
+    /*
+     * Registers a listener that is called, under the job's lock, after every log append and state change.
+     */
+    synchronized void addListener(Consumer<ValidationJob> listener) {
+        listeners.add(listener);
+        listener.accept(this);
+    }
+
+    synchronized void removeListener(Consumer<ValidationJob> listener) {
+        listeners.remove(listener);
+    }
+
+    private synchronized void changeState(State state) {
+        this.state = state;
+        notifyListeners();
+    }
+
+    private void notifyListeners() {
+        for (Consumer<ValidationJob> listener : new ArrayList<>(listeners)) {
+            listener.accept(this);
+        }
+    }
+}
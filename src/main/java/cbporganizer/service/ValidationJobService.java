@@ -0,0 +1,288 @@
+package cbporganizer.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/*
+ * Runs validations in the background instead of on the request thread.
+ *
+ * Jobs run on a bounded pool with a bounded queue; when the queue is full, submitting fails so the caller can ask
+ * the client to retry later. While a job runs, the validator's log file is tailed and new lines are pushed to the
+ * subscribed clients as Server-Sent Events. Cancelling a job kills the validator. Finished jobs are kept for an hour.
+ */
+@Service
+public class ValidationJobService {
+
+    private static final long RETENTION_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long EMITTER_TIMEOUT_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long TAIL_INTERVAL_MILLIS = 250;
+
+    @Autowired
+    private FilesStorageService storageService;
+
+    @Value("${cbporganizer.validation.threads:2}")
+    private int threads;
+
+    @Value("${cbporganizer.validation.queue-capacity:20}")
+    private int queueCapacity;
+
+    private final Map<String, ValidationJob> jobs = new ConcurrentHashMap<>();
+    private ThreadPoolExecutor executor;
+    private ScheduledExecutorService tailer;
+    private ExecutorService senders;
+
+    @PostConstruct
+    public void start() {
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> daemon(r, "validation-"));
+        tailer = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "validation-log-"));
+        senders = Executors.newCachedThreadPool(r -> daemon(r, "validation-events-"));
+    }
+
+    @PreDestroy
+    public void stop() {
+        for (ValidationJob job : jobs.values()) {
+            job.cancel();
+        }
+        executor.shutdownNow();
+        tailer.shutdownNow();
+        senders.shutdownNow();
+    }
+
+    /*
+     * Queues a validation of the folder, or returns the job that is already queued or running for it. Returns null
+     * when the folder does not exist and throws RejectedExecutionException when the queue is full.
+     */
+    public synchronized ValidationJob submit(String userId, String folderName) {
+        List<String> folders = storageService.getFolders(userId);
+        if (folders == null || !folders.contains(folderName)) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        jobs.values().removeIf(job -> job.isDone() && now - job.getFinishedAt() > RETENTION_MILLIS);
+        for (ValidationJob job : jobs.values()) {
+            if (!job.isDone() && job.getUserId().equals(userId) && job.getFolderName().equals(folderName)) {
+                return job;
+            }
+        }
+        ValidationJob job = new ValidationJob(UUID.randomUUID().toString(), userId, folderName);
+        Runnable task = () -> run(job);
+        executor.execute(task);
+        job.setTask(task);
+        jobs.put(job.getJobId(), job);
+        return job;
+    }
+
+    public ValidationJob getJob(String userId, String jobId) {
+        ValidationJob job = jobs.get(jobId);
+        return job != null && job.getUserId().equals(userId) ? job : null;
+    }
+
+    /*
+     * Cancels a queued or running job; returns the job, or null if it is unknown.
+     */
+    public ValidationJob cancel(String userId, String jobId) {
+        ValidationJob job = getJob(userId, jobId);
+        if (job != null && job.cancel()) {
+            // a queued job is done right away and does not hold a place in the queue anymore
+            executor.remove(job.getTask());
+        }
+        return job;
+    }
+
+    /*
+     * Streams the job's log as "log" events and its status as "status" events; the stream ends when the job does.
+     */
+    public SseEmitter subscribe(String userId, String jobId) {
+        ValidationJob job = getJob(userId, jobId);
+        if (job == null) {
+            return null;
+        }
+        SseEmitter emitter = new SseEmitter(EMITTER_TIMEOUT_MILLIS);
+        Subscriber subscriber = new Subscriber(job, emitter);
+        emitter.onCompletion(() -> job.removeListener(subscriber));
+        emitter.onTimeout(() -> job.removeListener(subscriber));
+        emitter.onError(e -> job.removeListener(subscriber));
+        job.addListener(subscriber);
+        return emitter;
+    }
+
+    private void run(ValidationJob job) {
+        if (!job.start()) {
+            return;
+        }
+        LogTail tail = new LogTail(job);
+        ScheduledFuture<?> tailing = tailer.scheduleWithFixedDelay(tail, TAIL_INTERVAL_MILLIS, TAIL_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+        ValidationJob.State state = ValidationJob.State.FINISHED;
+        Integer exitCode = null;
+        try {
+            exitCode = storageService.validate(job.getUserId(), job.getFolderName(), job);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            state = ValidationJob.State.FAILED;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            state = ValidationJob.State.FAILED;
+        } finally {
+            tailing.cancel(false);
+            tail.run();
+            tail.flushPartialLine();
+        }
+        if (job.isCancelRequested()) {
+            state = ValidationJob.State.CANCELLED;
+        }
+        job.finished(state, exitCode);
+    }
+
+    /*
+     * Reads the lines appended to the validator's log since the last call.
+     */
+    private static class LogTail implements Runnable {
+
+        private final ValidationJob job;
+        private long position;
+        private Path file;
+        private final StringBuilder partial = new StringBuilder();
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        LogTail(ValidationJob job) {
+            this.job = job;
+        }
+
+        @Override
+        public synchronized void run() {
+            Path logFile = job.getLogFile();
+            if (logFile == null) {
+                return;
+            }
+            if (!logFile.equals(file)) {
+                file = logFile;
+                position = 0;
+            }
+            List<String> lines = new ArrayList<>();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                int read;
+                buffer.clear();
+                while ((read = channel.read(buffer, position)) > 0) {
+                    position += read;
+                    buffer.flip();
+                    // the validator writes UTF-8; a character split across reads is rare and only garbles itself
+                    partial.append(StandardCharsets.UTF_8.decode(buffer));
+                    buffer.clear();
+                    int newline;
+                    while ((newline = partial.indexOf("\n")) >= 0) {
+                        lines.add(partial.substring(0, newline));
+                        partial.delete(0, newline + 1);
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                // not created yet
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (!lines.isEmpty()) {
+                job.appendLog(lines);
+            }
+        }
+
+        synchronized void flushPartialLine() {
+            if (partial.length() > 0) {
+                List<String> lines = new ArrayList<>();
+                lines.add(partial.toString());
+                partial.setLength(0);
+                job.appendLog(lines);
+            }
+        }
+    }
+
+    /*
+     * Forwards a job's progress to one client. Notifications only schedule a send, so a slow client never holds up
+     * the job; each send catches up on everything that happened since the previous one.
+     */
+    private class Subscriber implements Consumer<ValidationJob> {
+
+        private final ValidationJob job;
+        private final SseEmitter emitter;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private int sentLines;
+        private ValidationJob.State sentState;
+        private boolean closed;
+
+        Subscriber(ValidationJob job, SseEmitter emitter) {
+            this.job = job;
+            this.emitter = emitter;
+        }
+
+        @Override
+        public void accept(ValidationJob job) {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    senders.execute(this::send);
+                } catch (RejectedExecutionException e) {
+                    emitter.complete();
+                }
+            }
+        }
+
+        private synchronized void send() {
+            scheduled.set(false);
+            if (closed) {
+                return;
+            }
+            try {
+                ValidationJob.State state = job.getState();
+                for (String line : job.getLogLines(sentLines)) {
+                    emitter.send(SseEmitter.event().name("log").data(line));
+                    sentLines++;
+                }
+                if (state != sentState) {
+                    emitter.send(SseEmitter.event().name("status").data(job));
+                    sentState = state;
+                }
+                if (job.isDone() && state == job.getState() && sentLines == job.getLogLineCount()) {
+                    closed = true;
+                    job.removeListener(this);
+                    emitter.complete();
+                }
+            } catch (IOException | IllegalStateException e) {
+                // the client went away
+                closed = true;
+                job.removeListener(this);
+            }
+        }
+    }
+
+    private static Thread daemon(Runnable r, String prefix) {
+        Thread t = new Thread(r, prefix + UUID.randomUUID().toString().substring(0, 8));
+        t.setDaemon(true);
+        return t;
+    }
+}
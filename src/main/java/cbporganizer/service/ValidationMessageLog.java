@@ -0,0 +1,340 @@
+package cbporganizer.service;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/*
+ * The validator's messages of one study: validated_study_messages.jsonl, one JSON object per line as
+ * validateData.py appends them, and validated_study_messages.idx next to it.
+ *
+ * The index has an entry of 16 bytes per message: the offset of its line, the number of its file and its level.
+ * Files are numbered in the order they first occur, -1 standing for messages about no file, so the names are read
+ * back from the first message of each. Both files only grow: a refresh indexes the complete lines appended since
+ * the last one, also while a validation is still writing. The entries are kept in memory as well, together with
+ * the counts per file and level, so a page is found without reading the messages it skips.
+ */
+class ValidationMessageLog {
+
+    static final List<String> LEVELS = Arrays.asList("DEBUG", "INFO", "WARNING", "ERROR", "CRITICAL");
+
+    private static final int ENTRY_SIZE = 16;
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private final Path messages;
+    private final Path index;
+    private Object fileKey;
+    private long indexedEnd;
+    private int count;
+    private long[] offsets = new long[1024];
+    private int[] fileNumbers = new int[1024];
+    private byte[] levels = new byte[1024];
+    private final List<String> files = new ArrayList<>();
+    private final List<int[]> fileCounts = new ArrayList<>();
+    private final int[] noFileCounts = new int[LEVELS.size()];
+
+    ValidationMessageLog(Path messages, Path index) {
+        this.messages = messages;
+        this.index = index;
+    }
+
+    /*
+     * Catches up with the messages file: reads the index when this log is new or the file was replaced, then
+     * indexes the lines added since. Returns false when there is no messages file.
+     */
+    synchronized boolean refresh() throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(messages, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        Object key = attributes.fileKey() != null ? attributes.fileKey() : attributes.creationTime();
+        long indexSize = Files.exists(index) ? Files.size(index) : 0;
+        if (!Objects.equals(key, fileKey) || attributes.size() < indexedEnd || indexSize != (long) count * ENTRY_SIZE) {
+            reset();
+            fileKey = key;
+            if (!readIndex(attributes.size())) {
+                reset();
+                fileKey = key;
+                Files.deleteIfExists(index);
+            }
+        }
+        if (attributes.size() > indexedEnd) {
+            indexFrom(indexedEnd);
+        }
+        return true;
+    }
+
+    private void reset() {
+        fileKey = null;
+        indexedEnd = 0;
+        count = 0;
+        files.clear();
+        fileCounts.clear();
+        Arrays.fill(noFileCounts, 0);
+    }
+
+    /*
+     * Loads the index file; false when it does not fit the messages file, which then gets indexed from the start.
+     */
+    private boolean readIndex(long messagesSize) throws IOException {
+        if (!Files.exists(index)) {
+            return true;
+        }
+        long size = Files.size(index);
+        if (size % ENTRY_SIZE != 0) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(index),
+                64 * 1024))) {
+            for (long i = 0; i < size / ENTRY_SIZE; i++) {
+                long offset = in.readLong();
+                int file = in.readInt();
+                int level = in.readInt();
+                if (offset < indexedEnd || offset >= messagesSize || file < -1 || file > files.size()
+                        || level < 0 || level >= LEVELS.size()) {
+                    return false;
+                }
+                if (file == files.size()) {
+                    JsonNode message = readMessage(offset);
+                    if (message == null || !message.hasNonNull("file")) {
+                        return false;
+                    }
+                    files.add(message.get("file").asText());
+                    fileCounts.add(new int[LEVELS.size()]);
+                }
+                add(offset, file, level);
+                indexedEnd = offset + 1;
+            }
+        } catch (EOFException e) {
+            return false;
+        }
+        if (count > 0) {
+            // the entries end where the line of the last one does
+            long end = lineEnd(offsets[count - 1]);
+            if (end < 0) {
+                return false;
+            }
+            indexedEnd = end;
+        }
+        return true;
+    }
+
+    /*
+     * Indexes the complete lines from position on and appends their entries to the index file.
+     */
+    private void indexFrom(long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(messages, StandardOpenOption.READ);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                     Files.newOutputStream(index, StandardOpenOption.CREATE, StandardOpenOption.APPEND),
+                     64 * 1024))) {
+            byte[] buffer = new byte[256 * 1024];
+            int filled = 0;
+            long bufferStart = position;
+            int read;
+            while ((read = channel.read(ByteBuffer.wrap(buffer, filled, buffer.length - filled),
+                    bufferStart + filled)) > 0) {
+                filled += read;
+                int lineStart = 0;
+                for (int i = 0; i < filled; i++) {
+                    if (buffer[i] == '\n') {
+                        if (i > lineStart) {
+                            indexLine(buffer, lineStart, i - lineStart, bufferStart + lineStart, out);
+                        }
+                        lineStart = i + 1;
+                    }
+                }
+                // the start of an incomplete line moves to the front, the buffer grows for a line longer than it
+                System.arraycopy(buffer, lineStart, buffer, 0, filled - lineStart);
+                filled -= lineStart;
+                bufferStart += lineStart;
+                if (filled == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+            }
+            // a line without its newline yet is indexed by the next refresh
+            indexedEnd = bufferStart;
+        }
+    }
+
+    /*
+     * Adds the entry of one line, reading only its level and file; a line that is not JSON is left out.
+     */
+    private void indexLine(byte[] buffer, int start, int length, long offset, DataOutputStream out)
+            throws IOException {
+        String levelName = null;
+        String file = null;
+        try (JsonParser parser = JSON.getFactory().createParser(buffer, start, length)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "not an object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (name.equals("level")) {
+                    levelName = parser.getValueAsString();
+                } else if (name.equals("file")) {
+                    file = value == JsonToken.VALUE_NULL ? null : parser.getValueAsString();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } catch (JsonProcessingException e) {
+            System.err.println("Skipping an unreadable line of " + messages + " at " + offset);
+            return;
+        }
+        int level = Math.max(LEVELS.indexOf(levelName), 0);
+        int fileNumber = fileNumber(file);
+        add(offset, fileNumber, level);
+        out.writeLong(offset);
+        out.writeInt(fileNumber);
+        out.writeInt(level);
+    }
+
+    private int fileNumber(String file) {
+        if (file == null) {
+            return -1;
+        }
+        int number = files.indexOf(file);
+        if (number < 0) {
+            number = files.size();
+            files.add(file);
+            fileCounts.add(new int[LEVELS.size()]);
+        }
+        return number;
+    }
+
+    private void add(long offset, int file, int level) {
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+            fileNumbers = Arrays.copyOf(fileNumbers, count * 2);
+            levels = Arrays.copyOf(levels, count * 2);
+        }
+        offsets[count] = offset;
+        fileNumbers[count] = file;
+        levels[count] = (byte) level;
+        count++;
+        (file < 0 ? noFileCounts : fileCounts.get(file))[level]++;
+    }
+
+    /*
+     * The messages from entry number from on that have one of the levels and are about one of the files, at most
+     * limit of them; null sets mean any. The counts are those of the whole study.
+     */
+    synchronized ValidationMessagePage page(Set<String> levelFilter, Set<String> fileFilter, int from, int limit) {
+        boolean[] levelMatches = new boolean[LEVELS.size()];
+        for (int level = 0; level < levelMatches.length; level++) {
+            levelMatches[level] = levelFilter == null || levelFilter.contains(LEVELS.get(level));
+        }
+        boolean[] fileMatches = new boolean[files.size() + 1];
+        for (int file = -1; file < files.size(); file++) {
+            fileMatches[file + 1] = fileFilter == null
+                    || fileFilter.contains(file < 0 ? "" : files.get(file));
+        }
+        int total = 0;
+        for (int file = -1; file < files.size(); file++) {
+            if (fileMatches[file + 1]) {
+                int[] counts = file < 0 ? noFileCounts : fileCounts.get(file);
+                for (int level = 0; level < counts.length; level++) {
+                    total += levelMatches[level] ? counts[level] : 0;
+                }
+            }
+        }
+
+        List<long[]> lines = new ArrayList<>();
+        int position = Math.max(from, 0);
+        for (; position < count && lines.size() < limit; position++) {
+            if (levelMatches[levels[position]] && fileMatches[fileNumbers[position] + 1]) {
+                long end = position + 1 < count ? offsets[position + 1] : indexedEnd;
+                lines.add(new long[]{offsets[position], end});
+            }
+        }
+        Integer next = null;
+        for (int i = position; i < count; i++) {
+            if (levelMatches[levels[i]] && fileMatches[fileNumbers[i] + 1]) {
+                next = position;
+                break;
+            }
+        }
+        return new ValidationMessagePage(messages, lines, total, counts(), next);
+    }
+
+    /*
+     * The number of messages per level, and per file and level; messages about no file are counted under "".
+     */
+    private Map<String, Map<String, Integer>> counts() {
+        Map<String, Map<String, Integer>> counts = new LinkedHashMap<>();
+        for (int file = -1; file < files.size(); file++) {
+            int[] fileCount = file < 0 ? noFileCounts : fileCounts.get(file);
+            Map<String, Integer> byLevel = new LinkedHashMap<>();
+            for (int level = 0; level < fileCount.length; level++) {
+                if (fileCount[level] > 0) {
+                    byLevel.put(LEVELS.get(level), fileCount[level]);
+                }
+            }
+            if (!byLevel.isEmpty()) {
+                counts.put(file < 0 ? "" : files.get(file), byLevel);
+            }
+        }
+        return counts;
+    }
+
+    private JsonNode readMessage(long offset) throws IOException {
+        long end = lineEnd(offset);
+        if (end < 0) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(messages, StandardOpenOption.READ)) {
+            ByteBuffer line = ByteBuffer.allocate((int) (end - offset));
+            while (line.hasRemaining() && channel.read(line, offset + line.position()) > 0) {
+                // read the whole line
+            }
+            return JSON.readTree(line.array(), 0, line.position());
+        }
+    }
+
+    /*
+     * The offset just past the newline of the line at offset, or -1 when the line is not complete.
+     */
+    private long lineEnd(long offset) throws IOException {
+        try (FileChannel channel = FileChannel.open(messages, StandardOpenOption.READ);
+             InputStream in = new BufferedInputStream(Channels.newInputStream(channel.position(offset)), 8 * 1024)) {
+            long position = offset;
+            int b;
+            while ((b = in.read()) >= 0) {
+                position++;
+                if (b == '\n') {
+                    return position;
+                }
+            }
+            return -1;
+        }
+    }
+}
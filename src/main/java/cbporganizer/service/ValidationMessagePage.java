@@ -0,0 +1,69 @@
+package cbporganizer.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * One page of the validation messages of a study, with the number of messages that match the filters and the
+ * counts per file and level of all of them. next is the entry number to continue from, null on the last page.
+ */
+public class ValidationMessagePage {
+
+    private final Path messages;
+    private final List<long[]> lines;
+    private final int total;
+    private final Map<String, Map<String, Integer>> counts;
+    private final Integer next;
+
+    ValidationMessagePage(Path messages, List<long[]> lines, int total, Map<String, Map<String, Integer>> counts,
+                          Integer next) {
+        this.messages = messages;
+        this.lines = lines;
+        this.total = total;
+        this.counts = counts;
+        this.next = next;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    /*
+     * The number of messages per file and level; messages about the study rather than a file are under "".
+     */
+    public Map<String, Map<String, Integer>> getCounts() {
+        return counts;
+    }
+
+    public Integer getNext() {
+        return next;
+    }
+
+    /*
+     * Writes the messages of the page as they are stored, one JSON object each, without parsing them.
+     */
+    public void writeMessages(JsonGenerator json) throws IOException {
+        try (FileChannel channel = FileChannel.open(messages, StandardOpenOption.READ)) {
+            for (long[] line : lines) {
+                ByteBuffer bytes = ByteBuffer.allocate((int) (line[1] - line[0]));
+                while (bytes.hasRemaining() && channel.read(bytes, line[0] + bytes.position()) > 0) {
+                    // read the whole line
+                }
+                // the range reaches to the next message and may hold a skipped line after this one
+                int end = 0;
+                while (end < bytes.position() && bytes.get(end) != '\n') {
+                    end++;
+                }
+                json.writeRawValue(new String(bytes.array(), 0, end, StandardCharsets.UTF_8).trim());
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package cbporganizer.service;
+
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Pages through the messages the validator wrote for a study, as records with level, file, line, column, message
+ * and value, instead of the rendered report. See ValidationMessageLog for how they are stored and indexed.
+ */
+@Service
+public class ValidationMessageService {
+
+    static final String MESSAGES_FILE = "validated_study_messages.jsonl";
+    static final String INDEX_FILE = "validated_study_messages.idx";
+
+    private final Map<Path, ValidationMessageLog> logs = new ConcurrentHashMap<>();
+
+    /*
+     * The messages from entry number from on with one of the levels and about one of the files, null sets meaning
+     * any and "" standing for the study itself; null when the study has no messages, as before it is validated.
+     * Throws IllegalArgumentException for an unknown level.
+     */
+    public ValidationMessagePage getMessages(String userId, String folderName, Set<String> levels, Set<String> files,
+                                             int from, int limit) throws IOException {
+        if (levels != null && !ValidationMessageLog.LEVELS.containsAll(levels)) {
+            throw new IllegalArgumentException("Levels are " + String.join(", ", ValidationMessageLog.LEVELS));
+        }
+        Path studyDir = ArchiveEntries.resolve(FilesStorageServiceImpl.STORAGE_ROOT.resolve(userId), folderName);
+        Path messages = studyDir.resolve(MESSAGES_FILE);
+        ValidationMessageLog log = logs.computeIfAbsent(messages,
+                path -> new ValidationMessageLog(path, studyDir.resolve(INDEX_FILE)));
+        if (!log.refresh()) {
+            logs.remove(messages);
+            return null;
+        }
+        return log.page(levels, files, from, limit);
+    }
+}
@@ -274,6 +274,47 @@ class ErrorFileFormatter(cbioportal_common.ValidationMessageFormatter):
         return super(ErrorFileFormatter, self).format(record)
 
 
+class JsonLinesHandler(logging.Handler):
+
+    """Handler that appends every message as a JSON object on a line of its own.
+
+    The fields are level, file (relative to the study directory), line,
+    column, message and value, the unexpected value found; the ones that do
+    not apply are null. Lines are only ever appended, so a reader can index
+    the file by offset while the validation is still running.
+    """
+
+    def __init__(self, study_dir, output_filename):
+        """Open the output file for appending."""
+        super(JsonLinesHandler, self).__init__()
+        self.study_dir = study_dir
+        self.stream = open(output_filename, 'a', encoding='utf-8')
+
+    def emit(self, record):
+        """Append the record as one line of JSON."""
+        try:
+            filename = getattr(record, 'filename_', None)
+            fields = {
+                'level': record.levelname,
+                'file': (os.path.relpath(filename, self.study_dir)
+                         if filename is not None else None),
+                'line': getattr(record, 'line_number', None),
+                'column': getattr(record, 'column_number', None),
+                'message': record.getMessage(),
+                'value': getattr(record, 'cause', None)}
+            self.stream.write(json.dumps(fields, default=str) + '\n')
+            self.stream.flush()
+        except Exception:
+            self.handleError(record)
+
+    def close(self):
+        """Close the output file."""
+        try:
+            self.stream.close()
+        finally:
+            super(JsonLinesHandler, self).close()
+
+
 class LineMessageFilter(logging.Filter):
     """Filter that selects only validation messages about a line in a file."""
     def filter(self, record):
@@ -5327,6 +5368,9 @@ def interface(args=None):
     parser.add_argument('-e', '--error_file', type=str, required=False,
                         help='File to which to write line numbers on which '
                              'errors were found, for scripts')
+    parser.add_argument('--messages_file', type=str, required=False,
+                        help='File to which to append every message as a '
+                             'line of JSON, for scripts')
     parser.add_argument('-v', '--verbose', required=False, action='store_true',
                         help='report status info messages in addition '
                              'to errors and warnings')
@@ -5637,6 +5681,11 @@ def main_validate(args):
         coll_errfile_handler.addFilter(LineMessageFilter())
         logger.addHandler(coll_errfile_handler)
 
+    if args.messages_file:
+        messages_handler = JsonLinesHandler(study_dir, args.messages_file)
+        messages_handler.setLevel(output_loglevel)
+        logger.addHandler(messages_handler)
+
     # load portal-specific information
     if args.no_portal_checks:
         portal_instance = PortalInstance(portal_info_dict=None,
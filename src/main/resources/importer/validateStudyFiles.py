@@ -0,0 +1,328 @@
+#!/usr/bin/env python3
+
+"""Validate a study like validateData.py, reusing the results of data files that did not change and validating
+the others in parallel.
+
+The study-level files (meta files, clinical data, case lists, gene panel matrix, cancer types and resources) are
+always validated first, as the other files are checked against what they define. Every other data file is
+validated by its own validator, whose log records are stored under a key made of the file's content, its meta file,
+the study context the validator checks it against and the script version. On the next run a validator with the
+same key is not run. With --jobs, the validators without stored records all run at once in forked processes as
+soon as validate_study reaches the data files, and only send their records back. Either way the records are then
+replayed into the same handlers in the serial order, so the report, the log and the exit status are the ones a
+serial run would produce. The checks between files in validate_data_relations always run.
+
+Takes the options of validateData.py plus:
+  --records-dir DIR      where the records are kept; without it, nothing is reused
+  --file-hashes FILE     study manifest with "path, size, mtime, sha256" rows, so unchanged files are not hashed
+  --script-version V     version of the importer scripts, part of every key
+  --jobs N               number of processes validating data files at the same time
+"""
+
+import argparse
+import hashlib
+import importlib
+import json
+import logging
+import multiprocessing
+import os
+import pickle
+import sys
+import uuid
+from concurrent.futures import ProcessPoolExecutor
+from pathlib import Path
+
+# Configure relative imports if running as a script; see validateData.py
+if __name__ == "__main__" and (__package__ is None or __package__ == ''):
+    sys.path[0] = str(Path(sys.path[0]).resolve().parent)
+    __package__ = 'importer'
+    importlib.import_module(__package__)
+
+from . import cbioportal_common
+from . import validateData
+
+# validated before the other data files, because they define what those are checked against
+STUDY_LEVEL_TYPES = (
+    cbioportal_common.MetaFileTypes.CANCER_TYPE,
+    cbioportal_common.MetaFileTypes.SAMPLE_ATTRIBUTES,
+    cbioportal_common.MetaFileTypes.RESOURCES_DEFINITION,
+    cbioportal_common.MetaFileTypes.SAMPLE_RESOURCES,
+    cbioportal_common.MetaFileTypes.GENE_PANEL_MATRIX,
+)
+
+# module state the data file validators read
+CONTEXT_GLOBALS = (
+    'DEFINED_SAMPLE_IDS', 'DEFINED_SAMPLE_ATTRIBUTES', 'PATIENTS_WITH_SAMPLES', 'DEFINED_CANCER_TYPES',
+    'RESOURCE_DEFINITION_DICTIONARY', 'RESOURCE_PATIENTS_WITH_SAMPLES', 'sample_ids_panel_dict',
+)
+
+
+def canonical(value):
+    """Turn sets and dicts into sorted lists, so equal state always serializes the same way."""
+    if isinstance(value, dict):
+        return [[str(k), canonical(v)] for k, v in sorted(value.items(), key=lambda item: str(item[0]))]
+    if isinstance(value, (set, frozenset)):
+        return sorted((canonical(v) for v in value), key=repr)
+    if isinstance(value, (list, tuple)):
+        return [canonical(v) for v in value]
+    if value is None or isinstance(value, (str, int, float, bool)):
+        return value
+    return repr(value)
+
+
+class FileHashes(object):
+
+    """Content hashes of study files, taken from the study manifest while its size and mtime still match."""
+
+    def __init__(self, study_dir, manifest_path):
+        self.study_dir = os.path.abspath(study_dir)
+        self.known = {}
+        self.computed = {}
+        if manifest_path and os.path.exists(manifest_path):
+            with open(manifest_path, encoding='utf-8') as manifest:
+                for line in manifest:
+                    parts = line.rstrip('\n').split('\t')
+                    if len(parts) == 4:
+                        self.known[parts[0]] = (int(parts[1]), int(parts[2]), parts[3])
+
+    def get(self, path):
+        try:
+            stat = os.stat(path)
+        except OSError:
+            return None
+        relative = os.path.relpath(os.path.abspath(path), self.study_dir).replace(os.sep, '/')
+        known = self.known.get(relative)
+        if known is not None and known[0] == stat.st_size and known[1] == stat.st_mtime_ns // 1000000:
+            return known[2]
+        computed = self.computed.get(relative)
+        if computed is not None and computed[0] == stat.st_size and computed[1] == stat.st_mtime_ns:
+            return computed[2]
+        digest = hashlib.sha256()
+        with open(path, 'rb') as f:
+            for chunk in iter(lambda: f.read(1024 * 1024), b''):
+                digest.update(chunk)
+        self.computed[relative] = (stat.st_size, stat.st_mtime_ns, digest.hexdigest())
+        return digest.hexdigest()
+
+
+class CapturingHandler(logging.Handler):
+
+    """Keeps a picklable copy of every record a validator logs."""
+
+    def __init__(self):
+        super(CapturingHandler, self).__init__(logging.NOTSET)
+        self.records = []
+
+    def emit(self, record):
+        fields = dict(record.__dict__)
+        fields['msg'] = record.getMessage()
+        fields['args'] = None
+        if record.exc_info:
+            fields['exc_text'] = logging.Formatter().formatException(record.exc_info)
+        fields['exc_info'] = None
+        # added by CollapsingLogMessageHandler while flushing
+        fields.pop('value', None)
+        self.records.append(fields)
+
+
+# validators of the forked processes, inherited from the parent
+_forked_validators = []
+
+
+def _validate_in_child(index):
+    """Runs one validator in a worker process and returns its records instead of handling them."""
+    validator, run = _forked_validators[index]
+    logger = validator.logger.logger
+    for handler in list(logger.handlers):
+        logger.removeHandler(handler)
+    logger.propagate = False
+    capture = CapturingHandler()
+    logger.addHandler(capture)
+    try:
+        run()
+    except BaseException:
+        # validated again in the parent, so the error surfaces as in a serial run
+        return None
+    return capture.records
+
+
+class RecordStore(object):
+
+    def __init__(self, records_dir, script_version, file_hashes, options, jobs):
+        self.records_dir = records_dir
+        self.script_version = script_version
+        self.file_hashes = file_hashes
+        self.options = options
+        self.jobs = jobs
+        self.runs = {}
+        self.prepared = None
+        self.reused = 0
+        self.validated = 0
+
+    def add(self, validator, run):
+        self.runs[validator] = run
+
+    def key(self, validator):
+        """Key of a validator's results, or None when they cannot be reused."""
+        if self.records_dir is None:
+            return None
+        inputs = []
+        for name, value in sorted(validator.meta_dict.items()):
+            if name.endswith('_filename') and isinstance(value, str):
+                sha256 = self.file_hashes.get(os.path.join(os.path.dirname(validator.filename), value))
+                if sha256 is None:
+                    return None
+                inputs.append([name, sha256])
+        context = [[name, canonical(getattr(validateData, name, None))] for name in CONTEXT_GLOBALS]
+        payload = json.dumps([self.script_version, type(validator).__name__, validator.filename,
+                              canonical(validator.meta_dict), inputs, context, self.options],
+                             sort_keys=True, default=repr)
+        return hashlib.sha256(payload.encode('utf-8')).hexdigest()
+
+    def load(self, key):
+        path = os.path.join(self.records_dir, key + '.pickle')
+        try:
+            with open(path, 'rb') as f:
+                records = pickle.load(f)
+            # the backend evicts the least recently used records
+            os.utime(path)
+            return records
+        except FileNotFoundError:
+            return None
+        except Exception as e:
+            print('Ignoring unreadable validation records %s: %s' % (path, e), file=sys.stderr)
+            return None
+
+    def store(self, key, records):
+        os.makedirs(self.records_dir, exist_ok=True)
+        path = os.path.join(self.records_dir, key + '.pickle')
+        tmp = os.path.join(self.records_dir, '.tmp-%s' % uuid.uuid4())
+        try:
+            with open(tmp, 'wb') as f:
+                pickle.dump(records, f, protocol=pickle.HIGHEST_PROTOCOL)
+            os.replace(tmp, path)
+        except Exception as e:
+            print('Could not store validation records: %s' % e, file=sys.stderr)
+            if os.path.exists(tmp):
+                os.remove(tmp)
+
+    def prepare(self):
+        """Validates the data files without stored records in parallel; called when the first one is validated,
+        when the study context they depend on is complete."""
+        self.prepared = {}
+        keys = {validator: self.key(validator) for validator in self.runs}
+        pending = [validator for validator in self.runs
+                   if keys[validator] is None
+                   or not os.path.exists(os.path.join(self.records_dir, keys[validator] + '.pickle'))]
+        if self.jobs <= 1 or len(pending) <= 1:
+            return
+        # largest files first, so a big file does not start last
+        pending.sort(key=lambda validator: -(os.path.getsize(validator.filename)
+                                             if os.path.exists(validator.filename) else 0))
+        _forked_validators[:] = [(validator, self.runs[validator]) for validator in pending]
+        try:
+            with ProcessPoolExecutor(min(self.jobs, len(pending)),
+                                     mp_context=multiprocessing.get_context('fork')) as pool:
+                futures = [pool.submit(_validate_in_child, index) for index in range(len(pending))]
+                for validator, future in zip(pending, futures):
+                    try:
+                        records = future.result()
+                    except Exception as e:
+                        print('Validating %s in a separate process failed: %s' % (validator.filenameShort, e),
+                              file=sys.stderr)
+                        records = None
+                    if records is not None:
+                        self.prepared[validator] = records
+                        if keys[validator] is not None:
+                            self.store(keys[validator], records)
+        finally:
+            del _forked_validators[:]
+
+    def validate(self, validator):
+        """Replays the validator's stored records, or runs it and stores what it logs."""
+        if self.prepared is None:
+            self.prepare()
+        logger = validator.logger.logger
+        records = self.prepared.pop(validator, None)
+        if records is not None:
+            self.validated += 1
+        else:
+            key = self.key(validator)
+            records = self.load(key) if key is not None else None
+            if records is not None:
+                self.reused += 1
+        if records is not None:
+            for fields in records:
+                logger.handle(logging.makeLogRecord(fields))
+            return
+        key = self.key(validator)
+        run = self.runs[validator]
+        capture = CapturingHandler()
+        logger.addHandler(capture)
+        try:
+            run()
+        finally:
+            logger.removeHandler(capture)
+        self.validated += 1
+        if key is not None:
+            self.store(key, capture.records)
+
+
+def install(store):
+    """Routes the data file validators created by validate_study through the record store."""
+    process_metadata_files = validateData.process_metadata_files
+
+    def process_metadata_files_with_records(*args, **kwargs):
+        result = process_metadata_files(*args, **kwargs)
+        validators_by_meta_type = result[0]
+        for meta_file_type, validators in validators_by_meta_type.items():
+            if meta_file_type in STUDY_LEVEL_TYPES:
+                continue
+            for validator in validators:
+                # GSVA validators compare their files with each other through class attributes
+                if validator is None or isinstance(validator, validateData.MultipleDataFileValidator):
+                    continue
+                store.add(validator, validator.validate)
+                validator.validate = lambda validator=validator: store.validate(validator)
+        return result
+
+    validateData.process_metadata_files = process_metadata_files_with_records
+
+
+def interface(args=None):
+    parser = argparse.ArgumentParser(add_help=False)
+    parser.add_argument('--records-dir')
+    parser.add_argument('--file-hashes')
+    parser.add_argument('--script-version', default='')
+    parser.add_argument('--jobs', type=int, default=1)
+    return parser.parse_known_args(args)
+
+
+def main(args=None):
+    options, validator_args = interface(args)
+    parsed_args = validateData.interface(validator_args)
+    # the portal's gene and panel lists can change between runs, so results are only reused without portal checks
+    records_dir = options.records_dir if parsed_args.no_portal_checks else None
+    file_hashes = FileHashes(parsed_args.study_directory, options.file_hashes)
+    store = RecordStore(records_dir, options.script_version, file_hashes,
+                        [parsed_args.relaxed_clinical_definitions, parsed_args.strict_maf_checks,
+                         parsed_args.verbose], options.jobs)
+    install(store)
+    exit_status = validateData.main_validate(parsed_args)
+    print('Validated %d data files, reused the results of %d unchanged ones.'
+          % (store.validated, store.reused), file=sys.stderr)
+    return exit_status
+
+
+if __name__ == '__main__':
+    try:
+        exit_status = main()
+    finally:
+        logging.shutdown()
+        del logging._handlerList[:]  # workaround for harmless exceptions on exit
+    print(('Validation of study {status}.'.format(
+        status={0: 'succeeded',
+                1: 'failed',
+                2: 'not performed as problems occurred',
+                3: 'succeeded with warnings'}.get(exit_status, 'unknown'))), file=sys.stderr)
+    sys.exit(exit_status)
@@ -0,0 +1,189 @@
+#!/usr/bin/env python3
+
+"""Long-lived worker that runs importer scripts for the cbpOrganizer backend.
+
+Importing pandas, jinja2, yaml and cbioportal_common takes seconds, so the
+worker imports them once and then forks a child per job. Each child starts
+with the modules already loaded, runs the requested script as __main__ with
+its own working directory, arguments and output files, and exits.
+
+Protocol: one JSON object per line. Jobs arrive on stdin:
+
+    {"id": "1", "module": "validateData", "args": [...], "cwd": "...",
+     "stdout": "path or null", "stderr": "path or null"}
+    {"cancel": "1"}
+
+Events are written to the original stdout:
+
+    {"event": "ready", "preloaded": [...]}
+    {"event": "started", "id": "1", "pid": 1234}
+    {"event": "exit", "id": "1", "code": 0, "maxRssKb": ..., "cpuMillis": ...}
+
+The worker exits when stdin is closed, killing a job that is still running.
+"""
+
+import importlib
+import json
+import os
+import runpy
+import select
+import signal
+import sys
+import traceback
+from pathlib import Path
+
+PRELOAD = ['validateData', 'prepare_clinical_data']
+
+# make the importer package importable, see validateData.py
+sys.path[0] = str(Path(__file__).resolve().parent.parent)
+
+# keep stdout for the protocol; anything printed by imported modules goes to stderr
+protocol = os.fdopen(os.dup(1), 'w', buffering=1)
+os.dup2(2, 1)
+
+
+class LineReader:
+    """Splits a file descriptor into lines without buffering past select()."""
+
+    def __init__(self, fd):
+        self.fd = fd
+        self.buffer = b''
+        self.eof = False
+
+    def read_lines(self):
+        data = os.read(self.fd, 65536)
+        if not data:
+            self.eof = True
+            return []
+        self.buffer += data
+        *lines, self.buffer = self.buffer.split(b'\n')
+        return [json.loads(line) for line in lines if line.strip()]
+
+
+def send(event):
+    protocol.write(json.dumps(event) + '\n')
+
+
+def preload():
+    loaded = []
+    for module in PRELOAD:
+        try:
+            importlib.import_module('importer.' + module)
+            loaded.append(module)
+        except (Exception, SystemExit):
+            # the job itself reports the error when it imports the module again
+            traceback.print_exc()
+    return loaded
+
+
+def redirect(fd, path, flags):
+    target = os.open(path or os.devnull, flags, 0o644)
+    os.dup2(target, fd)
+    os.close(target)
+
+
+def run_child(job):
+    code = 1
+    try:
+        try:
+            os.setpgid(0, 0)
+        except OSError:
+            pass
+        os.close(protocol.fileno())
+        redirect(0, None, os.O_RDONLY)
+        redirect(1, job.get('stdout'), os.O_WRONLY | os.O_CREAT | os.O_TRUNC)
+        redirect(2, job.get('stderr'), os.O_WRONLY | os.O_CREAT | os.O_TRUNC)
+        os.chdir(job['cwd'])
+        module = 'importer.' + job['module']
+        sys.argv = [str(Path(__file__).resolve().parent / (job['module'] + '.py'))] + job['args']
+        # run a fresh copy of the script; the modules it imports stay loaded
+        sys.modules.pop(module, None)
+        runpy.run_module(module, run_name='__main__', alter_sys=True)
+        code = 0
+    except SystemExit as e:
+        if e.code is None:
+            code = 0
+        elif isinstance(e.code, int):
+            code = e.code
+        else:
+            print(e.code, file=sys.stderr)
+            code = 1
+    except BaseException:
+        traceback.print_exc()
+    finally:
+        try:
+            sys.stdout.flush()
+            sys.stderr.flush()
+        finally:
+            os._exit(code)
+
+
+def wait_for(job, pid, reader, pending):
+    """Waits for the child, handling cancel requests; returns False when stdin was closed."""
+    pidfd = os.pidfd_open(pid) if hasattr(os, 'pidfd_open') else None
+    try:
+        while True:
+            waited, status, usage = os.wait4(pid, os.WNOHANG)
+            if waited == pid:
+                code = os.WEXITSTATUS(status) if os.WIFEXITED(status) else -os.WTERMSIG(status)
+                send({'event': 'exit', 'id': job['id'], 'code': code, 'maxRssKb': usage.ru_maxrss,
+                      'cpuMillis': int((usage.ru_utime + usage.ru_stime) * 1000)})
+                return not reader.eof
+            fds = [reader.fd] if not reader.eof else []
+            if pidfd is not None:
+                fds.append(pidfd)
+            readable, _, _ = select.select(fds, [], [], 1.0 if pidfd is not None else 0.05)
+            if reader.fd in readable:
+                for message in reader.read_lines():
+                    if message.get('cancel') == job['id']:
+                        kill(pid)
+                    elif 'cancel' not in message:
+                        pending.append(message)
+                if reader.eof:
+                    # the backend is gone
+                    kill(pid)
+    finally:
+        if pidfd is not None:
+            os.close(pidfd)
+
+
+def kill(pid):
+    try:
+        os.killpg(pid, signal.SIGKILL)
+    except OSError:
+        try:
+            os.kill(pid, signal.SIGKILL)
+        except OSError:
+            pass
+
+
+def main():
+    send({'event': 'ready', 'preloaded': preload(), 'pid': os.getpid()})
+    reader = LineReader(sys.stdin.fileno())
+    pending = []
+    while True:
+        if not pending:
+            if reader.eof:
+                return
+            pending.extend(reader.read_lines())
+            continue
+        job = pending.pop(0)
+        if 'cancel' in job:
+            continue
+        sys.stdout.flush()
+        sys.stderr.flush()
+        pid = os.fork()
+        if pid == 0:
+            run_child(job)
+        try:
+            # also done by the child; whichever runs first, a cancel can always kill the whole group
+            os.setpgid(pid, pid)
+        except OSError:
+            pass
+        send({'event': 'started', 'id': job['id'], 'pid': pid})
+        if not wait_for(job, pid, reader, pending):
+            return
+
+
+if __name__ == '__main__':
+    main()